@@ -2,11 +2,40 @@ package com.nyeggen.lash;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import javax.management.ObjectName;
+
+import com.nyeggen.lash.stats.DiskMapMBean;
+import com.nyeggen.lash.stats.MapMetrics;
+import com.nyeggen.lash.stats.MapMetrics.Op;
+import com.nyeggen.lash.stats.MapStats;
+import com.nyeggen.lash.util.BufferedFileMapper;
+import com.nyeggen.lash.util.Hash;
+import com.nyeggen.lash.util.LZCompressor;
 import com.nyeggen.lash.util.MMapper;
+import com.nyeggen.lash.util.MapperFactory;
 
 /**Abstract base class usable by implementations that wish to share the same
  * primary/secondary, lock-by-stripe approach.*/
@@ -19,9 +48,17 @@ public abstract class ADiskMap implements Closeable, IDiskMap {
 	static final long defaultFileLength = 1L << 28;
 	static final String primaryFileName = "primary.hash";
 	static final String secondaryFileName = "secondary.hash";
+	static final String dictionaryFileName = "compression.dict";
+	/**Values shorter than this are never compressed.*/
+	static final int minCompressedValLength = 32;
 	
 	final MMapper primaryMapper, secondaryMapper;
+	/**Canonical path of the folder holding the map's files, or null for a
+	 * map held only in memory.*/
 	final String baseFolderLoc;
+	/**Whether the files were opened read-only (see MapperFactory.READ_ONLY).
+	 * Nothing then changes them, so lookups and iteration take no locks.*/
+	final boolean readOnly;
 
 	/**Allocations in secondary increment from this point*/
 	final AtomicLong secondaryWritePos = new AtomicLong(0);
@@ -31,34 +68,194 @@ public abstract class ADiskMap implements Closeable, IDiskMap {
 	final Object[] locks = new Object[nLocks];
 	{ for(int i=0;i<nLocks;i++) locks[i] = new Object(); }
 	
+	/**Extents of secondary released by deleted or relocated records, by
+	 * length, for reuse by allocateData.  Held in memory only, so space freed
+	 * before a restart is not reused after it.*/
+	final ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<Long>> freeExtents = new ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<Long>>();
+	
 	/**Number of records inserted.*/
 	final AtomicLong size = new AtomicLong(0);
 	/**Number of buckets in the table, always a power of 2.*/
 	long tableLength;
 	
-	/**Index of the next stripe to be rehashed*/
+	/**Number of stripes that have been rehashed into a table of twice
+	 * tableLength.  Only changes under the lock of the stripe concerned.*/
 	final AtomicLong rehashComplete = new AtomicLong(0);
+	/**Held by the single thread performing incremental rehashing, in
+	 * either direction.*/
+	final ReentrantLock rehashLock = new ReentrantLock();
+	/**Load below which the table contracts, or 0 to never contract.*/
+	volatile double loadShrinkThreshold = 0;
+	/**The table never contracts below the length requested at construction,
+	 * or by reserve().*/
+	volatile long minTableLength;
+	
+	/**Stripes rehashed and merged since opening, for statistics.  Only
+	 * changed by the thread holding the rehashLock.*/
+	final AtomicLong rehashSteps = new AtomicLong(0), mergeSteps = new AtomicLong(0);
+	/**Recorder for operation latencies and lock waits, or null (the default)
+	 * when metrics are disabled.*/
+	volatile MapMetrics metrics = null;
+	/**Name this is registered under with the platform MBean server, if any.*/
+	private ObjectName mbeanName = null;
+	
+	/**Codec for compressed values.  Null until compression is enabled or a
+	 * persisted dictionary is loaded.*/
+	volatile LZCompressor valCodec = null;
+	private static final LZCompressor plainCodec = new LZCompressor();
+	/**Whether newly written values should be compressed.*/
+	volatile boolean compressValues = false;
+	/**The compression dictionary of an in-memory map, which has nowhere to
+	 * persist it.*/
+	private byte[] memoryDictionary = null;
 	
+	/**Opens or creates the map stored in the given folder.  If the folder is
+	 * null, the map is instead held in anonymous memory (see MMapper), with
+	 * the same layout, and is discarded on close; this avoids the page cache
+	 * and writeback for maps that need not outlive the process.*/
 	public ADiskMap(String baseFolderLoc, long primaryFileLen){
+		this(baseFolderLoc, primaryFileLen, MapperFactory.MMAP);
+	}
+	/**As above, serving the files through the given factory's mappers.*/
+	public ADiskMap(String baseFolderLoc, long primaryFileLen, MapperFactory mappers){
+		this.readOnly = mappers.isReadOnly();
 		try {
-			final File baseFolder = new File(baseFolderLoc);
-			baseFolder.mkdirs();
-			this.baseFolderLoc = baseFolder.getCanonicalPath();
-			
-			final String primaryLoc = this.baseFolderLoc + File.separator + primaryFileName;
-			final String secondaryLoc = this.baseFolderLoc + File.separator + secondaryFileName;
-			final File primFile = new File(primaryLoc);
-			final File secFile = new File(secondaryLoc);
-			final long primFileLen = Math.max(primaryFileLen, primFile.length());
-			final long secFileLen = Math.max(defaultFileLength, secFile.length());
+			final String primaryLoc, secondaryLoc;
+			if(baseFolderLoc == null){
+				this.baseFolderLoc = null;
+				primaryLoc = secondaryLoc = null;
+			} else {
+				final File baseFolder = new File(baseFolderLoc);
+				if(!readOnly) baseFolder.mkdirs();
+				this.baseFolderLoc = baseFolder.getCanonicalPath();
+				primaryLoc = this.baseFolderLoc + File.separator + primaryFileName;
+				secondaryLoc = this.baseFolderLoc + File.separator + secondaryFileName;
+			}
+			final long primExisting = primaryLoc == null ? 0 : new File(primaryLoc).length();
+			final long secExisting = secondaryLoc == null ? 0 : new File(secondaryLoc).length();
+			final long primFileLen = Math.max(Math.max(primaryFileLen, idxToPos(nLocks)), primExisting);
+			final long secFileLen = Math.max(defaultFileLength, secExisting);
 			
-			primaryMapper = new MMapper(primaryLoc, primFileLen);
-			secondaryMapper = new MMapper(secondaryLoc, secFileLen);
+			primaryMapper = mappers.openPrimary(primaryLoc, primFileLen);
+			secondaryMapper = mappers.openSecondary(secondaryLoc, secFileLen);
 			readHeader();
+			minTableLength = Math.min(tableLength, Math.max(nLocks, primaryFileLen / idxToPos(1)));
+			
+			final long primaryNeeded = primaryBytesNeeded(rehashComplete.get());
+			if(primaryMapper.size() < primaryNeeded){
+				if(readOnly) throw new IllegalStateException("Primary is shorter than the header requires; was the map closed?");
+				primaryMapper.remap(primaryNeeded);
+			}
+			
+			final byte[] dictionary = readDictionary();
+			if(dictionary != null){
+				valCodec = new LZCompressor(dictionary);
+				compressValues = true;
+			}
 		} catch (Exception e){
 			throw new RuntimeException(e);
 		}
 	}
+	
+	private String dictionaryLoc(){
+		return baseFolderLoc + File.separator + dictionaryFileName;
+	}
+	
+	/**Whether this map is held only in memory, rather than in files.*/
+	public boolean isInMemory(){
+		return baseFolderLoc == null;
+	}
+	
+	public boolean isReadOnly(){
+		return readOnly;
+	}
+	
+	/**Throws if the map was opened read-only.  Called first by every
+	 * operation that could write to the files.*/
+	protected final void checkWritable(){
+		if(readOnly) throw new UnsupportedOperationException("Map is open read-only");
+	}
+	
+	/**Returns the persisted compression dictionary, or null if there is none.*/
+	private byte[] readDictionary() throws IOException {
+		if(isInMemory()) return memoryDictionary;
+		final File dictFile = new File(dictionaryLoc());
+		if(!dictFile.exists()) return null;
+		final RandomAccessFile f = new RandomAccessFile(dictFile, "r");
+		try {
+			final byte[] out = new byte[(int)f.length()];
+			f.readFully(out);
+			return out;
+		} finally {
+			f.close();
+		}
+	}
+	
+	/**Compresses values written from now on, optionally priming the codec
+	 * with a dictionary (see LZCompressor.trainDictionary).  Compressed and
+	 * uncompressed values coexist, so this may be called on a populated map.
+	 * A dictionary is persisted with the map and is needed to read any value
+	 * compressed with it, so once written it cannot be changed; passing null
+	 * reuses the persisted dictionary if there is one.*/
+	public synchronized void enableValueCompression(byte[] dictionary){
+		checkWritable();
+		try {
+			final byte[] existing = readDictionary();
+			if(dictionary == null || dictionary.length == 0){
+				dictionary = existing;
+			} else if(existing != null){
+				if(!Arrays.equals(existing, dictionary))
+					throw new IllegalStateException("Map already has a different compression dictionary");
+			} else if(isInMemory()){
+				memoryDictionary = dictionary;
+			} else {
+				final FileOutputStream out = new FileOutputStream(dictionaryLoc());
+				try {
+					out.write(dictionary);
+				} finally {
+					out.close();
+				}
+			}
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+		valCodec = new LZCompressor(dictionary);
+		compressValues = true;
+	}
+	
+	/**Stops compressing newly written values.  Existing compressed values
+	 * remain readable.*/
+	public void disableValueCompression(){
+		compressValues = false;
+	}
+	
+	/**Returns the compressed form of v, or null if compression is disabled or
+	 * would not save space.*/
+	protected byte[] compressVal(byte[] v){
+		if(!compressValues || v.length < minCompressedValLength) return null;
+		final byte[] out = valCodec.compress(v);
+		return out.length < v.length ? out : null;
+	}
+	
+	protected byte[] decompressVal(byte[] stored){
+		final LZCompressor codec = valCodec;
+		//If no codec was ever configured, no dictionary was used either
+		return (codec == null ? plainCodec : codec).decompress(stored);
+	}
+	
+	/**Encodes a counter value for addAndGet(), in native byte order (as
+	 * LongSerde does).*/
+	@SuppressWarnings("restriction")
+	protected static byte[] counterBytes(long v){
+		final byte[] out = new byte[8];
+		MMapper.getUnsafe().putLong(out, MMapper.getByteArrayOffset(), v);
+		return out;
+	}
+	/**Decodes a value written by counterBytes().*/
+	@SuppressWarnings("restriction")
+	protected static long counterValue(byte[] v){
+		return MMapper.getUnsafe().getLong(v, MMapper.getByteArrayOffset());
+	}
 		
 	/**Should only be called in constructor. Loads table metadata from the
 	 * secondary, or initializes to default state if metadata is blank.*/
@@ -77,16 +274,31 @@ public abstract class ADiskMap implements Closeable, IDiskMap {
 			secondaryMapper.putLong(16, secondaryWritePos.get());
 			secondaryMapper.putLong(24, rehashComplete.get());
 		} finally {
-			secondaryLock.writeLock().lock();
+			secondaryLock.writeLock().unlock();
 		}
 	}
 	
+	/**Rounds a requested primary length in bytes up to a power of 2, or
+	 * returns the default length if none (0) was requested.  The constructor
+	 * further ensures there is at least one bucket per stripe.*/
 	protected static long nextPowerOf2(long i){
-		if(i < (1<<28)) return (1<<28);
+		if(i <= 0) return defaultFileLength;
 		if((i & (i-1))==0) return i;
-		return (1 << (64 - (Long.numberOfLeadingZeros(i))));
+		return (1L << (64 - (Long.numberOfLeadingZeros(i))));
 	}
 	
+	/**Returns the smallest table length (a power of 2, and at least one
+	 * bucket per stripe) that holds the given number of entries under the
+	 * load threshold, given the number of records load() counts per bucket.*/
+	protected static long tableLengthFor(long entries, int recordsPerIdx){
+		long len = nLocks;
+		while(entries > len * recordsPerIdx * loadRehashThreshold) len *= 2;
+		return len;
+	}
+	
+	/**Byte offset of the given bucket index in the primary.*/
+	protected abstract long idxToPos(long idx);
+	
 	/**Returns the lock for the stripe for the given hash.  Synchronize of this
 	 * object before mutating the map.*/
 	protected Object lockForHash(long hash){
@@ -103,14 +315,17 @@ public abstract class ADiskMap implements Closeable, IDiskMap {
 				: hash & (tableLength - 1);
 	}
 	
-	/**Recursively locks all stripes, and doubles the size of the primary mapper.
-	 * On Linux your filesystem probably makes this expansion a sparse operation.*/
+	/**Recursively locks all stripes, and doubles the table length once every
+	 * stripe has been rehashed.  The primary is then doubled so that it can
+	 * hold the next round of rehashing; on Linux your filesystem probably
+	 * makes this expansion a sparse operation.*/
 	protected void completeExpansion(int idx){
 		if(idx == nLocks){
 			try {
-				primaryMapper.doubleLength();
-				rehashComplete.set(0);
 				tableLength *= 2;
+				rehashComplete.set(0);
+				final long needed = primaryBytesNeeded(0);
+				if(needed != primaryMapper.size()) primaryMapper.remap(needed);
 			} catch(Exception e){
 				throw new RuntimeException(e);
 			}
@@ -121,35 +336,234 @@ public abstract class ADiskMap implements Closeable, IDiskMap {
 		}
 	}
 	
-	/**Perform incremental rehashing to keep the load under the threshold.*/
+	/**Perform incremental rehashing to keep the load under the threshold.
+	 * Only one thread rehashes at a time; others carry on without waiting, so
+	 * the load may briefly overshoot.  Each stripe is rehashed and marked
+	 * complete under its own lock, so readers of a stripe always see it either
+	 * entirely before or entirely after its rehash.*/
 	protected void rehash(){
-		while(load() > loadRehashThreshold) {
-			//If we've completed all rehashing, we need to expand the table & reset
-			//the counters.
-			if(rehashComplete.compareAndSet(nLocks, nLocks+1)){
-				completeExpansion(0);
-				return;
+		if(!rehashLock.tryLock()) return;
+		try {
+			while(load() > maxLoad()) {
+				final int stripe = (int)rehashComplete.get();
+				//If we've completed all rehashing, we need to expand the table & reset
+				//the counters.
+				if(stripe == nLocks){
+					completeExpansion(0);
+					continue;
+				}
+				rehashStripe(stripe);
 			}
-			
-			//Otherwise, we attempt to grab the next index to process
-			long stripeToRehash;
-			while(true){
-				stripeToRehash = rehashComplete.getAndIncrement();
-				//If it's in the valid table range, we conceptually acquired a valid ticket
-				if(stripeToRehash < nLocks) break;
-				//Otherwise we're in the middle of a reset - spin until it has completed.
-				while(rehashComplete.get() >= nLocks) {
-					Thread.yield();
-					if(load() < loadRehashThreshold) return;
+		} finally {
+			rehashLock.unlock();
+		}
+	}
+	
+	/**Rehashes every bucket of the given stripe into the doubled table, and
+	 * marks it complete.  Called with the rehashLock held.*/
+	private void rehashStripe(int stripe){
+		final long needed = primaryBytesNeeded(stripe + 1);
+		if(needed > primaryMapper.size()) remapPrimary(0, needed);
+		synchronized(locks[stripe]){
+			for(long idx = stripe; idx < tableLength; idx+=nLocks){
+				rehashIdx(idx);
+			}
+			rehashComplete.set(stripe + 1);
+			rehashSteps.incrementAndGet();
+		}
+	}
+	
+	/**Recursively locks all stripes, and remaps the primary to the given
+	 * length.*/
+	private void remapPrimary(int idx, long len){
+		if(idx == nLocks){
+			try {
+				primaryMapper.remap(len);
+			} catch(Exception e){
+				throw new RuntimeException(e);
+			}
+		} else {
+			synchronized(locks[idx]){
+				remapPrimary(idx+1, len);
+			}
+		}
+	}
+	
+	/**Bytes of primary needed once the given number of stripes have been
+	 * rehashed into the doubled table.  Rehashing moves records from idx to
+	 * idx + tableLength, so by default the primary always has room for twice
+	 * the current table, whatever the progress.*/
+	protected long primaryBytesNeeded(long stripesRehashed){
+		return idxToPos(2 * tableLength);
+	}
+	
+	/**Rehashes, regardless of load, until the given stripe is laid out for a
+	 * table longer than observedLength.  For implementations whose stripes
+	 * can fill before the table as a whole is loaded enough to rehash.  Must
+	 * be called without holding any stripe lock.*/
+	protected void rehashStripeNow(int stripe, long observedLength){
+		rehashLock.lock();
+		try {
+			while((stripe < rehashComplete.get() ? tableLength * 2 : tableLength) <= observedLength){
+				final int next = (int)rehashComplete.get();
+				if(next == nLocks) completeExpansion(0);
+				else rehashStripe(next);
+			}
+		} finally {
+			rehashLock.unlock();
+		}
+	}
+	
+	/**Presizes the map for the given total number of entries, with keys and
+	 * values of the given average length, so that loading them needs no
+	 * further rehashing of the table or remapping of either file.  An empty
+	 * table is resized in place; a populated one is rehashed up to the
+	 * required length before this returns.  The table will not later
+	 * contract below the reserved length.*/
+	public void reserve(long expectedEntries, int avgKeyBytes, int avgValBytes){
+		reserve(expectedEntries, avgKeyBytes, avgValBytes, false);
+	}
+	
+	/**As reserve(), but if preallocate is set, newly reserved file space is
+	 * written out so that the filesystem allocates it up front rather than
+	 * sparsely (and possibly fragmented) as it is first touched.*/
+	public void reserve(long expectedEntries, int avgKeyBytes, int avgValBytes, boolean preallocate){
+		checkWritable();
+		if(expectedEntries < 0 || avgKeyBytes < 0 || avgValBytes < 0)
+			throw new IllegalArgumentException("Negative reservation");
+		final long target = tableLengthFor(expectedEntries, recordsPerIdx());
+		rehashLock.lock();
+		try {
+			if(target > minTableLength) minTableLength = target;
+			if(tableLength < target && !resizeEmpty(0, target, preallocate)){
+				while(tableLength < target){
+					final int stripe = (int)rehashComplete.get();
+					if(stripe == nLocks) completeExpansion(0);
+					else rehashStripe(stripe);
 				}
 			}
-			//We now have a valid ticket - we rehash all the indexes in the given stripe
-			synchronized(lockForHash(stripeToRehash)){
-				for(long idx = stripeToRehash; idx < tableLength; idx+=nLocks){
-					rehashIdx(idx);
+		} finally {
+			rehashLock.unlock();
+		}
+		final long remaining = Math.max(0, expectedEntries - size());
+		reserveSecondary(remaining * secondaryBytesFor(avgKeyBytes, avgValBytes), preallocate);
+	}
+	
+	/**Recursively locks all stripes, and if nothing has ever been written to
+	 * the table (so the primary is entirely zero), sets its length directly.
+	 * Returns false, changing nothing, otherwise.*/
+	private boolean resizeEmpty(int idx, long target, boolean preallocate){
+		if(idx == nLocks){
+			if(size() != 0 || rehashComplete.get() != 0 || secondaryWritePos.get() != getHeaderSize()) return false;
+			try {
+				tableLength = target;
+				primaryMapper.remap(primaryBytesNeeded(0), preallocate);
+			} catch(Exception e){
+				throw new RuntimeException(e);
+			}
+			return true;
+		} else {
+			synchronized(locks[idx]){
+				return resizeEmpty(idx+1, target, preallocate);
+			}
+		}
+	}
+	
+	/**Ensures the secondary can hold the given number of bytes beyond the
+	 * current write position without remapping.*/
+	private void reserveSecondary(long bytes, boolean preallocate){
+		secondaryLock.writeLock().lock();
+		try {
+			final long needed = secondaryWritePos.get() + bytes;
+			if(needed >= secondaryMapper.size()) secondaryMapper.remap(needed + 1, preallocate);
+		} catch(Exception e){
+			throw new RuntimeException(e);
+		} finally {
+			secondaryLock.writeLock().unlock();
+		}
+	}
+	
+	/**Number of records load() counts per bucket index.*/
+	protected int recordsPerIdx(){ return 1; }
+	
+	/**Load above which the table is expanded.*/
+	protected double maxLoad(){ return loadRehashThreshold; }
+	
+	/**Whether the given stripe, which has been rehashed into the doubled
+	 * table, can be merged back into the current one.  Called by shrink()
+	 * under the stripe's lock; if false, contraction stops there for now.*/
+	protected boolean canMerge(int stripe){ return true; }
+	
+	/**Approximate bytes of secondary used per record with the given key and
+	 * value lengths, for reserve().*/
+	protected abstract long secondaryBytesFor(int keyBytes, int valBytes);
+	
+	/**Enables contraction of the table once its load falls below the given
+	 * threshold, which must be under half the expansion threshold so that a
+	 * contracted table does not immediately expand again.  0 disables it,
+	 * which is the default.  The table never contracts below the length
+	 * requested at construction.*/
+	public void setShrinkThreshold(double threshold){
+		if(threshold < 0 || threshold >= maxLoad() / 2)
+			throw new IllegalArgumentException("Shrink threshold must be in [0, " + maxLoad() / 2 + ")");
+		loadShrinkThreshold = threshold;
+	}
+	
+	/**Called after removals; contracts the table if it is enabled and the
+	 * load is low enough.*/
+	protected void maybeShrink(){
+		final double threshold = loadShrinkThreshold;
+		if(threshold > 0 && load() < threshold) shrink();
+	}
+	
+	/**Recursively locks all stripes, and halves the table length, marking
+	 * every stripe as still rehashed into the old length so that the data
+	 * need not move.  The primary's upper half, which is empty, is then
+	 * truncated.*/
+	protected void beginContraction(int idx){
+		if(idx == nLocks){
+			try {
+				tableLength /= 2;
+				rehashComplete.set(nLocks);
+				final long needed = primaryBytesNeeded(nLocks);
+				if(needed != primaryMapper.size()) primaryMapper.remap(needed);
+			} catch(Exception e){
+				throw new RuntimeException(e);
+			}
+		} else {
+			synchronized(locks[idx]){
+				beginContraction(idx+1);
+			}
+		}
+	}
+	
+	/**Perform incremental contraction while the load is under the shrink
+	 * threshold: the reverse of rehash(), merging the rehashed stripes from
+	 * the highest down, each under its own lock.*/
+	protected void shrink(){
+		if(!rehashLock.tryLock()) return;
+		try {
+			while(load() < loadShrinkThreshold) {
+				final int stripe = (int)rehashComplete.get();
+				if(stripe == 0){
+					if(tableLength <= minTableLength) return;
+					beginContraction(0);
+					continue;
+				}
+				synchronized(locks[stripe - 1]){
+					if(!canMerge(stripe - 1)) return;
+					for(long idx = stripe - 1; idx < tableLength; idx+=nLocks){
+						mergeIdx(idx);
+					}
+					rehashComplete.set(stripe - 1);
+					mergeSteps.incrementAndGet();
 				}
+				final long needed = primaryBytesNeeded(stripe - 1);
+				if(needed < primaryMapper.size()) remapPrimary(0, needed);
 			}
-		}		
+		} finally {
+			rehashLock.unlock();
+		}
 	}
 	
 	/**Allocates the given amount of space in secondary storage, and returns a
@@ -183,10 +597,39 @@ public abstract class ADiskMap implements Closeable, IDiskMap {
 		return allocateSecondary(size);
 	}
 	
+	/**Allocates space for record data, preferring an extent released by
+	 * freeSecondary of up to twice the requested size.  Unlike
+	 * allocateSecondary, the space returned may not be zeroed.*/
+	protected long allocateData(long size){
+		if(!freeExtents.isEmpty()){
+			for(final ConcurrentLinkedQueue<Long> q : freeExtents.subMap(size, true, size * 2, true).values()){
+				final Long pos = q.poll();
+				if(pos != null) return pos.longValue();
+			}
+		}
+		return allocateSecondary(size);
+	}
+	
+	/**Makes the given extent of secondary available for reuse by allocateData.
+	 * The caller must ensure nothing will read the extent's old contents,
+	 * typically by freeing it under the stripe lock that unlinked it.*/
+	protected void freeSecondary(long pos, long length){
+		ConcurrentLinkedQueue<Long> q = freeExtents.get(length);
+		if(q == null){
+			final ConcurrentLinkedQueue<Long> nq = new ConcurrentLinkedQueue<Long>();
+			q = freeExtents.putIfAbsent(length, nq);
+			if(q == null) q = nq;
+		}
+		q.add(pos);
+	}
+	
 	/**Because all records in a bucket hash to their position or position + tableLength,
 	 * we can incrementally rehash one bucket at a time.
 	 * This does not need to acquire a lock; the calling rehash() method handles it.*/
 	protected abstract void rehashIdx(long idx);
+	/**The reverse of rehashIdx: moves all records at idx + tableLength to
+	 * idx, leaving the former empty.  Called by shrink() under the lock.*/
+	protected abstract void mergeIdx(long idx);
 	
 	private void clear(int i){
 		if(i==nLocks){
@@ -196,6 +639,8 @@ public abstract class ADiskMap implements Closeable, IDiskMap {
 				this.secondaryWritePos.set(getHeaderSize());
 				this.size.set(0);
 				this.rehashComplete.set(0);
+				this.freeExtents.clear();
+				cleared();
 			} finally {
 				this.secondaryLock.writeLock().unlock();
 			}
@@ -205,27 +650,42 @@ public abstract class ADiskMap implements Closeable, IDiskMap {
 			}
 		}
 	}
+	/**Called by clear() while holding every lock, so that subclasses can
+	 * reset their own state.*/
+	protected void cleared(){}
+	
 	/**Removes all entries from the map, zeroing the primary file and marking
 	 * the current position in the secondary as immediately after the header.
 	 * Data is not actually removed from the secondary, but it will be
 	 * overwritten on subsequent writes.*/
-	public void clear(){ clear(0); }
+	public void clear(){
+		checkWritable();
+		clear(0);
+	}
 	
-	/**Writes all header metadata and unmaps the backing mmap'd files.*/
+	/**Writes all header metadata and unmaps the backing mmap'd files.  A
+	 * read-only map has nothing to write.*/
 	@Override
 	public void close() throws IOException {
-		writeHeader();
+		unregisterMBean();
+		if(!readOnly) writeHeader();
 		primaryMapper.close();
 		secondaryMapper.close();
 	}
 	
-	/**Removes the associated data files, and base folder if it is empty.*/
+	/**Removes the associated data files, and base folder if it is empty.
+	 * For an in-memory map, this only releases the memory.  A read-only map
+	 * cannot be deleted, since other processes may be reading it.*/
 	public void delete() throws IOException {
+		checkWritable();
+		unregisterMBean();
 		primaryMapper.close();
 		secondaryMapper.close();
+		if(isInMemory()) return;
 		
 		new File(primaryMapper.getLocation()).delete();
 		new File(secondaryMapper.getLocation()).delete();
+		new File(dictionaryLoc()).delete();
 		new File(this.baseFolderLoc).delete();
 	}
 	
@@ -243,4 +703,384 @@ public abstract class ADiskMap implements Closeable, IDiskMap {
 	public boolean containsKey(byte[] k){
 		return get(k) != null;
 	};
+	
+	/**Starts recording operation latencies and stripe lock waits, which are
+	 * then included in getStats().  While disabled, the only cost to each
+	 * operation is a read of a volatile field.*/
+	public void enableMetrics(){
+		if(metrics == null) metrics = new MapMetrics(nLocks);
+	}
+	/**Stops recording and discards any recorded metrics.*/
+	public void disableMetrics(){
+		metrics = null;
+	}
+	
+	/**Returns the start time to pass to lockAcquired and opDone, or 0 if
+	 * metrics are disabled.  Called just before taking the stripe lock.*/
+	protected final long opStart(){
+		return metrics == null ? 0 : System.nanoTime();
+	}
+	/**Called first thing under the stripe lock for the given hash.*/
+	protected final void lockAcquired(long hash, long start){
+		if(start == 0) return;
+		final MapMetrics m = metrics;
+		if(m != null) m.recordLockWait((int)(hash & (nLocks - 1)), System.nanoTime() - start);
+	}
+	/**Called when the operation is done, before releasing the lock.*/
+	protected final void opDone(Op op, long start){
+		if(start == 0) return;
+		final MapMetrics m = metrics;
+		if(m != null) m.recordOp(op, System.nanoTime() - start);
+	}
+	
+	/**Returns a snapshot of the table's state, and of operation metrics if
+	 * enabled.  If scan is set, this also visits every bucket, a stripe at a
+	 * time under its lock, to measure chain lengths and live data; this costs
+	 * about as much as iterating over the map.*/
+	public MapStats getStats(boolean scan){
+		final MapStats out = new MapStats();
+		out.size = size();
+		out.tableLength = tableLength;
+		out.rehashedStripes = rehashComplete.get();
+		out.load = load();
+		out.rehashSteps = rehashSteps.get();
+		out.mergeSteps = mergeSteps.get();
+		out.primaryBytes = primaryMapper.size();
+		out.secondaryBytes = secondaryMapper.size();
+		out.secondaryUsedBytes = secondaryWritePos.get();
+		long free = 0;
+		for(final Map.Entry<Long, ConcurrentLinkedQueue<Long>> e : freeExtents.entrySet()){
+			free += e.getKey() * e.getValue().size();
+		}
+		out.freeExtentBytes = free;
+		out.primaryRemaps = primaryMapper.getRemapCount();
+		out.secondaryRemaps = secondaryMapper.getRemapCount();
+		if(primaryMapper instanceof BufferedFileMapper){
+			out.primaryCacheHits = ((BufferedFileMapper)primaryMapper).getHits();
+			out.primaryCacheMisses = ((BufferedFileMapper)primaryMapper).getMisses();
+		}
+		if(secondaryMapper instanceof BufferedFileMapper){
+			out.secondaryCacheHits = ((BufferedFileMapper)secondaryMapper).getHits();
+			out.secondaryCacheMisses = ((BufferedFileMapper)secondaryMapper).getMisses();
+		}
+		out.readPageFaults();
+		final MapMetrics m = metrics;
+		if(m != null) out.readMetrics(m);
+		if(scan){
+			out.chainLengths = new long[64];
+			out.liveBytes = 0;
+			for(int stripe=0; stripe<nLocks; stripe++){
+				synchronized(locks[stripe]){
+					final long limit = stripe < rehashComplete.get() ? tableLength * 2 : tableLength;
+					for(long idx = stripe; idx < limit; idx += nLocks) scanIdx(idx, out);
+				}
+			}
+		}
+		return out;
+	}
+	
+	/**Adds the chain at the given bucket index to the stats' chainLengths
+	 * and liveBytes.  Called under the lock for the bucket's stripe.*/
+	protected abstract void scanIdx(long idx, MapStats stats);
+	
+	/**Registers a DiskMapMXBean for this map with the platform MBean server,
+	 * under com.nyeggen.lash:type=DiskMap,name=(the given name).  It is
+	 * unregistered on close() or delete().*/
+	public synchronized void registerMBean(String name){
+		try {
+			unregisterMBean();
+			final ObjectName on = new ObjectName("com.nyeggen.lash:type=DiskMap,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new DiskMapMBean(new Supplier<MapStats>() {
+				@Override
+				public MapStats get() {
+					return getStats(false);
+				}
+			}), on);
+			mbeanName = on;
+		} catch(Exception e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public synchronized void unregisterMBean(){
+		if(mbeanName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch(Exception e){
+			throw new RuntimeException(e);
+		} finally {
+			mbeanName = null;
+		}
+	}
+	
+	/**Checks the map's structure: the header against the files, and at every
+	 * active bucket index, that record and chain pointers lie within the
+	 * secondary (and below its write position), that chains have no cycles,
+	 * and that each record's stored hash matches its key and places it at
+	 * that index.  The records found are then recounted against size().
+	 * Stripes are checked in parallel on the given number of threads, each
+	 * under its lock, so this can be run on a map in use.*/
+	public VerifyReport verify(int threads){
+		return check(threads, null);
+	}
+	
+	/**Copies every intact record into target, with putIfAbsent so that a
+	 * record found twice is copied once.  This checks the map as verify()
+	 * does, but visits every bucket index in the primary, whether or not the
+	 * header marks it active, so that it can recover records from a map whose
+	 * header is stale or damaged.  Records whose pointers are out of bounds
+	 * or whose hash does not match their key are skipped; misplaced ones are
+	 * copied.  The size is not recounted.*/
+	public VerifyReport salvageInto(IDiskMap target, int threads){
+		return check(threads, target);
+	}
+	
+	private VerifyReport check(int threads, final IDiskMap target){
+		final VerifyReport report = new VerifyReport();
+		for(final String problem : checkHeader(size(), tableLength, secondaryWritePos.get(), rehashComplete.get(),
+		                                       primaryMapper.size(), secondaryMapper.size(), idxToPos(1), getHeaderSize(),
+		                                       primaryBytesNeeded(0) / idxToPos(tableLength))){
+			report.error(problem);
+		}
+		final long primaryLen = primaryMapper.size();
+		//Bucket indexes need not be laid out in order, so every index up to
+		//the next table length is tried against the primary's length
+		final long allIdx = Long.highestOneBit(primaryLen / idxToPos(1) - 1) * 2;
+		final ExecutorService exec = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futures = new ArrayList<Future<?>>(nLocks);
+			for(int i=0; i<nLocks; i++){
+				final int stripe = i;
+				futures.add(exec.submit(new Runnable() {
+					@Override
+					public void run() {
+						synchronized(locks[stripe]){
+							final long active = stripe < rehashComplete.get() ? tableLength * 2 : tableLength;
+							final long limit = target == null ? Math.min(active, allIdx) : allIdx;
+							for(long idx = stripe; idx < limit; idx += nLocks){
+								if(idxToPos(idx + 1) <= primaryLen) checkIdx(idx, report, target);
+							}
+						}
+					}
+				}));
+			}
+			for(final Future<?> f : futures) f.get();
+		} catch(InterruptedException | ExecutionException e){
+			throw new RuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+		if(target == null && report.getRecords() != size()){
+			report.error("Header size is " + size() + ", but " + report.getRecords() + " records were found");
+		}
+		return report;
+	}
+	
+	/**Returns descriptions of any inconsistencies between the given header
+	 * fields and the lengths of the files, given the bytes of primary per
+	 * bucket index and the header's size.  A header of all zeroes is that of
+	 * a new map.*/
+	static List<String> checkHeader(long size, long tableLength, long writePos, long rehashComplete,
+	                                long primaryLen, long secondaryLen, long idxBytes, long headerSize){
+		return checkHeader(size, tableLength, writePos, rehashComplete, primaryLen, secondaryLen, idxBytes, headerSize, 2);
+	}
+	
+	/**As above, for a map whose primary holds at least the given number of
+	 * copies of the table (2 unless it grows linearly).*/
+	static List<String> checkHeader(long size, long tableLength, long writePos, long rehashComplete,
+	                                long primaryLen, long secondaryLen, long idxBytes, long headerSize, long primaryTables){
+		final List<String> out = new ArrayList<String>();
+		if(size < 0) out.add("Header size " + size + " is negative");
+		if(tableLength != 0){
+			if(tableLength < nLocks || (tableLength & (tableLength - 1)) != 0){
+				out.add("Header table length " + tableLength + " is not a power of 2 of at least " + nLocks);
+			} else if(tableLength > primaryLen / idxBytes / primaryTables){
+				out.add("Header table length " + tableLength + " needs a primary of " + (tableLength * idxBytes * primaryTables)
+						+ " bytes, but it is " + primaryLen);
+			}
+		}
+		if(rehashComplete < 0 || rehashComplete > nLocks){
+			out.add("Header rehash progress " + rehashComplete + " is not a stripe count");
+		}
+		if(writePos != 0 && (writePos < headerSize || writePos > secondaryLen)){
+			out.add("Header write position " + writePos + " is outside the secondary, of " + secondaryLen + " bytes");
+		}
+		return out;
+	}
+	
+	/**Checks the chain at the given bucket index, as described by verify(),
+	 * adding problems and intact records to the report, and copying the
+	 * records into target (with putIfAbsent) if it is non-null.  Called under
+	 * the lock for the bucket's stripe.*/
+	protected abstract void checkIdx(long idx, VerifyReport report, IDiskMap target);
+	
+	/**Appends the entries stored at the given bucket index (including any
+	 * chained records or overflow buckets) to out.  Called under the lock for
+	 * the bucket's stripe.*/
+	protected abstract void readBucket(long idx, List<Map.Entry<byte[], byte[]>> out);
+	
+	/**Appends every entry whose hash is congruent to residue modulo baseLength
+	 * (a table length observed earlier, at least nLocks) to out.  Must be
+	 * called under the lock for the residue's stripe.  Rehashing only moves a
+	 * record between buckets of the same residue class, so reading a whole
+	 * class under its lock sees each of its keys exactly once regardless of
+	 * how far the table has grown or shrunk since baseLength was observed.*/
+	protected void readResidue(long residue, long baseLength, List<Map.Entry<byte[], byte[]>> out){
+		if(tableLength >= baseLength){
+			final long limit = (residue & (nLocks - 1)) < rehashComplete.get() ? tableLength * 2 : tableLength;
+			for(long idx = residue; idx < limit; idx += baseLength) readBucket(idx, out);
+		} else {
+			//The table has since shrunk, so the bucket is shared with other residues
+			final int start = out.size();
+			readBucket(idxForHash(residue), out);
+			int kept = start;
+			for(int i = start; i < out.size(); i++){
+				final Map.Entry<byte[], byte[]> e = out.get(i);
+				if((Hash.murmurHash(e.getKey()) & (baseLength - 1)) == residue) out.set(kept++, e);
+			}
+			out.subList(kept, out.size()).clear();
+		}
+	}
+	
+	/**Returns a weakly consistent iterator.  Each bucket's entries are read
+	 * under its stripe's lock, so the iterator is safe under concurrent
+	 * mutation and rehashing, never returns a key more than once, and returns
+	 * every key that was present throughout the iteration.  remove() and the
+	 * entries' setValue() write through to the map.*/
+	@Override
+	public Iterator<Map.Entry<byte[], byte[]>> iterator(){
+		final BucketSpliterator split = (BucketSpliterator)spliterator();
+		return new Iterator<Map.Entry<byte[],byte[]>>() {
+			Map.Entry<byte[], byte[]> last = null;
+			@Override
+			public boolean hasNext() {
+				return split.fill();
+			}
+			@Override
+			public Map.Entry<byte[], byte[]> next() {
+				if(!split.fill()) throw new NoSuchElementException();
+				last = split.buffer.get(split.bufferPos++);
+				return last;
+			}
+			@Override
+			public void remove() {
+				if(last == null) throw new IllegalStateException();
+				ADiskMap.this.remove(last.getKey());
+				last = null;
+			}
+		};
+	}
+	
+	/**Returns a Spliterator that splits by ranges of bucket indexes, for
+	 * parallel traversal, with the same consistency as the iterator.  It is
+	 * not SIZED: size() is only an estimate of what it will return, since it
+	 * still counts expired entries, which are skipped, and concurrent
+	 * mutation may change it.*/
+	@Override
+	public Spliterator<Map.Entry<byte[], byte[]>> spliterator(){
+		return new BucketSpliterator(0, tableLength, tableLength, size());
+	}
+	
+	/**A key-value pair read from the map.  setValue() writes through with
+	 * put().  Equality compares array contents.*/
+	protected class DiskMapEntry implements Map.Entry<byte[], byte[]> {
+		final byte[] k;
+		byte[] v;
+		
+		protected DiskMapEntry(byte[] k, byte[] v){
+			this.k = k;
+			this.v = v;
+		}
+		@Override
+		public byte[] getKey() { return k; }
+		@Override
+		public byte[] getValue() { return v; }
+		@Override
+		public byte[] setValue(byte[] newValue) {
+			final byte[] out = v;
+			put(k, newValue);
+			v = newValue;
+			return out;
+		}
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(k) ^ Arrays.hashCode(v);
+		}
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof DiskMapEntry)) return false;
+			final DiskMapEntry other = (DiskMapEntry) obj;
+			return Arrays.equals(k, other.k) && Arrays.equals(v, other.v);
+		}
+	}
+	
+	/**Traverses the residues [idx, end) of a table of the given length,
+	 * reading each one's buckets under its stripe lock (see readResidue).
+	 * Splits are aligned to multiples of nLocks, so that each half covers
+	 * whole runs of adjacent buckets.*/
+	protected class BucketSpliterator implements Spliterator<Map.Entry<byte[], byte[]>> {
+		final long baseLength;
+		long idx, end, est;
+		final List<Map.Entry<byte[], byte[]>> buffer = new ArrayList<Map.Entry<byte[], byte[]>>();
+		int bufferPos = 0;
+		
+		protected BucketSpliterator(long idx, long end, long baseLength, long est){
+			this.idx = idx;
+			this.end = end;
+			this.baseLength = baseLength;
+			this.est = est;
+		}
+		
+		/**Refills the buffer from the next residue with any entries, returning
+		 * false if the range is exhausted.*/
+		boolean fill(){
+			while(bufferPos >= buffer.size()){
+				if(idx >= end) return false;
+				buffer.clear();
+				bufferPos = 0;
+				if(readOnly) readResidue(idx, baseLength, buffer);
+				else synchronized(lockForHash(idx)){
+					readResidue(idx, baseLength, buffer);
+				}
+				idx++;
+			}
+			return true;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+			if(!fill()) return false;
+			action.accept(buffer.get(bufferPos++));
+			return true;
+		}
+		
+		@Override
+		public void forEachRemaining(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+			while(fill()){
+				while(bufferPos < buffer.size()) action.accept(buffer.get(bufferPos++));
+			}
+		}
+		
+		@Override
+		public Spliterator<Map.Entry<byte[], byte[]>> trySplit() {
+			final long mid = ((idx + end) >>> 1) & ~(long)(nLocks - 1);
+			if(mid <= idx || mid >= end) return null;
+			final long prefixEst = (long)(est * ((double)(mid - idx) / (end - idx)));
+			final BucketSpliterator prefix = new BucketSpliterator(idx, mid, baseLength, prefixEst);
+			idx = mid;
+			est -= prefixEst;
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return est;
+		}
+		
+		@Override
+		public int characteristics() {
+			return Spliterator.DISTINCT | Spliterator.NONNULL;
+		}
+	}
 }
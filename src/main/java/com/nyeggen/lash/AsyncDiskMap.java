@@ -0,0 +1,266 @@
+package com.nyeggen.lash;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import com.nyeggen.lash.util.Hash;
+
+/**Runs the operations of an IDiskMap on a dedicated pool of I/O threads, so
+ * that callers which must not block (such as event loops) are not held up
+ * by page faults on the map's files.  Each method returns at once with a
+ * CompletableFuture, completed on a pool thread.
+ * Operations are queued by the map's lock stripe, and a stripe's queue is
+ * drained by one pool thread at a time, in batches, so that pool threads do
+ * not contend for the same stripe lock and operations on a key complete in
+ * the order they were submitted.  At most maxPending operations may be
+ * queued or running; beyond that, the returned future fails at once with a
+ * RejectedExecutionException, leaving the caller to back off.
+ * Dependent stages attached without an executor run on the pool thread, and
+ * so should not block either.  Closing this does not close the map.*/
+public class AsyncDiskMap implements Closeable {
+	/**Operations a pool thread runs from one stripe before yielding to others.*/
+	static final int batchSize = 64;
+
+	private final IDiskMap map;
+	private final Executor executor;
+	/**The executor, if this created it and so must shut it down.*/
+	private final ExecutorService ownedExecutor;
+	private final StripeQueue[] queues = new StripeQueue[ADiskMap.nLocks];
+	private final int maxPending;
+	private final Semaphore permits;
+	private final AtomicInteger batches = new AtomicInteger(0);
+	private volatile boolean closed = false;
+
+	private static class StripeQueue {
+		final ConcurrentLinkedQueue<Task<?>> ops = new ConcurrentLinkedQueue<Task<?>>();
+		/**Set while a drain of this queue is submitted or running.*/
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+	}
+
+	private class Task<T> {
+		final Supplier<T> op;
+		final CompletableFuture<T> out = new CompletableFuture<T>();
+		Task(Supplier<T> op){
+			this.op = op;
+		}
+		//The permit is released first, so that dependent stages run by
+		//completing the future can themselves submit
+		void run(){
+			final T result;
+			try {
+				result = op.get();
+			} catch(Throwable t){
+				fail(t);
+				return;
+			}
+			permits.release();
+			out.complete(result);
+		}
+		void fail(Throwable t){
+			permits.release();
+			out.completeExceptionally(t);
+		}
+	}
+
+	/**Uses a pool of the given number of daemon threads.*/
+	public AsyncDiskMap(IDiskMap map, int threads, int maxPending){
+		this(map, Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "lash-io-" + n.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		}), maxPending, true);
+	}
+	/**Runs operations on the given executor, which the caller shuts down.
+	 * On a JDK with virtual threads, a virtual-thread-per-task executor
+	 * suits, since a stalled operation then ties up no platform thread.*/
+	public AsyncDiskMap(IDiskMap map, Executor executor, int maxPending){
+		this(map, executor, maxPending, false);
+	}
+	private AsyncDiskMap(IDiskMap map, Executor executor, int maxPending, boolean owned){
+		if(maxPending <= 0) throw new IllegalArgumentException("maxPending must be positive");
+		this.map = map;
+		this.executor = executor;
+		this.ownedExecutor = owned ? (ExecutorService)executor : null;
+		this.maxPending = maxPending;
+		this.permits = new Semaphore(maxPending);
+		for(int i=0; i<queues.length; i++) queues[i] = new StripeQueue();
+	}
+
+	public IDiskMap getMap(){
+		return map;
+	}
+
+	/**Number of operations queued or running.*/
+	public int pending(){
+		return maxPending - permits.availablePermits();
+	}
+
+	/**Number of batches run so far, each one or more operations on a
+	 * stripe.*/
+	public int getBatchCount(){
+		return batches.get();
+	}
+
+	public CompletableFuture<byte[]> getAsync(final byte[] k){
+		return submit(k, new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return map.get(k);
+			}
+		});
+	}
+	public CompletableFuture<Boolean> containsKeyAsync(final byte[] k){
+		return submit(k, new Supplier<Boolean>() {
+			@Override
+			public Boolean get() {
+				return map.containsKey(k);
+			}
+		});
+	}
+	public CompletableFuture<byte[]> putAsync(final byte[] k, final byte[] v){
+		return submit(k, new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return map.put(k, v);
+			}
+		});
+	}
+	public CompletableFuture<byte[]> putIfAbsentAsync(final byte[] k, final byte[] v){
+		return submit(k, new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return map.putIfAbsent(k, v);
+			}
+		});
+	}
+	public CompletableFuture<byte[]> removeAsync(final byte[] k){
+		return submit(k, new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return map.remove(k);
+			}
+		});
+	}
+	public CompletableFuture<Boolean> removeAsync(final byte[] k, final byte[] v){
+		return submit(k, new Supplier<Boolean>() {
+			@Override
+			public Boolean get() {
+				return map.remove(k, v);
+			}
+		});
+	}
+	public CompletableFuture<byte[]> replaceAsync(final byte[] k, final byte[] v){
+		return submit(k, new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return map.replace(k, v);
+			}
+		});
+	}
+	public CompletableFuture<Boolean> replaceAsync(final byte[] k, final byte[] prevVal, final byte[] newVal){
+		return submit(k, new Supplier<Boolean>() {
+			@Override
+			public Boolean get() {
+				return map.replace(k, prevVal, newVal);
+			}
+		});
+	}
+	public CompletableFuture<byte[]> computeAsync(final byte[] k, final BiFunction<? super byte[], ? super byte[], ? extends byte[]> f){
+		return submit(k, new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return map.compute(k, f);
+			}
+		});
+	}
+	public CompletableFuture<Long> addAndGetAsync(final byte[] k, final long delta){
+		return submit(k, new Supplier<Long>() {
+			@Override
+			public Long get() {
+				return map.addAndGet(k, delta);
+			}
+		});
+	}
+
+	private <T> CompletableFuture<T> submit(byte[] k, Supplier<T> op){
+		if(closed){
+			final CompletableFuture<T> out = new CompletableFuture<T>();
+			out.completeExceptionally(new RejectedExecutionException("Closed"));
+			return out;
+		}
+		if(!permits.tryAcquire()){
+			final CompletableFuture<T> out = new CompletableFuture<T>();
+			out.completeExceptionally(new RejectedExecutionException("More than " + maxPending + " operations pending"));
+			return out;
+		}
+		final Task<T> task = new Task<T>(op);
+		final StripeQueue q = queues[(int)(Hash.murmurHash(k) & (queues.length - 1))];
+		q.ops.add(task);
+		schedule(q);
+		return task.out;
+	}
+
+	/**Submits a drain of the queue, unless one is already submitted.*/
+	private void schedule(final StripeQueue q){
+		if(!q.scheduled.compareAndSet(false, true)) return;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain(q);
+				}
+			});
+		} catch(RejectedExecutionException e){
+			//Nothing will run the queue, so fail what it holds
+			for(Task<?> t; (t = q.ops.poll()) != null; ) t.fail(e);
+			q.scheduled.set(false);
+		}
+	}
+
+	/**Runs up to batchSize operations from the queue, then resubmits itself
+	 * if more remain, so that one busy stripe does not hold a thread.  Once
+	 * closed, runs the queue to the end instead, since the pool may no longer
+	 * accept work.*/
+	private void drain(StripeQueue q){
+		batches.incrementAndGet();
+		for(int i=0; i<batchSize || closed; i++){
+			final Task<?> t = q.ops.poll();
+			if(t == null) break;
+			t.run();
+		}
+		q.scheduled.set(false);
+		//An operation added after the last poll, but before the flag was
+		//cleared, found it set and did not schedule a drain
+		if(!q.ops.isEmpty()) schedule(q);
+	}
+
+	/**Stops accepting operations.  If this created its pool, waits for the
+	 * pending operations to finish and shuts the pool down.*/
+	@Override
+	public void close(){
+		closed = true;
+		if(ownedExecutor == null) return;
+		ownedExecutor.shutdown();
+		try {
+			ownedExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -1,17 +1,27 @@
 package com.nyeggen.lash;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 
 import com.nyeggen.lash.bucket.RecordPtr;
+import com.nyeggen.lash.stats.MapMetrics.Op;
+import com.nyeggen.lash.stats.MapStats;
 import com.nyeggen.lash.util.Hash;
 import com.nyeggen.lash.util.MMapper;
+import com.nyeggen.lash.util.MapperFactory;
 
 /**Each bucket is a multi-record mini-hash table that stores multiple pointers
  * into secondary.  If a bucket overflows, we chain to a second bucket of
@@ -30,12 +40,36 @@ public class BucketDiskMap extends ADiskMap {
 	//Alternately, we could store a pointer to a "free chain" in the header.
 	protected final ConcurrentLinkedQueue<Long> freeSecondaryBuckets = new ConcurrentLinkedQueue<Long>();
 	
+	/**Background expiry of entries with a TTL, or null if not running.*/
+	private ScheduledExecutorService sweeper = null;
+	
+	//Cache mode; see setCacheLimits.  Limits of 0 are unbounded.
+	private volatile long maxEntries = 0, maxBytes = 0;
+	private volatile boolean cacheMode = false;
+	private final AtomicLong evictions = new AtomicLong(0);
+	/**Secondary bytes used by live records, counted only for the stripes
+	 * whose flag in bytesTracked is set (under the stripe's lock).*/
+	private final AtomicLong liveBytes = new AtomicLong(0);
+	private final boolean[] bytesTracked = new boolean[nLocks];
+	
 	public BucketDiskMap(String baseFolderLoc){
 		this(baseFolderLoc, 0);
 	}
 	public BucketDiskMap(String baseFolderLoc, long primaryFileLen){
 		super(baseFolderLoc, nextPowerOf2(primaryFileLen));
 	}
+	/**Serves the files through the given factory's mappers, such as
+	 * MapperFactory.buffered() for explicit I/O in place of mmap, or
+	 * MapperFactory.READ_ONLY to serve a closed map to many processes.*/
+	public BucketDiskMap(String baseFolderLoc, long primaryFileLen, MapperFactory mappers){
+		super(baseFolderLoc, nextPowerOf2(primaryFileLen), mappers);
+	}
+	/**Creates (or opens) a map presized for the given number of entries, as
+	 * with reserve().*/
+	public BucketDiskMap(String baseFolderLoc, long expectedEntries, int avgKeyBytes, int avgValBytes){
+		this(baseFolderLoc, bucketByteSize * tableLengthFor(expectedEntries, recordsPerBucket));
+		reserve(expectedEntries, avgKeyBytes, avgValBytes);
+	}
 	
 	@Override
 	protected void readHeader(){
@@ -58,6 +92,15 @@ public class BucketDiskMap extends ADiskMap {
 	public double load() {
 		return super.load() / recordsPerBucket;
 	}
+	@Override
+	protected int recordsPerIdx() {
+		return recordsPerBucket;
+	}
+	//Record data only; overflow buckets are allocated as chains grow.
+	@Override
+	protected long secondaryBytesFor(int keyBytes, int valBytes) {
+		return keyBytes + valBytes;
+	}
 
 	protected long idxToPos(long idx){
 		return idx * bucketByteSize;
@@ -69,6 +112,8 @@ public class BucketDiskMap extends ADiskMap {
 	 * If we do not find the key, and there are no free positions, we may
 	 * only set the last bucket information.*/
 	protected static class SearchResult {
+		/**The bucket in primary at which the chain starts.*/
+		BucketView firstBucket;
 		/**Bucket in which the key was found, or null if it was not.*/
 		BucketView foundBucket = null;
 		/**Bucket sub-index at which the key was found, or -1 if it was not.*/
@@ -84,16 +129,24 @@ public class BucketDiskMap extends ADiskMap {
 		byte[] val = null;
 	}
 	
-	private byte[] getValIfMatch(RecordPtr recPtr, byte[] k){
-		final byte[] prospectiveK = recPtr.getKey(secondaryMapper);
-		return Arrays.equals(prospectiveK, k) ? recPtr.getVal(secondaryMapper) : null;
+	/**Reads the value the given pointer refers to, decompressing if needed.*/
+	protected byte[] readVal(RecordPtr recPtr){
+		final byte[] stored = recPtr.getVal(secondaryMapper);
+		return recPtr.isCompressed() ? decompressVal(stored) : stored;
 	}
 	
+	/**Called under the stripe lock when a key is newly inserted.  Subclasses
+	 * may override to maintain auxiliary structures.*/
+	protected void keyInserted(byte[] k){}
+	/**Called under the stripe lock when a key is removed.*/
+	protected void keyRemoved(byte[] k){}
+	
 	/**Runs a search over all buckets in a chain.*/
 	private SearchResult locateRecord(byte[] k, long hash){
 		final SearchResult out = new SearchResult();
 		final long idx = idxForHash(hash);
 		BucketView bucket = new BucketView(idx);
+		out.firstBucket = bucket;
 		
 		//Chain to next bucket
 		while(true){
@@ -173,250 +226,612 @@ public class BucketDiskMap extends ADiskMap {
 		overwriteChain(new BucketView(moveIdx), moveBuckets);
 	}
 
+	@Override
+	protected void mergeIdx(long idx) {
+		final BucketView moveBucket = new BucketView(idx + tableLength);
+		final List<RecordPtr> moving = moveBucket.getAllPointersInChain();
+		if(!moving.isEmpty()){
+			final BucketView keepBucket = new BucketView(idx);
+			final List<RecordPtr> merged = keepBucket.getAllPointersInChain();
+			merged.addAll(moving);
+			overwriteChain(keepBucket, merged);
+		}
+		if(!moving.isEmpty() || moveBucket.nextBucket() != null){
+			overwriteChain(moveBucket, new ArrayList<RecordPtr>(0));
+		}
+	}
+
 	@Override
 	public byte[] get(byte[] k) {
 		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
+		if(readOnly){
+			//Nothing can change the chain, so it is read without the lock
+			try {
+				return locateRecord(k, hash).val;
+			} finally {
+				opDone(Op.GET, start);
+			}
+		}
 		synchronized(lockForHash(hash)){
-			final SearchResult sr = locateRecord(k, hash);
-			return sr.val;
+			lockAcquired(hash, start);
+			try {
+				final SearchResult sr = locateRecord(k, hash);
+				return sr.val;
+			} finally {
+				opDone(Op.GET, start);
+			}
 		}
 	}
 	
 	@Override
 	public byte[] put(byte[] k, byte[] v) {
+		return put(k, v, 0);
+	}
+	
+	/**As put(), but the entry expires after the given time to live.  Expired
+	 * entries are removed lazily when next looked up, or by the sweeper (see
+	 * startExpirySweeper), and count towards size() until then.  Writing the
+	 * key with plain put() clears the expiry; replace, compute and addAndGet
+	 * keep it.*/
+	public byte[] put(byte[] k, byte[] v, long ttl, TimeUnit unit) {
+		return put(k, v, expiryFor(ttl, unit));
+	}
+	
+	/**As putIfAbsent(), but a newly inserted entry expires after the given
+	 * time to live, as with put(k, v, ttl, unit).*/
+	public byte[] putIfAbsent(byte[] k, byte[] v, long ttl, TimeUnit unit) {
+		return putIfAbsent(k, v, expiryFor(ttl, unit));
+	}
+	
+	private static long expiryFor(long ttl, TimeUnit unit){
+		if(ttl <= 0) throw new IllegalArgumentException("TTL must be positive");
+		return System.currentTimeMillis() + unit.toMillis(ttl);
+	}
+	
+	/**Inserts with the given expiry time, in milliseconds since the epoch, or
+	 * 0 for none.*/
+	private byte[] put(byte[] k, byte[] v, long expiresAt) {
+		checkWritable();
 		if(load() > loadRehashThreshold) rehash();
 		
 		final long hash = Hash.murmurHash(k);
-		final long dataPtr = writeKeyVal(k, v);
+		//Compress outside the lock; space is allocated under it, since an
+		//existing record's extent is reused if the new value fits.
+		final byte[] compressed = compressVal(v);
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final SearchResult sr = locateRecord(k, hash);
-			final RecordPtr toWrite = new RecordPtr(hash, dataPtr, k.length, v.length);
-			if(sr.val != null){
-				//Overwrite existing
-				sr.foundBucket.writeRecord(toWrite, sr.foundSubIdx);
-			} else if(sr.freeBucket != null){
-				//Write new, in the free position
-				sr.freeBucket.writeRecord(toWrite, sr.freeSubIdx);
-				size.incrementAndGet();
-			} else {
-				//Write new, in a new bucket
-				final RecordPtr recPtr = new RecordPtr(hash, dataPtr, k.length, v.length);
-				sr.lastBucket.allocateNextBucket().writeRecord(recPtr);
-				size.incrementAndGet();
+			lockAcquired(hash, start);
+			try {
+				final SearchResult sr = locateRecord(k, hash);
+				if(sr.val != null){
+					//Overwrite existing
+					final RecordPtr existing = sr.foundBucket.getPointer(sr.foundSubIdx);
+					final long oldExtent = existing.extentLength(secondaryMapper);
+					writeOver(sr, oldExtent, writeKeyVal(hash, k, v, compressed, expiresAt, existing));
+				} else insertNew(sr, k, writeKeyVal(hash, k, v, compressed, expiresAt, null));
+				return sr.val;
+			} finally {
+				opDone(Op.PUT, start);
 			}
-			return sr.val;
 		}
 	}
+	
+	/**Writes the pointer for a key that the search did not find, in the
+	 * first free position or else in a new bucket.  Called under the lock.*/
+	private void insertNew(SearchResult sr, byte[] k, RecordPtr toWrite){
+		if(cacheMode) evictForInsert(sr, toWrite.extentLength(secondaryMapper));
+		if(sr.freeBucket != null){
+			//Write new, in the free position
+			sr.freeBucket.writeRecord(toWrite, sr.freeSubIdx);
+		} else {
+			//Write new, in a new bucket
+			sr.lastBucket.allocateNextBucket().writeRecord(toWrite);
+		}
+		size.incrementAndGet();
+		accountBytes(toWrite.hash, toWrite.extentLength(secondaryMapper));
+		keyInserted(k);
+	}
+	
+	/**Replaces the pointer of the record the search found, whose extent was
+	 * of the given length before it was written over or released.  Called
+	 * under the lock.*/
+	private void writeOver(SearchResult sr, long oldExtent, RecordPtr nPtr){
+		sr.foundBucket.writeRecord(nPtr, sr.foundSubIdx);
+		accountBytes(nPtr.hash, nPtr.extentLength(secondaryMapper) - oldExtent);
+	}
+	
+	/**Deletes the record at the given slot, releasing its data.  Called under
+	 * the lock.*/
+	private void deleteRecord(BucketView bucket, int subIdx, RecordPtr ptr, byte[] k){
+		bucket.writeRecord(RecordPtr.DELETED, subIdx);
+		size.decrementAndGet();
+		accountBytes(ptr.hash, -ptr.extentLength(secondaryMapper));
+		keyRemoved(k);
+		releaseData(ptr);
+	}
+	
+	/**Called under the stripe lock once nothing refers to the given record's
+	 * data, so that its space can be reused.*/
+	protected void releaseData(RecordPtr ptr){
+		freeSecondary(ptr.dataPtr, ptr.extentLength(secondaryMapper));
+	}
 
 	@Override
 	public byte[] putIfAbsent(byte[] k, byte[] v) {
+		return putIfAbsent(k, v, 0);
+	}
+	
+	private byte[] putIfAbsent(byte[] k, byte[] v, long expiresAt) {
+		checkWritable();
 		if(load() > loadRehashThreshold) rehash();
 		
 		final long hash = Hash.murmurHash(k);
 		
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final SearchResult sr = locateRecord(k, hash);
-			if(sr.val != null) return sr.val;
-			else if(sr.freeBucket != null){
-				//Write new, in the free position
-				final long dataPtr = writeKeyVal(k, v);
-				final RecordPtr recPtr = new RecordPtr(hash, dataPtr, k.length, v.length);
-				sr.freeBucket.writeRecord(recPtr, sr.freeSubIdx);
-				size.incrementAndGet();
-			} else {
-				//Write new, in a new bucket
-				final long dataPtr = writeKeyVal(k, v);
-				final RecordPtr recPtr = new RecordPtr(hash, dataPtr, k.length, v.length);
-				sr.lastBucket.allocateNextBucket().writeRecord(recPtr);
-				size.incrementAndGet();
+			lockAcquired(hash, start);
+			try {
+				final SearchResult sr = locateRecord(k, hash);
+				if(sr.val == null) insertNew(sr, k, writeKeyVal(hash, k, v, compressVal(v), expiresAt, null));
+				return sr.val;
+			} finally {
+				opDone(Op.PUT_IF_ABSENT, start);
 			}
-			return sr.val;
 		}
 	}
 
 	@Override
 	public byte[] remove(byte[] k) {
+		checkWritable();
+		maybeShrink();
 		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final SearchResult sr = locateRecord(k, hash);
-			if(sr.val != null){
-				sr.foundBucket.writeRecord(RecordPtr.DELETED, sr.foundSubIdx);
-				size.decrementAndGet();
+			lockAcquired(hash, start);
+			try {
+				final SearchResult sr = locateRecord(k, hash);
+				if(sr.val != null){
+					deleteRecord(sr.foundBucket, sr.foundSubIdx, sr.foundBucket.getPointer(sr.foundSubIdx), k);
+				}
+				return sr.val;
+			} finally {
+				opDone(Op.REMOVE, start);
 			}
-			return sr.val;
 		}
 	}
 	
 	@Override
 	public boolean remove(byte[] k, byte[] v) {
+		checkWritable();
+		maybeShrink();
 		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final SearchResult sr = locateRecord(k, hash);
-			if(Arrays.equals(sr.val, v)){
-				sr.foundBucket.writeRecord(RecordPtr.DELETED, sr.foundSubIdx);
-				size.decrementAndGet();
-				return true;
+			lockAcquired(hash, start);
+			try {
+				final SearchResult sr = locateRecord(k, hash);
+				if(Arrays.equals(sr.val, v)){
+					deleteRecord(sr.foundBucket, sr.foundSubIdx, sr.foundBucket.getPointer(sr.foundSubIdx), k);
+					return true;
+				}
+				return false;
+			} finally {
+				opDone(Op.REMOVE, start);
 			}
-			return false;
 		}
 	}
 	
 	@Override
 	public byte[] replace(byte[] k, byte[] v) {
+		checkWritable();
 		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final SearchResult sr = locateRecord(k, hash);
-			if(sr.val != null){
-				final long dataPtr;
-				if(v.length <= sr.val.length){
-					final BucketView bucket = sr.foundBucket;
-					final RecordPtr ptr = bucket.getPointer(sr.foundSubIdx);
-					secondaryMapper.putBytes(ptr.dataPtr + k.length, v);
-					dataPtr = ptr.dataPtr;
-				} else {
-					dataPtr = writeKeyVal(k, v);
-				}
-				final RecordPtr toWrite = new RecordPtr(hash, dataPtr, k.length, v.length);
-				sr.foundBucket.writeRecord(toWrite, sr.foundSubIdx);
+			lockAcquired(hash, start);
+			try {
+				final SearchResult sr = locateRecord(k, hash);
+				if(sr.val != null) overwriteVal(sr, hash, k, v);
+				return sr.val;
+			} finally {
+				opDone(Op.REPLACE, start);
 			}
-			return sr.val;
 		}
 	}
 	
 	@Override
 	public boolean replace(byte[] k, byte[] prevVal, byte[] newVal) {
+		checkWritable();
 		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final SearchResult sr = locateRecord(k, hash);
-			if(Arrays.equals(sr.val, prevVal)){
-				final long dataPtr;
-				if(newVal.length <= prevVal.length){
-					final BucketView bucket = sr.foundBucket;
-					final RecordPtr ptr = bucket.getPointer(sr.foundSubIdx);
-					secondaryMapper.putBytes(ptr.dataPtr + k.length, newVal);
-					dataPtr = ptr.dataPtr;
-				} else {
-					dataPtr = writeKeyVal(k, newVal);
+			lockAcquired(hash, start);
+			try {
+				final SearchResult sr = locateRecord(k, hash);
+				if(Arrays.equals(sr.val, prevVal)){
+					overwriteVal(sr, hash, k, newVal);
+					return true;
 				}
-				final RecordPtr toWrite = new RecordPtr(hash, dataPtr, k.length, newVal.length);
-				sr.foundBucket.writeRecord(toWrite, sr.foundSubIdx);
-				return true;
+				return false;
+			} finally {
+				opDone(Op.REPLACE, start);
 			}
-			return false;
 		}
 	}
 	
-	private long writeKeyVal(byte[] k, byte[] v){
-		final long out = allocateSecondary(k.length + v.length);
-		secondaryMapper.putBytes(out, k);
-		secondaryMapper.putBytes(out + k.length, v);
-		return out;
+	/**Replaces the value of the record the search found, keeping its expiry
+	 * time.  Called under the lock.*/
+	private void overwriteVal(SearchResult sr, long hash, byte[] k, byte[] v){
+		final RecordPtr existing = sr.foundBucket.getPointer(sr.foundSubIdx);
+		final long oldExtent = existing.extentLength(secondaryMapper);
+		writeOver(sr, oldExtent, writeKeyVal(hash, k, v, compressVal(v), existing.getExpiry(secondaryMapper), existing));
 	}
 	
 	@Override
-	public Iterator<Map.Entry<byte[], byte[]>> iterator(){
-		return new Iterator<Map.Entry<byte[],byte[]>>() {
-			BucketView nextBucket = new BucketView(0),
-			           prevBucket = null;
-			int nextIdx = 0, nextSubIdx = -1, prevSubIdx = -1;
-			{
-				advance();
+	public byte[] compute(byte[] k, BiFunction<? super byte[], ? super byte[], ? extends byte[]> f) {
+		checkWritable();
+		if(load() > loadRehashThreshold) rehash();
+		else maybeShrink();
+		
+		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
+		synchronized(lockForHash(hash)){
+			lockAcquired(hash, start);
+			try {
+				final SearchResult sr = locateRecord(k, hash);
+				final byte[] v = f.apply(k, sr.val);
+				if(v == null && sr.val == null) return null;
+				if(v == null){
+					deleteRecord(sr.foundBucket, sr.foundSubIdx, sr.foundBucket.getPointer(sr.foundSubIdx), k);
+				} else if(sr.val != null){
+					overwriteVal(sr, hash, k, v);
+				} else insertNew(sr, k, writeKeyVal(hash, k, v, compressVal(v), 0, null));
+				return v;
+			} finally {
+				opDone(Op.COMPUTE, start);
 			}
-			private void advance(){
-				prevSubIdx = nextSubIdx; prevBucket = nextBucket;
-				
-				while(true){
-					nextSubIdx++;
-					if(nextSubIdx >= recordsPerBucket){
-						nextSubIdx = 0;
-						nextBucket = nextBucket.nextBucket();
-					}
-					if(nextBucket == null){
-						nextIdx++;
-						if(nextIdx >= tableLength) return;
-						nextBucket = new BucketView(nextIdx);
-					}
-					if(!nextBucket.getPointer(nextSubIdx).isWritable()) return;
+		}
+	}
+	
+	@Override
+	public long addAndGet(byte[] k, long delta) {
+		checkWritable();
+		if(load() > loadRehashThreshold) rehash();
+		
+		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
+		synchronized(lockForHash(hash)){
+			lockAcquired(hash, start);
+			try {
+				final SearchResult sr = locateRecord(k, hash);
+				if(sr.val == null){
+					insertNew(sr, k, writeKeyVal(hash, k, counterBytes(delta), null, 0, null));
+					return delta;
 				}
+				if(sr.val.length != 8) throw new IllegalArgumentException("Value is not an 8-byte counter");
+				final RecordPtr existing = sr.foundBucket.getPointer(sr.foundSubIdx);
+				final long out = counterValue(sr.val) + delta;
+				if(existing.isCompressed()){
+					overwriteVal(sr, hash, k, counterBytes(out));
+				} else {
+					secondaryMapper.putLong(existing.valPos(), out);
+				}
+				return out;
+			} finally {
+				opDone(Op.ADD_AND_GET, start);
 			}
-			@Override
-			public boolean hasNext() {
-				return nextBucket != null;
+		}
+	}
+	
+	/**Writes k and v to secondary and returns a pointer to them.  compressed
+	 * is the compressed form of v, or null if v should be stored as is, and
+	 * expiresAt the expiry time, or 0 for none.  If existing is non-null,
+	 * has the same kind of expiry, and the stored value fits in its extent,
+	 * only the value (and expiry) are overwritten, in place; otherwise
+	 * existing's data is released.*/
+	private RecordPtr writeKeyVal(long hash, byte[] k, byte[] v, byte[] compressed, long expiresAt, RecordPtr existing){
+		final byte[] stored = compressed == null ? v : compressed;
+		int vLength = compressed == null ? v.length : stored.length | RecordPtr.COMPRESSED_FLAG;
+		final int kLength = expiresAt == 0 ? k.length : k.length | RecordPtr.EXPIRY_FLAG;
+		final long capacity = existing != null && existing.hasExpiry() == (expiresAt != 0) ? existing.valCapacity(secondaryMapper) : -1;
+		final long dataPtr;
+		if(stored.length <= capacity){
+			dataPtr = existing.dataPtr;
+			if(expiresAt != 0) secondaryMapper.putLong(dataPtr, expiresAt);
+			secondaryMapper.putBytes(existing.valPos(), stored);
+			//Whatever the value leaves spare stays part of the extent
+			if(stored.length < capacity){
+				RecordPtr.writeSlack(secondaryMapper, existing.valPos() + stored.length, (int)(capacity - stored.length));
+				vLength |= RecordPtr.PADDED_FLAG;
 			}
+		} else {
+			final int prefix = expiresAt == 0 ? 0 : RecordPtr.EXPIRY_SIZE;
+			dataPtr = allocateData(prefix + k.length + stored.length);
+			if(expiresAt != 0) secondaryMapper.putLong(dataPtr, expiresAt);
+			secondaryMapper.putBytes(dataPtr + prefix, k);
+			secondaryMapper.putBytes(dataPtr + prefix + k.length, stored);
+			if(existing != null) releaseData(existing);
+		}
+		return new RecordPtr(hash, dataPtr, kLength, vLength);
+	}
+	
+	/**Starts a background thread that removes expired entries, visiting one
+	 * stripe at a time (as rehashing does) so that each holds its lock only
+	 * briefly.  Every stripe is visited once per the given period.  Replaces
+	 * any running sweeper; it is stopped when the map is closed.*/
+	public synchronized void startExpirySweeper(long period, TimeUnit unit){
+		checkWritable();
+		stopExpirySweeper();
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
 			@Override
-			public Entry<byte[], byte[]> next() {
-				if(! hasNext()) throw new NoSuchElementException();
-				final BucketDiskMapEntry out = new BucketDiskMapEntry(nextBucket, nextSubIdx);
-				advance();
-				return out;
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "lash-expiry-sweeper");
+				t.setDaemon(true);
+				return t;
 			}
+		});
+		final long stripePeriod = Math.max(1, unit.toNanos(period) / nLocks);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			int stripe = 0;
 			@Override
-			public void remove() {
-				if(prevBucket == null) throw new IllegalStateException();
-				prevBucket.writeRecord(RecordPtr.DELETED, prevSubIdx);
-				BucketDiskMap.this.size.decrementAndGet();
+			public void run() {
+				expireStripe(stripe);
+				stripe = (stripe + 1) & (nLocks - 1);
+				maybeShrink();
 			}
-		};
+		}, stripePeriod, stripePeriod, TimeUnit.NANOSECONDS);
 	}
 	
-	public class BucketDiskMapEntry implements Map.Entry<byte[], byte[]>{
-		byte[] k, v;
-		RecordPtr ptr;
-		final BucketView bucket;
-		final int subIdx;
-		
-		public BucketDiskMapEntry(BucketView bucket, int subIdx) {
-			this.bucket = bucket;
-			this.subIdx = subIdx;
-			ptr = bucket.getPointer(subIdx);
-			k = ptr.getKey(secondaryMapper);
-			v = ptr.getVal(secondaryMapper);
+	/**Stops the expiry sweeper, if one is running, waiting for any stripe
+	 * it is visiting.*/
+	public synchronized void stopExpirySweeper(){
+		if(sweeper == null) return;
+		sweeper.shutdown();
+		try {
+			sweeper.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
 		}
-		
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + Arrays.hashCode(k);
-			result = prime * result + Arrays.hashCode(v);
-			return result;
+		sweeper = null;
+	}
+	
+	/**Removes all expired entries now, one stripe at a time.*/
+	public void expireAll(){
+		checkWritable();
+		for(int stripe=0; stripe<nLocks; stripe++) expireStripe(stripe);
+		maybeShrink();
+	}
+	
+	/**Removes the expired entries in every bucket of the given stripe.*/
+	protected void expireStripe(int stripe){
+		synchronized(locks[stripe]){
+			final long now = System.currentTimeMillis();
+			for(final BucketView bucket : bucketsInStripe(stripe)){
+				for(int subIdx=0; subIdx<recordsPerBucket; subIdx++){
+					final RecordPtr ptr = bucket.getPointer(subIdx);
+					if(!ptr.isWritable() && ptr.isExpired(secondaryMapper, now)){
+						deleteRecord(bucket, subIdx, ptr, ptr.getKey(secondaryMapper));
+					}
+				}
+			}
 		}
-
-		/**Requires same class, reference equality for enclosing map,
-		 * and the same k and v.*/
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj) return true;
-			if (obj == null) return false;
-			if (getClass() != obj.getClass()) return false;
-			final BucketDiskMapEntry other = (BucketDiskMapEntry) obj;
-			if (getOuterType() != other.getOuterType()) return false;
-			if (!Arrays.equals(k, other.k)) return false;
-			return Arrays.equals(v, other.v);
+	}
+	
+	//Chain length counts buckets; overflow buckets count as live data.
+	@Override
+	protected void scanIdx(long idx, MapStats stats) {
+		int length = 0;
+		for(BucketView bucket = new BucketView(idx); bucket != null; bucket = bucket.nextBucket()){
+			if(length++ > 0) stats.liveBytes += bucketByteSize;
+			for(int subIdx=0; subIdx<recordsPerBucket; subIdx++){
+				final RecordPtr ptr = bucket.getPointer(subIdx);
+				if(!ptr.isWritable()) stats.liveBytes += ptr.extentLength(secondaryMapper);
+			}
 		}
-
-		@Override
-		public byte[] getKey() { return k; }
-		@Override
-		public byte[] getValue() { return v; }
-		
-		@Override
-		public byte[] setValue(byte[] newValue) {
-			final byte[] out = v;
-			final long dataPtr;
-			if(newValue.length <= v.length){
-				secondaryMapper.putBytes(ptr.dataPtr + k.length, v);
-				dataPtr = ptr.dataPtr;
-			} else dataPtr = writeKeyVal(k, v);
-			
-			final RecordPtr nPtr = new RecordPtr(ptr.hash, dataPtr, k.length, newValue.length);
-			bucket.writeRecord(nPtr, subIdx);
-			ptr = nPtr;
-			v = newValue;
-			return out;
+		stats.addChain(length);
+	}
+	
+	@Override
+	protected void checkIdx(long idx, VerifyReport report, IDiskMap target) {
+		final long now = System.currentTimeMillis(), headerSize = getHeaderSize(),
+		           writePos = secondaryWritePos.get(), secondaryLen = secondaryMapper.size();
+		final Set<Long> seen = new HashSet<Long>();
+		BucketView bucket = new BucketView(idx);
+		while(true){
+			for(int subIdx=0; subIdx<recordsPerBucket; subIdx++){
+				final RecordPtr ptr = bucket.getPointer(subIdx);
+				if(ptr.isWritable()) continue;
+				final String where = "Bucket " + idx + " at " + bucket.pos + ", record " + subIdx;
+				//The slack after a padded value is only read if it cannot run
+				//outside the secondary
+				final long valEnd = ptr.valPos() + ptr.storedValLength();
+				final long end = ptr.isPadded() && valEnd + 5 <= secondaryLen ? ptr.dataPtr + ptr.extentLength(secondaryMapper) : valEnd;
+				if(ptr.dataPtr < headerSize || end > secondaryLen){
+					report.error(where + ": data at " + ptr.dataPtr + " is outside the secondary");
+					continue;
+				}
+				if(end > writePos) report.error(where + ": data at " + ptr.dataPtr + " is beyond the write position");
+				final byte[] k = ptr.getKey(secondaryMapper);
+				if(Hash.murmurHash(k) != ptr.hash){
+					report.error(where + ": stored hash does not match key");
+					continue;
+				}
+				if(idxForHash(ptr.hash) != idx) report.error(where + ": belongs in bucket " + idxForHash(ptr.hash));
+				report.record();
+				if(target != null && !ptr.isExpired(secondaryMapper, now)) salvage(ptr, k, target, now, report, where);
+			}
+			final long next = bucket.mapper.getLong(bucket.pos);
+			if(next == 0) return;
+			if(next < headerSize || next + bucketByteSize > secondaryLen){
+				report.error("Bucket " + idx + " at " + bucket.pos + ": next bucket " + next + " is outside the secondary");
+				return;
+			}
+			if(next + bucketByteSize > writePos){
+				report.error("Bucket " + idx + " at " + bucket.pos + ": next bucket " + next + " is beyond the write position");
+			}
+			if(!seen.add(next)){
+				report.error("Bucket " + idx + ": chain has a cycle at " + next);
+				return;
+			}
+			bucket = new BucketView(idx, next, secondaryMapper);
 		}
-		private BucketDiskMap getOuterType() {
-			return BucketDiskMap.this;
+	}
+	
+	//Expiry is kept if the target supports it.
+	private void salvage(RecordPtr ptr, byte[] k, IDiskMap target, long now, VerifyReport report, String where){
+		final byte[] v;
+		try {
+			v = readVal(ptr);
+		} catch(RuntimeException e){
+			report.error(where + ": value is unreadable (" + e + ")");
+			return;
+		}
+		final byte[] prev;
+		if(ptr.hasExpiry() && target instanceof BucketDiskMap){
+			prev = ((BucketDiskMap)target).putIfAbsent(k, v, ptr.getExpiry(secondaryMapper) - now, TimeUnit.MILLISECONDS);
+		} else prev = target.putIfAbsent(k, v);
+		if(prev == null) report.salvaged();
+	}
+	
+	@Override
+	public MapStats getStats(boolean scan) {
+		final MapStats out = super.getStats(scan);
+		out.freeBuckets = freeSecondaryBuckets.size();
+		return out;
+	}
+	
+	/**Returns every bucket, in primary or chained, holding records of the
+	 * given stripe.  Called under the stripe's lock.*/
+	protected List<BucketView> bucketsInStripe(int stripe){
+		final List<BucketView> out = new ArrayList<BucketView>();
+		final long limit = stripe < rehashComplete.get() ? tableLength * 2 : tableLength;
+		for(long idx = stripe; idx < limit; idx += nLocks){
+			for(BucketView bucket = new BucketView(idx); bucket != null; bucket = bucket.nextBucket()){
+				out.add(bucket);
+			}
+		}
+		return out;
+	}
+	
+	/**Bounds the map as a cache of at most maxEntries entries and maxBytes
+	 * bytes of key and value data (0 for no limit on either; both 0 turns
+	 * cache mode off).  Once over a limit, each insert first evicts entries
+	 * from its own bucket chain, choosing among them with the CLOCK
+	 * algorithm: lookups set a reference bit in the entry's slot, and the
+	 * chain's clock hand, kept in its first bucket's header, clears the bit
+	 * or evicts an entry whose bit is already clear.  Eviction only looks at
+	 * the one chain, so the limits are approximate.
+	 * The first byte limit set scans the map to count the live bytes.*/
+	public void setCacheLimits(long maxEntries, long maxBytes){
+		checkWritable();
+		if(maxEntries < 0 || maxBytes < 0) throw new IllegalArgumentException("Limits must be non-negative");
+		if(maxBytes > 0) trackLiveBytes();
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.cacheMode = maxEntries > 0 || maxBytes > 0;
+	}
+	
+	/**Number of entries evicted to stay within the cache limits.*/
+	public long getEvictionCount(){
+		return evictions.get();
+	}
+	
+	/**Bytes of secondary used by live entries.  Only counted once a byte
+	 * limit has been set; see setCacheLimits.*/
+	public long getLiveBytes(){
+		return liveBytes.get();
+	}
+	
+	private void trackLiveBytes(){
+		for(int stripe=0; stripe<nLocks; stripe++){
+			synchronized(locks[stripe]){
+				if(bytesTracked[stripe]) continue;
+				long bytes = 0;
+				for(final BucketView bucket : bucketsInStripe(stripe)){
+					for(int subIdx=0; subIdx<recordsPerBucket; subIdx++){
+						final RecordPtr ptr = bucket.getPointer(subIdx);
+						if(!ptr.isWritable()) bytes += ptr.extentLength(secondaryMapper);
+					}
+				}
+				liveBytes.addAndGet(bytes);
+				bytesTracked[stripe] = true;
+			}
+		}
+	}
+	
+	/**Adjusts the live byte count for a change to a record with the given
+	 * hash.  Called under the lock.*/
+	private void accountBytes(long hash, long delta){
+		if(bytesTracked[(int)(hash & (nLocks - 1))]) liveBytes.addAndGet(delta);
+	}
+	
+	private boolean overBudget(long incomingBytes){
+		final long maxEntries = this.maxEntries, maxBytes = this.maxBytes;
+		return (maxEntries > 0 && size.get() >= maxEntries)
+				|| (maxBytes > 0 && liveBytes.get() + incomingBytes > maxBytes);
+	}
+	
+	/**Evicts entries from the searched chain until an insert of the given
+	 * size fits the cache limits, or the chain is empty.  Two turns of the
+	 * clock clear every reference bit, so that bounds the work.  Expired
+	 * entries are removed whatever their reference bit, and are not counted
+	 * as evictions.  Called under the lock.*/
+	private void evictForInsert(SearchResult sr, long incomingBytes){
+		if(!overBudget(incomingBytes)) return;
+		final List<BucketView> chain = new ArrayList<BucketView>();
+		for(BucketView bucket = sr.firstBucket; bucket != null; bucket = bucket.nextBucket()) chain.add(bucket);
+		final long slots = (long)chain.size() * recordsPerBucket;
+		final long now = System.currentTimeMillis();
+		long hand = sr.firstBucket.getClockHand() % slots;
+		for(long n = 0; n < 2 * slots && overBudget(incomingBytes); n++){
+			final BucketView bucket = chain.get((int)(hand / recordsPerBucket));
+			final int subIdx = (int)(hand % recordsPerBucket);
+			hand = (hand + 1) % slots;
+			final RecordPtr ptr = bucket.getPointer(subIdx);
+			if(ptr.isWritable()) continue;
+			final boolean expired = ptr.isExpired(secondaryMapper, now);
+			if(ptr.isReferenced() && !expired){
+				bucket.setReferenced(subIdx, ptr, false);
+				continue;
+			}
+			if(!expired) evictions.incrementAndGet();
+			deleteRecord(bucket, subIdx, ptr, ptr.getKey(secondaryMapper));
+		}
+		sr.firstBucket.setClockHand(hand);
+	}
+	
+	@Override
+	protected void cleared() {
+		freeSecondaryBuckets.clear();
+		liveBytes.set(0);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		stopExpirySweeper();
+		super.close();
+	}
+	
+	@Override
+	public void delete() throws IOException {
+		stopExpirySweeper();
+		super.delete();
+	}
+	
+	/**Expired entries are skipped, but left for lookups or the sweeper to
+	 * remove.*/
+	@Override
+	protected void readBucket(long idx, List<Map.Entry<byte[], byte[]>> out){
+		final long now = System.currentTimeMillis();
+		BucketView bucket = new BucketView(idx);
+		while(bucket != null){
+			for(int subIdx=0; subIdx<recordsPerBucket; subIdx++){
+				final RecordPtr ptr = bucket.getPointer(subIdx);
+				if(!ptr.isWritable() && !ptr.isExpired(secondaryMapper, now)){
+					out.add(new DiskMapEntry(ptr.getKey(secondaryMapper), readVal(ptr)));
+				}
+			}
+			bucket = bucket.nextBucket();
 		}
 	}
 	
@@ -497,14 +912,23 @@ public class BucketDiskMap extends ADiskMap {
 				
 				if(recPtr.maybeMatches(hash, k)){
 					//Check for "real" match
-					final byte[] prospectiveV = getValIfMatch(recPtr, k);
-					if(prospectiveV != null){
-						out.val = prospectiveV;
-						out.foundBucket = this;
-						out.foundSubIdx = subIdx;
-						return true;
+					if(!Arrays.equals(recPtr.getKey(secondaryMapper), k)) continue;
+					if(recPtr.hasExpiry() && recPtr.isExpired(secondaryMapper, System.currentTimeMillis())){
+						//A read-only map cannot remove it, so only skips it
+						if(readOnly) continue;
+						//Expire lazily, leaving a deleted slot
+						deleteRecord(this, subIdx, recPtr, k);
+						if(out.freeBucket == null){
+							out.freeBucket = this;
+							out.freeSubIdx = subIdx;
+						}
+						continue;
 					}
-					else continue;
+					if(cacheMode && !recPtr.isReferenced()) setReferenced(subIdx, recPtr, true);
+					out.val = readVal(recPtr);
+					out.foundBucket = this;
+					out.foundSubIdx = subIdx;
+					return true;
 				} else if(recPtr.isFree()){
 					if(out.freeBucket == null){
 						out.freeBucket = this;
@@ -538,6 +962,21 @@ public class BucketDiskMap extends ADiskMap {
 			return nextBucket();
 		}
 		
+		/**Sets or clears the CLOCK reference bit of the given pointer, read
+		 * from the given index in this bucket.*/
+		public void setReferenced(int subIdx, RecordPtr ptr, boolean referenced){
+			ptr.writeReferenced(subPosForSubIdx(pos, subIdx), mapper, referenced);
+		}
+		
+		/**Position of the CLOCK hand of a cache's chain, stored in the
+		 * header of the chain's first bucket.*/
+		public long getClockHand(){
+			return mapper.getLong(pos + 8);
+		}
+		public void setClockHand(long hand){
+			mapper.putLong(pos + 8, hand);
+		}
+		
 		/**Returns the (possibly free or deleted) record pointer at the given
 		 * index in this bucket.*/
 		public RecordPtr getPointer(int subIdx){
@@ -9,7 +9,11 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import com.nyeggen.lash.serde.Serde;
 
@@ -20,7 +24,7 @@ public class DiskMap<K,V> implements ConcurrentMap<K, V>, Closeable {
 	private final Serde<K> keySerde;
 	private final Serde<V> valSerde;
 	
-	public DiskMap(Serde<K> keySerde, Serde<V> valSerde, ADiskMap backingMap){
+	public DiskMap(Serde<K> keySerde, Serde<V> valSerde, IDiskMap backingMap){
 		this.keySerde = keySerde;
 		this.valSerde = valSerde;
 		this.backingMap = backingMap;
@@ -142,12 +146,66 @@ public class DiskMap<K,V> implements ConcurrentMap<K, V>, Closeable {
 		return new ValCollection();
 	}
 	
+	/**Adapts a Spliterator over the backing map's raw entries to one over
+	 * deserialized elements, so that streams over the views can be split
+	 * across the backing map's buckets.*/
+	protected static class MappedSpliterator<T> implements Spliterator<T> {
+		final Spliterator<Map.Entry<byte[], byte[]>> backing;
+		final Function<Map.Entry<byte[], byte[]>, T> f;
+		
+		MappedSpliterator(Spliterator<Map.Entry<byte[], byte[]>> backing, Function<Map.Entry<byte[], byte[]>, T> f){
+			this.backing = backing;
+			this.f = f;
+		}
+		@Override
+		public boolean tryAdvance(final Consumer<? super T> action) {
+			return backing.tryAdvance(new Consumer<Map.Entry<byte[], byte[]>>() {
+				@Override
+				public void accept(Map.Entry<byte[], byte[]> e) {
+					action.accept(f.apply(e));
+				}
+			});
+		}
+		@Override
+		public void forEachRemaining(final Consumer<? super T> action) {
+			backing.forEachRemaining(new Consumer<Map.Entry<byte[], byte[]>>() {
+				@Override
+				public void accept(Map.Entry<byte[], byte[]> e) {
+					action.accept(f.apply(e));
+				}
+			});
+		}
+		@Override
+		public Spliterator<T> trySplit() {
+			final Spliterator<Map.Entry<byte[], byte[]>> split = backing.trySplit();
+			return split == null ? null : new MappedSpliterator<T>(split, f);
+		}
+		@Override
+		public long estimateSize() {
+			return backing.estimateSize();
+		}
+		@Override
+		public int characteristics() {
+			//Values need not be distinct, and nulls may deserialize from any bytes
+			return backing.characteristics() & Spliterator.SIZED;
+		}
+	}
+	
 	protected class ValCollection extends AbstractCollection<V>{
 		@Override
 		public int size() {
 			return DiskMap.this.size();
 		}
 		@Override
+		public Spliterator<V> spliterator() {
+			return new MappedSpliterator<V>(backingMap.spliterator(), new Function<Map.Entry<byte[], byte[]>, V>() {
+				@Override
+				public V apply(Map.Entry<byte[], byte[]> e) {
+					return valSerde.fromBytes(e.getValue());
+				}
+			});
+		}
+		@Override
 		public Iterator<V> iterator() {
 			return new Iterator<V>() {
 				final Iterator<Map.Entry<K, V>> backingIt = DiskMap.this.entrySet().iterator();
@@ -189,6 +247,15 @@ public class DiskMap<K,V> implements ConcurrentMap<K, V>, Closeable {
 			return DiskMap.this.containsKey(o);
 		}
 		@Override
+		public Spliterator<K> spliterator() {
+			return new MappedSpliterator<K>(backingMap.spliterator(), new Function<Map.Entry<byte[], byte[]>, K>() {
+				@Override
+				public K apply(Map.Entry<byte[], byte[]> e) {
+					return keySerde.fromBytes(e.getKey());
+				}
+			});
+		}
+		@Override
 		public Iterator<K> iterator() {
 			return new Iterator<K>() {
 				final Iterator<Map.Entry<K, V>> backingIt = DiskMap.this.entrySet().iterator();
@@ -222,6 +289,17 @@ public class DiskMap<K,V> implements ConcurrentMap<K, V>, Closeable {
 			return DiskMap.this.size();
 		}
 
+		@Override
+		public Spliterator<Map.Entry<K, V>> spliterator() {
+			return new MappedSpliterator<Map.Entry<K, V>>(backingMap.spliterator(), new Function<Map.Entry<byte[], byte[]>, Map.Entry<K, V>>() {
+				@Override
+				public Map.Entry<K, V> apply(Map.Entry<byte[], byte[]> e) {
+					final K k = keySerde.fromBytes(e.getKey());
+					final V v = valSerde.fromBytes(e.getValue());
+					return new AbstractMap.SimpleImmutableEntry<K,V>(k, v);
+				}
+			});
+		}
 		@Override
 		public Iterator<Map.Entry<K, V>> iterator() {
 			return new Iterator<Map.Entry<K,V>>() {
@@ -296,6 +374,64 @@ public class DiskMap<K,V> implements ConcurrentMap<K, V>, Closeable {
 		final byte[] newValBytes = valSerde.toBytes(newValue);
 		return backingMap.replace(kBytes, oldValBytes, newValBytes);
 	}
+	/**Runs f once under the key's lock in the backing map; see
+	 * IDiskMap.compute().*/
+	@Override
+	public V compute(final K key, final BiFunction<? super K, ? super V, ? extends V> f) {
+		final byte[] kBytes = keySerde.toBytes(key);
+		final byte[] out = backingMap.compute(kBytes, new BiFunction<byte[], byte[], byte[]>() {
+			@Override
+			public byte[] apply(byte[] k, byte[] prevBytes) {
+				final V prev = prevBytes == null ? null : valSerde.fromBytes(prevBytes);
+				final V v = f.apply(key, prev);
+				return v == null ? null : valSerde.toBytes(v);
+			}
+		});
+		return out == null ? null : valSerde.fromBytes(out);
+	}
+	@Override
+	public V computeIfAbsent(final K key, final Function<? super K, ? extends V> f) {
+		final byte[] kBytes = keySerde.toBytes(key);
+		final byte[] out = backingMap.computeIfAbsent(kBytes, new Function<byte[], byte[]>() {
+			@Override
+			public byte[] apply(byte[] k) {
+				final V v = f.apply(key);
+				return v == null ? null : valSerde.toBytes(v);
+			}
+		});
+		return out == null ? null : valSerde.fromBytes(out);
+	}
+	@Override
+	public V computeIfPresent(final K key, final BiFunction<? super K, ? super V, ? extends V> f) {
+		final byte[] kBytes = keySerde.toBytes(key);
+		final byte[] out = backingMap.computeIfPresent(kBytes, new BiFunction<byte[], byte[], byte[]>() {
+			@Override
+			public byte[] apply(byte[] k, byte[] prevBytes) {
+				final V v = f.apply(key, valSerde.fromBytes(prevBytes));
+				return v == null ? null : valSerde.toBytes(v);
+			}
+		});
+		return out == null ? null : valSerde.fromBytes(out);
+	}
+	@Override
+	public V merge(K key, final V value, final BiFunction<? super V, ? super V, ? extends V> f) {
+		final byte[] kBytes = keySerde.toBytes(key);
+		final byte[] out = backingMap.merge(kBytes, valSerde.toBytes(value), new BiFunction<byte[], byte[], byte[]>() {
+			@Override
+			public byte[] apply(byte[] prevBytes, byte[] vBytes) {
+				final V v = f.apply(valSerde.fromBytes(prevBytes), value);
+				return v == null ? null : valSerde.toBytes(v);
+			}
+		});
+		return out == null ? null : valSerde.fromBytes(out);
+	}
+	/**Adds delta to the counter stored under key; see IDiskMap.addAndGet().
+	 * The value serde is bypassed, so this is only meaningful with LongSerde
+	 * or another serde that writes longs in native byte order.*/
+	public long addAndGet(K key, long delta) {
+		return backingMap.addAndGet(keySerde.toBytes(key), delta);
+	}
+	
 	@Override
 	public V replace(K key, V value) {
 		final byte[] kBytes = keySerde.toBytes(key);
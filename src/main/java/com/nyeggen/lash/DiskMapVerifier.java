@@ -0,0 +1,113 @@
+package com.nyeggen.lash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+
+/**Command-line integrity checker for the files of a closed map:
+ * 
+ * <pre>DiskMapVerifier (bucket|linear|varsize|robinhood|log) folder [--threads n] [--repair newFolder]</pre>
+ * 
+ * Checks the header against the files before opening the map, so that a
+ * damaged header cannot make opening it misbehave, and then runs
+ * ADiskMap.verify().  With --repair, salvages every intact record into a
+ * new map of the same kind in newFolder (see ADiskMap.salvageInto); if the
+ * header was unusable, it is first reset to zeroes so that the map can be
+ * opened.  Every map opened is closed before exiting, which rewrites the
+ * source map's header with the values it was opened with.  Exits with 0 if no problems were found, 1 if some were, and
+ * 2 on bad arguments.*/
+public class DiskMapVerifier {
+	private static void usage(){
+		System.err.println("Usage: DiskMapVerifier (bucket|linear|varsize|robinhood|log) folder [--threads n] [--repair newFolder]");
+		System.exit(2);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) usage();
+		final String kind = args[0], folder = args[1];
+		int threads = Runtime.getRuntime().availableProcessors();
+		String repairFolder = null;
+		for(int i=2; i<args.length; i++){
+			if(args[i].equals("--threads") && i+1 < args.length) threads = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--repair") && i+1 < args.length) repairFolder = args[++i];
+			else usage();
+		}
+		if(!kind.equals("bucket") && !kind.equals("linear") && !kind.equals("varsize") && !kind.equals("robinhood") && !kind.equals("log")) usage();
+		if(!new File(folder, ADiskMap.secondaryFileName).isFile()){
+			System.err.println("No map in " + folder);
+			System.exit(2);
+		}
+		
+		final List<String> headerProblems = checkHeaderFiles(new File(folder), idxBytes(kind), kind.equals("linear") ? 1 : 2);
+		for(final String problem : headerProblems) System.out.println(problem);
+		if(!headerProblems.isEmpty()){
+			if(repairFolder == null) System.exit(1);
+			resetHeader(new File(folder));
+			System.out.println("Header reset");
+		}
+		
+		final ADiskMap map = open(kind, folder);
+		final VerifyReport report = map.verify(threads);
+		System.out.println("Verify: " + report);
+		if(repairFolder != null){
+			final ADiskMap target = open(kind, repairFolder);
+			if(target.size() != 0){
+				System.err.println(repairFolder + " already holds a map");
+				target.close();
+				map.close();
+				System.exit(2);
+			}
+			final VerifyReport salvage = map.salvageInto(target, threads);
+			target.close();
+			System.out.println("Repair: " + salvage.getSalvaged() + " records written to " + repairFolder);
+		}
+		map.close();
+		System.exit(headerProblems.isEmpty() && report.isClean() ? 0 : 1);
+	}
+	
+	private static ADiskMap open(String kind, String folder){
+		if(kind.equals("bucket")) return new BucketDiskMap(folder);
+		if(kind.equals("linear")) return new LinearHashBucketDiskMap(folder);
+		if(kind.equals("robinhood")) return new RobinHoodDiskMap(folder);
+		if(kind.equals("log")) return new LogStructuredDiskMap(folder);
+		return new VarSizeDiskMap(folder);
+	}
+	
+	/**Bytes of primary per bucket index for the given kind of map.*/
+	private static long idxBytes(String kind){
+		if(kind.equals("bucket") || kind.equals("linear")) return BucketDiskMap.bucketByteSize;
+		if(kind.equals("robinhood") || kind.equals("log")) return RobinHoodDiskMap.bucketByteSize;
+		return 8;
+	}
+	
+	/**Checks the header in the given map folder against its files, without
+	 * opening the map, given the bytes of primary per bucket index.*/
+	public static List<String> checkHeaderFiles(File folder, long idxBytes) throws IOException {
+		return checkHeaderFiles(folder, idxBytes, 2);
+	}
+	
+	/**As above, for a map whose primary holds at least the given number of
+	 * copies of the table (1 for a LinearHashBucketDiskMap).*/
+	public static List<String> checkHeaderFiles(File folder, long idxBytes, long primaryTables) throws IOException {
+		final File primary = new File(folder, ADiskMap.primaryFileName), secondary = new File(folder, ADiskMap.secondaryFileName);
+		try(RandomAccessFile f = new RandomAccessFile(secondary, "r")){
+			if(f.length() < 32) return Collections.singletonList("Secondary is too short to hold a header");
+			final byte[] header = new byte[32];
+			f.readFully(header);
+			//The files are mapped, and so written, in native byte order
+			final ByteBuffer buf = ByteBuffer.wrap(header).order(ByteOrder.nativeOrder());
+			final long size = buf.getLong(), tableLength = buf.getLong(), writePos = buf.getLong(), rehashComplete = buf.getLong();
+			return ADiskMap.checkHeader(size, tableLength, writePos, rehashComplete, primary.length(), f.length(), idxBytes, 32, primaryTables);
+		}
+	}
+	
+	private static void resetHeader(File folder) throws IOException {
+		try(RandomAccessFile f = new RandomAccessFile(new File(folder, ADiskMap.secondaryFileName), "rw")){
+			f.write(new byte[32]);
+		}
+	}
+}
@@ -3,6 +3,12 @@ package com.nyeggen.lash;
 import java.io.Closeable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface IDiskMap extends Closeable {
 	/**Returns the value corresponding to the given key, or null if it is not
@@ -29,12 +35,67 @@ public interface IDiskMap extends Closeable {
 	/**If the given k is currently associated with prevVal, replace it with
 	 * newVal.  Returns true if successful.*/
 	public boolean replace(byte[] k, byte[] prevVal, byte[] newVal);
+	/**Atomically replaces the value for k with the result of applying f to k
+	 * and the current value (or null if absent), removing the key if the
+	 * result is null.  f is called exactly once, while holding the key's
+	 * lock, so it should be short and must not access the map.  If f returns
+	 * the array it was passed, the map is left unchanged.  Returns the new
+	 * value, or null if there is none.*/
+	public byte[] compute(byte[] k, BiFunction<? super byte[], ? super byte[], ? extends byte[]> f);
+	/**Atomically adds delta to the 8-byte counter stored under k, treating an
+	 * absent key as 0, and returns the new value.  Counters are stored in
+	 * native byte order, updated in place where possible.  Throws
+	 * IllegalArgumentException if the existing value is not 8 bytes long.*/
+	public long addAndGet(byte[] k, long delta);
+	/**If k is absent, maps it to the result of f (unless null), as compute().
+	 * Returns the current value.*/
+	public default byte[] computeIfAbsent(byte[] k, final Function<? super byte[], ? extends byte[]> f){
+		return compute(k, new BiFunction<byte[], byte[], byte[]>() {
+			@Override
+			public byte[] apply(byte[] key, byte[] prev) {
+				return prev != null ? prev : f.apply(key);
+			}
+		});
+	}
+	/**If k is present, replaces its value with the result of f, removing it if
+	 * the result is null, as compute().  Returns the new value.*/
+	public default byte[] computeIfPresent(byte[] k, final BiFunction<? super byte[], ? super byte[], ? extends byte[]> f){
+		return compute(k, new BiFunction<byte[], byte[], byte[]>() {
+			@Override
+			public byte[] apply(byte[] key, byte[] prev) {
+				return prev == null ? null : f.apply(key, prev);
+			}
+		});
+	}
+	/**Maps k to v if absent, or else to the result of applying f to the
+	 * current value and v (removing k if null), as compute().  Returns the
+	 * new value.*/
+	public default byte[] merge(byte[] k, final byte[] v, final BiFunction<? super byte[], ? super byte[], ? extends byte[]> f){
+		return compute(k, new BiFunction<byte[], byte[], byte[]>() {
+			@Override
+			public byte[] apply(byte[] key, byte[] prev) {
+				return prev == null ? v : f.apply(prev, v);
+			}
+		});
+	}
 	/**Returns true if the given key is mapped in the table.*/
 	public boolean containsKey(byte[] k);
 	/**Number of inserted records.  O(1).*/
 	public long size();
 	public void clear();
-	/**Returns an iterator over key-value pairs.  Neither the returned iterator
-	 * nor the Map.Entry values iterated over support mutation.*/
+	/**Returns an iterator over key-value pairs.  Implementations document
+	 * whether the iterator and its Map.Entry values support mutation.*/
 	public abstract Iterator<Map.Entry<byte[],byte[]>> iterator();
+	/**Returns a Spliterator over key-value pairs.  Implementations should
+	 * override this to support efficient parallel traversal.  It is not
+	 * SIZED, since the map may change while it is traversed.*/
+	public default Spliterator<Map.Entry<byte[],byte[]>> spliterator(){
+		return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.DISTINCT | Spliterator.NONNULL);
+	}
+	public default Stream<Map.Entry<byte[],byte[]>> stream(){
+		return StreamSupport.stream(spliterator(), false);
+	}
+	public default Stream<Map.Entry<byte[],byte[]>> parallelStream(){
+		return StreamSupport.stream(spliterator(), true);
+	}
 }
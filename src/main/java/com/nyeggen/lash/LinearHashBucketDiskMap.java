@@ -0,0 +1,47 @@
+package com.nyeggen.lash;
+
+/**A BucketDiskMap whose primary grows with the rehashing, rather than
+ * doubling whenever the table does.  The rehash progress already works as a
+ * linear-hashing split pointer, splitting one stripe's buckets at a time;
+ * here the buckets each split creates are laid out contiguously, so the
+ * primary need only extend to the stripes split so far.  It is extended
+ * (and, on contraction, truncated) a sixteenth of the table at a time, so a
+ * map just past a power of two holds little more primary than it uses, and
+ * the expansion that doubles the table length no longer remaps anything.
+ * Files are not interchangeable with a BucketDiskMap's.*/
+public class LinearHashBucketDiskMap extends BucketDiskMap {
+	/**Number of stripes' new buckets the primary is extended by at once.*/
+	static final int growthStripes = 16;
+	private static final int stripeBits = Integer.numberOfTrailingZeros(nLocks);
+
+	public LinearHashBucketDiskMap(String baseFolderLoc){
+		this(baseFolderLoc, 0);
+	}
+	public LinearHashBucketDiskMap(String baseFolderLoc, long primaryFileLen){
+		super(baseFolderLoc, primaryFileLen);
+	}
+	/**Creates (or opens) a map presized for the given number of entries, as
+	 * with reserve().*/
+	public LinearHashBucketDiskMap(String baseFolderLoc, long expectedEntries, int avgKeyBytes, int avgValBytes){
+		this(baseFolderLoc, bucketByteSize * tableLengthFor(expectedEntries, recordsPerBucket));
+		reserve(expectedEntries, avgKeyBytes, avgValBytes);
+	}
+
+	/**Indexes below nLocks are in order.  Above that, the indexes from b to
+	 * 2b (b a power of 2), which are the buckets created while the table
+	 * doubles from length b, are ordered by stripe, then by index.  This does
+	 * not depend on the table length, so nothing moves as the table grows.*/
+	@Override
+	protected long idxToPos(long idx){
+		if(idx < nLocks) return idx * bucketByteSize;
+		final long base = Long.highestOneBit(idx);
+		final long stripe = idx & (nLocks - 1), ofStripe = (idx - base) >>> stripeBits;
+		return (base + stripe * (base >>> stripeBits) + ofStripe) * bucketByteSize;
+	}
+
+	@Override
+	protected long primaryBytesNeeded(long stripesRehashed){
+		final long stripes = Math.min(nLocks, (stripesRehashed + growthStripes - 1) / growthStripes * growthStripes);
+		return (tableLength + stripes * (tableLength >>> stripeBits)) * bucketByteSize;
+	}
+}
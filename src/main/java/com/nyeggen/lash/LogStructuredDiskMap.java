@@ -0,0 +1,492 @@
+package com.nyeggen.lash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.nyeggen.lash.bucket.RecordPtr;
+import com.nyeggen.lash.util.Hash;
+import com.nyeggen.lash.util.MMapper;
+
+/**A RobinHoodDiskMap whose records are never written twice.  They are
+ * appended to a sequence of segment files instead of the secondary, each
+ * update appending a new copy of the record and repointing its slot, so that
+ * all writeback to the segments is sequential; the primary serves as the
+ * index of where each key's current record lies, as Bitcask's keydir does,
+ * but persistently, so nothing is replayed on opening.
+ * The segment being appended to is rolled over once it reaches a fixed size.
+ * Each segment's live bytes are tracked, and a segment left with none is
+ * deleted outright.  merge() (or a background merger, see startMerger)
+ * copies the records still live in mostly dead segments to the end of the
+ * log, after which those segments too are deleted, so space is reclaimed a
+ * file at a time, without a free list.
+ * Slots point to a record by its segment's id and its offset there.  The
+ * secondary holds only the header.  Files are not interchangeable with a
+ * RobinHoodDiskMap's.*/
+public class LogStructuredDiskMap extends RobinHoodDiskMap {
+	/**Size at which a segment is rolled over, unless given.*/
+	static final long defaultSegmentBytes = 64L << 20;
+	private static final int offsetBits = 40;
+	private static final long offsetMask = (1L << offsetBits) - 1;
+	private static final int maxSegmentId = (1 << (64 - offsetBits - 1)) - 1;
+	private static final Pattern segmentName = Pattern.compile("segment-(\\d+)\\.log");
+
+	private final long segmentBytes;
+	private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+	/**Guards the choice of the active segment and the offsets given out in it.*/
+	private final Object appendLock = new Object();
+	/**Null until the first append since opening or clearing.*/
+	private volatile Segment active;
+	/**The newest segment found on opening, if it has room to resume
+	 * appending to, until the first append.*/
+	private Segment resumable;
+	/**Mappers replaced by resuming a segment, which a reader may still be
+	 * using, so they are only closed with the map.*/
+	private final List<MMapper> retiredMappers = new ArrayList<MMapper>();
+	private int nextSegmentId;
+	/**Held by merge(), so that merges do not overlap.*/
+	private final Object mergeLock = new Object();
+	private ScheduledExecutorService merger = null;
+	private final AtomicLong mergedSegments = new AtomicLong(0), droppedSegments = new AtomicLong(0);
+
+	private static class Segment {
+		final int id;
+		final File file;
+		/**Read-only for the segments found on opening, until one is resumed,
+		 * and null for an empty one, which has nothing to read.*/
+		volatile MMapper mapper;
+		/**Bytes given out, which a writer may still be filling in.*/
+		volatile long length;
+		/**Bytes of the records that a slot points to.*/
+		final AtomicLong live = new AtomicLong(0);
+		//Guarded by the segment's monitor.  A segment is no longer appended
+		//to once sealed, and is deleted once sealed, dead, and not merging.
+		volatile boolean sealed = false;
+		boolean merging = false, dropped = false;
+
+		Segment(int id, File file, long length, MMapper mapper){
+			this.id = id;
+			this.file = file;
+			this.length = length;
+			this.mapper = mapper;
+		}
+		boolean isWritable(){
+			return mapper != null && !mapper.isReadOnly();
+		}
+	}
+
+	public LogStructuredDiskMap(String baseFolderLoc){
+		this(baseFolderLoc, defaultSegmentBytes);
+	}
+	/**Rolls over to a new segment file once one holds the given number of
+	 * bytes.  A record bigger than that gets a segment to itself.*/
+	public LogStructuredDiskMap(String baseFolderLoc, long segmentBytes){
+		super(requireFolder(baseFolderLoc), 0);
+		if(segmentBytes <= 0 || segmentBytes > offsetMask) throw new IllegalArgumentException("Bad segment size " + segmentBytes);
+		this.segmentBytes = segmentBytes;
+		try {
+			openSegments();
+		} catch(Exception e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	//Segments are files, so there is no in-memory form
+	private static String requireFolder(String baseFolderLoc){
+		if(baseFolderLoc == null) throw new IllegalArgumentException("LogStructuredDiskMap needs a folder for its segments");
+		return baseFolderLoc;
+	}
+
+	private File segmentFile(int id){
+		return new File(baseFolderLoc, String.format("segment-%08d.log", id));
+	}
+
+	/**Maps the existing segments read-only, and counts the live bytes of
+	 * each by visiting every slot.  Nothing is deleted or extended here, so
+	 * a map with a damaged primary can be opened, verified and salvaged
+	 * without losing its segments; dead segments are left for merge().  The
+	 * newest segment is resumed by the first append if it has room.  It will
+	 * have none if the map was not closed, since then its file was not
+	 * truncated to the bytes written.*/
+	private void openSegments() throws Exception {
+		int newest = 0;
+		final File[] files = new File(baseFolderLoc).listFiles();
+		if(files != null){
+			for(final File f : files){
+				final Matcher m = segmentName.matcher(f.getName());
+				if(!m.matches()) continue;
+				final int id = Integer.parseInt(m.group(1));
+				final long length = f.length();
+				final Segment seg = new Segment(id, f, length, length == 0 ? null : MMapper.openReadOnly(f.getPath()));
+				seg.sealed = true;
+				segments.put(id, seg);
+				newest = Math.max(newest, id);
+			}
+		}
+		for(int stripe=0; stripe<nLocks; stripe++){
+			final long limit = stripe < rehashComplete.get() ? tableLength * 2 : tableLength;
+			for(long idx = stripe; idx < limit; idx += nLocks){
+				final long base = idxToPos(idx);
+				for(int s = 0; s < slotsPerBucket; s++){
+					final long ptr = primaryMapper.getLong(base + s * slotSize + 8);
+					if(ptr == 0) continue;
+					//A slot pointing nowhere is left for verify() to report
+					final Segment seg = segments.get((int)(ptr >>> offsetBits));
+					if(seg != null && offsetOf(ptr) + recordHeaderSize <= seg.length) seg.live.addAndGet(recordLength(ptr));
+				}
+			}
+		}
+		nextSegmentId = newest + 1;
+		final Segment last = segments.get(newest);
+		if(last != null && last.length < segmentBytes) resumable = last;
+	}
+
+	/**Remaps the resumable segment writable, at full size, and unseals it,
+	 * returning null if there is none or a merge has claimed it.  Called
+	 * under the append lock by the first append.*/
+	private Segment resume() throws Exception {
+		final Segment out = resumable;
+		resumable = null;
+		if(out == null) return null;
+		synchronized(out){
+			if(out.dropped || out.merging) return null;
+			out.sealed = false;
+		}
+		if(out.mapper != null) retiredMappers.add(out.mapper);
+		out.mapper = new MMapper(out.file.getPath(), segmentBytes);
+		return out;
+	}
+
+	/**Creates and registers an empty segment.  Called under the append lock,
+	 * or before the map is in use.*/
+	private Segment newSegment(long capacity) throws Exception {
+		if(nextSegmentId > maxSegmentId) throw new IllegalStateException("Segment ids exhausted");
+		final int id = nextSegmentId++;
+		final Segment out = new Segment(id, segmentFile(id), 0, new MMapper(segmentFile(id).getPath(), capacity));
+		segments.put(id, out);
+		return out;
+	}
+
+	private Segment segmentOf(long ptr){
+		final Segment out = segments.get((int)(ptr >>> offsetBits));
+		if(out == null) throw new IllegalStateException("No segment " + (ptr >>> offsetBits));
+		return out;
+	}
+	private static long offsetOf(long ptr){
+		return ptr & offsetMask;
+	}
+
+	/**Gives out space for a record of the given length at the end of the
+	 * log, rolling over to a new segment if the active one is full, and
+	 * returns its pointer.  The space counts as live from now on.*/
+	private long append(long len){
+		synchronized(appendLock){
+			Segment seg = active;
+			try {
+				if(seg == null) seg = active = resume();
+				if(seg == null || seg.length + len > seg.mapper.size()){
+					final Segment old = seg;
+					seg = active = newSegment(Math.max(segmentBytes, len));
+					if(old != null){
+						old.sealed = true;
+						maybeDrop(old);
+					}
+				}
+			} catch(Exception e){
+				throw new RuntimeException(e);
+			}
+			final long off = seg.length;
+			seg.length = off + len;
+			seg.live.addAndGet(len);
+			return ((long)seg.id << offsetBits) | off;
+		}
+	}
+
+	/**Deletes the segment if it is sealed, dead, and not being merged.  No
+	 * slot points into a dead segment, so nothing can be reading it.*/
+	private void maybeDrop(Segment seg){
+		synchronized(seg){
+			if(seg.dropped || seg.merging || !seg.sealed || seg.live.get() != 0) return;
+			seg.dropped = true;
+		}
+		segments.remove(seg.id, seg);
+		try {
+			if(seg.mapper != null) seg.mapper.close();
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+		seg.file.delete();
+		droppedSegments.incrementAndGet();
+	}
+
+	//Records, in the same format as in RobinHoodDiskMap's secondary
+
+	@Override
+	protected boolean keyMatches(long dataPtr, byte[] k){
+		final MMapper m = segmentOf(dataPtr).mapper;
+		final long off = offsetOf(dataPtr);
+		return m.getInt(off) == k.length && m.bytesEqual(off + recordHeaderSize, k);
+	}
+	@Override
+	protected byte[] readKey(long dataPtr){
+		final MMapper m = segmentOf(dataPtr).mapper;
+		final long off = offsetOf(dataPtr);
+		final byte[] out = new byte[m.getInt(off)];
+		m.getBytes(off + recordHeaderSize, out);
+		return out;
+	}
+	@Override
+	protected byte[] readVal(long dataPtr){
+		final MMapper m = segmentOf(dataPtr).mapper;
+		final long off = offsetOf(dataPtr);
+		final int kLen = m.getInt(off), storedLen = m.getInt(off + 4);
+		final byte[] out = new byte[storedLen & ~RecordPtr.COMPRESSED_FLAG];
+		m.getBytes(off + recordHeaderSize + kLen, out);
+		return (storedLen & RecordPtr.COMPRESSED_FLAG) != 0 ? decompressVal(out) : out;
+	}
+	@Override
+	protected long recordLength(long dataPtr){
+		final MMapper m = segmentOf(dataPtr).mapper;
+		final long off = offsetOf(dataPtr);
+		return recordHeaderSize + m.getInt(off) + (m.getInt(off + 4) & ~RecordPtr.COMPRESSED_FLAG);
+	}
+	@Override
+	protected long writeRecord(byte[] k, byte[] v, byte[] compressed){
+		final byte[] stored = compressed == null ? v : compressed;
+		final long dataPtr = append(recordHeaderSize + k.length + stored.length);
+		final MMapper m = segmentOf(dataPtr).mapper;
+		final long off = offsetOf(dataPtr);
+		m.putInt(off, k.length);
+		m.putInt(off + 4, compressed == null ? stored.length : stored.length | RecordPtr.COMPRESSED_FLAG);
+		m.putBytes(off + recordHeaderSize, k);
+		m.putBytes(off + recordHeaderSize + k.length, stored);
+		return dataPtr;
+	}
+	/**Records are immutable, so an update always appends a new one.*/
+	@Override
+	protected boolean overwriteVal(long dataPtr, byte[] k, byte[] stored, boolean compressed){
+		return false;
+	}
+	@Override
+	protected void releaseRecord(long dataPtr, long length){
+		final Segment seg = segmentOf(dataPtr);
+		if(seg.live.addAndGet(-length) == 0 && seg.sealed) maybeDrop(seg);
+	}
+	@Override
+	protected boolean checkRecord(long dataPtr, String where, VerifyReport report){
+		final Segment seg = segments.get((int)(dataPtr >>> offsetBits));
+		if(seg == null){
+			report.error(where + ": no segment " + (dataPtr >>> offsetBits));
+			return false;
+		}
+		final long off = offsetOf(dataPtr);
+		if(off + recordHeaderSize > seg.length){
+			report.error(where + ": record pointer outside segment " + seg.id);
+			return false;
+		}
+		final long kLen = seg.mapper.getInt(off),
+		           vLen = seg.mapper.getInt(off + 4) & ~RecordPtr.COMPRESSED_FLAG;
+		if(kLen < 0 || off + recordHeaderSize + kLen + vLen > seg.length){
+			report.error(where + ": key or value runs outside segment " + seg.id);
+			return false;
+		}
+		return true;
+	}
+
+	//Records never go to the secondary, so there is none to reserve
+	@Override
+	protected long secondaryBytesFor(int keyBytes, int valBytes) {
+		return 0;
+	}
+
+	/**Copies the live records of every sealed segment whose live bytes are at
+	 * most the given fraction of its length to the end of the log, oldest
+	 * segment first, deleting each segment once done.  Returns the number of
+	 * segments merged.  The segment is read sequentially, and each record's
+	 * slot is looked up under its stripe lock; a record is live if its slot
+	 * still points to it.*/
+	public int merge(double maxLiveRatio){
+		int out = 0;
+		synchronized(mergeLock){
+			final List<Segment> candidates = new ArrayList<Segment>();
+			for(final Segment seg : segments.values()){
+				if(seg.sealed && seg.live.get() <= seg.length * maxLiveRatio) candidates.add(seg);
+			}
+			Collections.sort(candidates, new Comparator<Segment>() {
+				@Override
+				public int compare(Segment a, Segment b) {
+					return Integer.compare(a.id, b.id);
+				}
+			});
+			for(final Segment seg : candidates){
+				synchronized(seg){
+					//Resuming the segment may have unsealed it since
+					if(seg.dropped || !seg.sealed) continue;
+					seg.merging = true;
+				}
+				try {
+					relocateLive(seg);
+				} finally {
+					synchronized(seg){
+						seg.merging = false;
+					}
+					maybeDrop(seg);
+				}
+				out++;
+			}
+		}
+		mergedSegments.addAndGet(out);
+		return out;
+	}
+
+	private void relocateLive(Segment seg){
+		final MMapper m = seg.mapper;
+		final long end = seg.length;
+		for(long off = 0; off + recordHeaderSize <= end; ){
+			final int kLen = m.getInt(off), storedLen = m.getInt(off + 4);
+			//Zeroes are the unwritten tail of a segment that was not closed
+			if(kLen == 0 && storedLen == 0) break;
+			final long len = recordHeaderSize + kLen + (storedLen & ~RecordPtr.COMPRESSED_FLAG);
+			if(kLen < 0 || off + len > end) break;
+			final byte[] key = new byte[kLen];
+			m.getBytes(off + recordHeaderSize, key);
+			final long hash = Hash.murmurHash(key), ptr = ((long)seg.id << offsetBits) | off;
+			synchronized(lockForHash(hash)){
+				final long pos = find(stripeOf(hash), hash, key);
+				if(pos >= 0 && primaryMapper.getLong(pos + 8) == ptr){
+					final byte[] record = new byte[(int)len];
+					m.getBytes(off, record);
+					final long newPtr = append(len);
+					segmentOf(newPtr).mapper.putBytes(offsetOf(newPtr), record);
+					primaryMapper.putLong(pos + 8, newPtr);
+					releaseRecord(ptr, len);
+				}
+			}
+			off += len;
+		}
+	}
+
+	/**Starts a background thread that merges, once per period, the segments
+	 * whose live bytes are at most the given fraction of their length.
+	 * Replaces any merger already running.*/
+	public synchronized void startMerger(long period, TimeUnit unit, final double maxLiveRatio){
+		stopMerger();
+		merger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "lash-segment-merger");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		merger.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				merge(maxLiveRatio);
+			}
+		}, period, period, unit);
+	}
+
+	/**Stops the merger, if one is running, waiting for any merge under way.*/
+	public synchronized void stopMerger(){
+		if(merger == null) return;
+		merger.shutdown();
+		try {
+			merger.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		merger = null;
+	}
+
+	/**Number of segment files, including the one being appended to.*/
+	public int getSegmentCount(){
+		return segments.size();
+	}
+	/**Bytes appended to the segments, live or not.*/
+	public long getSegmentBytes(){
+		long out = 0;
+		for(final Segment seg : segments.values()) out += seg.length;
+		return out;
+	}
+	/**Bytes of the segments' records that a slot points to.*/
+	public long getLiveSegmentBytes(){
+		long out = 0;
+		for(final Segment seg : segments.values()) out += seg.live.get();
+		return out;
+	}
+	/**Number of segments merged since opening.*/
+	public long getMergedSegments(){
+		return mergedSegments.get();
+	}
+	/**Number of segment files deleted since opening.*/
+	public long getDroppedSegments(){
+		return droppedSegments.get();
+	}
+
+	/**Called under every stripe lock, so nothing is appending.  Every segment
+	 * is dead, and all but one being merged are deleted now; that one is
+	 * deleted when its merge finds nothing live.  The next append starts a
+	 * new segment.*/
+	@Override
+	protected void cleared(){
+		synchronized(appendLock){
+			for(final Segment seg : new ArrayList<Segment>(segments.values())){
+				seg.live.set(0);
+				seg.sealed = true;
+				maybeDrop(seg);
+			}
+			active = null;
+			resumable = null;
+		}
+	}
+
+	/**Also truncates each segment file appended to since opening to the
+	 * bytes written, or deletes it if nothing was.  Segments only read are
+	 * left as they are.*/
+	@Override
+	public void close() throws IOException {
+		stopMerger();
+		super.close();
+		for(final MMapper m : retiredMappers) m.close();
+		for(final Segment seg : segments.values()){
+			final boolean written = seg.isWritable();
+			if(seg.mapper != null) seg.mapper.close();
+			if(!written) continue;
+			if(seg.length == 0){
+				seg.file.delete();
+				continue;
+			}
+			final RandomAccessFile f = new RandomAccessFile(seg.file, "rw");
+			try {
+				f.setLength(seg.length);
+			} finally {
+				f.close();
+			}
+		}
+	}
+
+	@Override
+	public void delete() throws IOException {
+		stopMerger();
+		super.delete();
+		for(final MMapper m : retiredMappers) m.close();
+		for(final Segment seg : segments.values()){
+			if(seg.mapper != null) seg.mapper.close();
+			seg.file.delete();
+		}
+		new File(baseFolderLoc).delete();
+	}
+}
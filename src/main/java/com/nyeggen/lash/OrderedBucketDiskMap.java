@@ -0,0 +1,192 @@
+package com.nyeggen.lash;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import com.nyeggen.lash.index.OrderedKeyIndex;
+
+/**A BucketDiskMap that also maintains an ordered index of its keys (see
+ * OrderedKeyIndex), stored alongside the map files, so that key ranges and
+ * prefixes can be scanned without visiting every bucket.  The index is
+ * updated under the same stripe lock as the map, and is rebuilt with a full
+ * scan if a populated map is opened without one.
+ * Keys are ordered as unsigned bytes, lexicographically.*/
+public class OrderedBucketDiskMap extends BucketDiskMap {
+	private final OrderedKeyIndex index;
+
+	public OrderedBucketDiskMap(String baseFolderLoc){
+		this(baseFolderLoc, 0);
+	}
+	public OrderedBucketDiskMap(String baseFolderLoc, long primaryFileLen){
+		super(requireFolder(baseFolderLoc), primaryFileLen);
+		index = new OrderedKeyIndex(this.baseFolderLoc);
+		if(!index.hasPersistedState() && size() > 0) rebuildIndex();
+	}
+
+	//The index's runs are files, so there is no in-memory form
+	private static String requireFolder(String baseFolderLoc){
+		if(baseFolderLoc == null) throw new IllegalArgumentException("OrderedBucketDiskMap needs a folder for its index");
+		return baseFolderLoc;
+	}
+
+	private void rebuildIndex(){
+		final Iterator<Map.Entry<byte[], byte[]>> it = super.iterator();
+		while(it.hasNext()){
+			index.add(it.next().getKey());
+			index.maybeFlush();
+		}
+		index.flush();
+	}
+
+	@Override
+	protected void keyInserted(byte[] k) {
+		index.add(k.clone());
+	}
+	@Override
+	protected void keyRemoved(byte[] k) {
+		index.remove(k.clone());
+	}
+
+	//Flushing happens outside the stripe lock, after the mutation.
+	@Override
+	public byte[] put(byte[] k, byte[] v) {
+		final byte[] out = super.put(k, v);
+		index.maybeFlush();
+		return out;
+	}
+	@Override
+	public byte[] put(byte[] k, byte[] v, long ttl, TimeUnit unit) {
+		final byte[] out = super.put(k, v, ttl, unit);
+		index.maybeFlush();
+		return out;
+	}
+	@Override
+	public byte[] putIfAbsent(byte[] k, byte[] v, long ttl, TimeUnit unit) {
+		final byte[] out = super.putIfAbsent(k, v, ttl, unit);
+		index.maybeFlush();
+		return out;
+	}
+	@Override
+	public byte[] putIfAbsent(byte[] k, byte[] v) {
+		final byte[] out = super.putIfAbsent(k, v);
+		index.maybeFlush();
+		return out;
+	}
+	@Override
+	public byte[] remove(byte[] k) {
+		final byte[] out = super.remove(k);
+		index.maybeFlush();
+		return out;
+	}
+	@Override
+	public boolean remove(byte[] k, byte[] v) {
+		final boolean out = super.remove(k, v);
+		index.maybeFlush();
+		return out;
+	}
+
+	@Override
+	public byte[] compute(byte[] k, BiFunction<? super byte[], ? super byte[], ? extends byte[]> f) {
+		final byte[] out = super.compute(k, f);
+		index.maybeFlush();
+		return out;
+	}
+	@Override
+	public long addAndGet(byte[] k, long delta) {
+		final long out = super.addAndGet(k, delta);
+		index.maybeFlush();
+		return out;
+	}
+	//Lookups and replacements may remove an expired key lazily, and the
+	//sweeper removes them a stripe at a time, so these flush too.
+	@Override
+	public byte[] get(byte[] k) {
+		final byte[] out = super.get(k);
+		index.maybeFlush();
+		return out;
+	}
+	@Override
+	public byte[] replace(byte[] k, byte[] v) {
+		final byte[] out = super.replace(k, v);
+		index.maybeFlush();
+		return out;
+	}
+	@Override
+	public boolean replace(byte[] k, byte[] prevVal, byte[] newVal) {
+		final boolean out = super.replace(k, prevVal, newVal);
+		index.maybeFlush();
+		return out;
+	}
+	@Override
+	protected void expireStripe(int stripe) {
+		super.expireStripe(stripe);
+		index.maybeFlush();
+	}
+
+	/**Returns the entries with from <= key < to, in key order.  Either bound
+	 * may be null for an open range.  Values are looked up as the iterator
+	 * advances, and keys removed in the meantime are skipped, so the iterator
+	 * is weakly consistent.  It does not support removal.*/
+	public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to){
+		return new EntryIterator(index.range(from, to));
+	}
+
+	/**Returns the entries whose keys begin with the given prefix, in key order.*/
+	public Iterator<Map.Entry<byte[], byte[]>> prefix(byte[] prefix){
+		return new EntryIterator(index.prefix(prefix));
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+		final Iterator<byte[]> keys;
+		Map.Entry<byte[], byte[]> next;
+		EntryIterator(Iterator<byte[]> keys){
+			this.keys = keys;
+			advance();
+		}
+		private void advance(){
+			next = null;
+			while(next == null && keys.hasNext()){
+				final byte[] k = keys.next();
+				final byte[] v = get(k);
+				if(v != null) next = new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(k, v);
+			}
+		}
+		@Override
+		public boolean hasNext() { return next != null; }
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			if(next == null) throw new NoSuchElementException();
+			final Map.Entry<byte[], byte[]> out = next;
+			advance();
+			return out;
+		}
+		@Override
+		public void remove() { throw new UnsupportedOperationException(); }
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		index.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		//The sweeper removes keys from the index
+		stopExpirySweeper();
+		index.close();
+		super.close();
+	}
+
+	@Override
+	public void delete() throws IOException {
+		stopExpirySweeper();
+		index.delete();
+		super.delete();
+	}
+}
@@ -0,0 +1,720 @@
+package com.nyeggen.lash;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import com.nyeggen.lash.bucket.RecordPtr;
+import com.nyeggen.lash.stats.MapMetrics.Op;
+import com.nyeggen.lash.stats.MapStats;
+import com.nyeggen.lash.util.Hash;
+
+/**An open-addressing implementation.  The primary holds buckets of four
+ * slots, each a hash and a pointer to the record's key and value in the
+ * secondary, so that a bucket fills one cache line.  Records are placed with
+ * Robin Hood hashing: a record probing past its home bucket takes the slot
+ * of any record nearer its own home, which keeps probe lengths short and
+ * even, so the table is only expanded at a load of 0.9.
+ * Probing stays within a stripe, stepping through the buckets of the
+ * record's residue class, so that each stripe is an independent table under
+ * its own lock and is rehashed incrementally like the chained maps.  A stripe
+ * that fills before the table as a whole is loaded enough to expand is
+ * rehashed early.*/
+public class RobinHoodDiskMap extends ADiskMap {
+	static final int slotSize = 16;
+	static final int slotsPerBucket = 4;
+	static final int bucketByteSize = slotSize * slotsPerBucket;
+	/**Load, in records per slot, above which the table is expanded.*/
+	static final double maxLoad = 0.9;
+	private static final int stripeBits = Integer.numberOfTrailingZeros(nLocks);
+	//Records in secondary are the key length, the stored value length (with
+	//RecordPtr.COMPRESSED_FLAG), the key, and the value.
+	static final int recordHeaderSize = 8;
+
+	public RobinHoodDiskMap(String baseFolderLoc){
+		this(baseFolderLoc, 0);
+	}
+	public RobinHoodDiskMap(String baseFolderLoc, long primaryFileLen){
+		super(baseFolderLoc, nextPowerOf2(primaryFileLen));
+	}
+	/**Creates (or opens) a map presized for the given number of entries, as
+	 * with reserve().*/
+	public RobinHoodDiskMap(String baseFolderLoc, long expectedEntries, int avgKeyBytes, int avgValBytes){
+		this(baseFolderLoc, bucketByteSize * tableLengthFor(expectedEntries, slotsPerBucket));
+		reserve(expectedEntries, avgKeyBytes, avgValBytes);
+	}
+
+	@Override
+	protected void readHeader(){
+		secondaryLock.readLock().lock();
+		try {
+			final long size = secondaryMapper.getLong(0),
+					   bucketsInMap = secondaryMapper.getLong(8),
+					   lastSecondaryPos = secondaryMapper.getLong(16),
+					   rehashComplete = secondaryMapper.getLong(24);
+			this.size.set(size);
+			this.tableLength = bucketsInMap == 0 ? (primaryMapper.size() / bucketByteSize) : bucketsInMap;
+			this.secondaryWritePos.set(lastSecondaryPos == 0 ? getHeaderSize() : lastSecondaryPos);
+			this.rehashComplete.set(rehashComplete);
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public double load() {
+		return super.load() / slotsPerBucket;
+	}
+	@Override
+	protected int recordsPerIdx() {
+		return slotsPerBucket;
+	}
+	@Override
+	protected double maxLoad() {
+		return maxLoad;
+	}
+	@Override
+	protected long secondaryBytesFor(int keyBytes, int valBytes) {
+		return recordHeaderSize + keyBytes + valBytes;
+	}
+
+	protected long idxToPos(long idx){
+		return idx * bucketByteSize;
+	}
+
+	//Geometry.  Within a stripe, bucket j of a table of length len is at
+	//index stripe + j * nLocks, and the stripe has len / nLocks buckets.
+
+	/**Table length the given stripe is currently laid out for.*/
+	private long lengthFor(int stripe){
+		return stripe < rehashComplete.get() ? tableLength * 2 : tableLength;
+	}
+	static int stripeOf(long hash){
+		return (int)(hash & (nLocks - 1));
+	}
+	private static long bucketIdx(int stripe, long j){
+		return stripe + (j << stripeBits);
+	}
+	/**Position of the record's home bucket in its stripe.*/
+	private static long home(long hash, long len){
+		return (hash & (len - 1)) >>> stripeBits;
+	}
+	/**Number of buckets past its home that a record in bucket j lies.*/
+	private static long displacement(long hash, long j, long len){
+		return (j - home(hash, len)) & ((len >>> stripeBits) - 1);
+	}
+
+	//Records in secondary.  Subclasses may keep records elsewhere by
+	//overriding these; the slots only hold whatever pointer writeRecord
+	//returned, which must not be 0.
+
+	protected boolean keyMatches(long dataPtr, byte[] k){
+		secondaryLock.readLock().lock();
+		try {
+			return secondaryMapper.getInt(dataPtr) == k.length && secondaryMapper.bytesEqual(dataPtr + recordHeaderSize, k);
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+	}
+	protected byte[] readKey(long dataPtr){
+		secondaryLock.readLock().lock();
+		try {
+			final byte[] out = new byte[secondaryMapper.getInt(dataPtr)];
+			secondaryMapper.getBytes(dataPtr + recordHeaderSize, out);
+			return out;
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+	}
+	/**Returns the (decompressed) value of the record.*/
+	protected byte[] readVal(long dataPtr){
+		final int storedLen;
+		final byte[] out;
+		secondaryLock.readLock().lock();
+		try {
+			final int kLen = secondaryMapper.getInt(dataPtr);
+			storedLen = secondaryMapper.getInt(dataPtr + 4);
+			out = new byte[storedLen & ~RecordPtr.VAL_FLAGS];
+			secondaryMapper.getBytes(dataPtr + recordHeaderSize + kLen, out);
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+		return (storedLen & RecordPtr.COMPRESSED_FLAG) != 0 ? decompressVal(out) : out;
+	}
+	/**Number of bytes the record occupies in secondary.*/
+	protected long recordLength(long dataPtr){
+		secondaryLock.readLock().lock();
+		try {
+			return recordHeaderSize + secondaryMapper.getInt(dataPtr) + valCapacity(dataPtr);
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+	}
+	/**Number of bytes the record's value may take in place, which is more
+	 * than its length if it was overwritten by a shorter one (see
+	 * RecordPtr.PADDED_FLAG).  Called under the secondary's read lock.*/
+	private long valCapacity(long dataPtr){
+		final int storedLen = secondaryMapper.getInt(dataPtr + 4), vLen = storedLen & ~RecordPtr.VAL_FLAGS;
+		if((storedLen & RecordPtr.PADDED_FLAG) == 0) return vLen;
+		return vLen + RecordPtr.readSlack(secondaryMapper, dataPtr + recordHeaderSize + secondaryMapper.getInt(dataPtr) + vLen);
+	}
+	/**Writes a record to newly allocated space, returning its position.
+	 * compressed is the compressed form of v, or null to store v as is.*/
+	protected long writeRecord(byte[] k, byte[] v, byte[] compressed){
+		final byte[] stored = compressed == null ? v : compressed;
+		final long dataPtr = allocateData(recordHeaderSize + k.length + stored.length);
+		secondaryLock.readLock().lock();
+		try {
+			secondaryMapper.putInt(dataPtr, k.length);
+			secondaryMapper.putInt(dataPtr + 4, compressed == null ? stored.length : stored.length | RecordPtr.COMPRESSED_FLAG);
+			secondaryMapper.putBytes(dataPtr + recordHeaderSize, k);
+			secondaryMapper.putBytes(dataPtr + recordHeaderSize + k.length, stored);
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+		return dataPtr;
+	}
+	/**Overwrites the stored value of the record in place, returning false,
+	 * having changed nothing, if it does not fit.  Any bytes it leaves spare
+	 * are recorded as slack, so that the extent keeps its capacity.  k is
+	 * the record's key.*/
+	protected boolean overwriteVal(long dataPtr, byte[] k, byte[] stored, boolean compressed){
+		secondaryLock.readLock().lock();
+		try {
+			final long capacity = valCapacity(dataPtr);
+			if(capacity < stored.length) return false;
+			final boolean pad = stored.length < capacity;
+			secondaryMapper.putBytes(dataPtr + recordHeaderSize + k.length, stored);
+			if(pad) RecordPtr.writeSlack(secondaryMapper, dataPtr + recordHeaderSize + k.length + stored.length, (int)(capacity - stored.length));
+			secondaryMapper.putInt(dataPtr + 4, stored.length | (compressed ? RecordPtr.COMPRESSED_FLAG : 0) | (pad ? RecordPtr.PADDED_FLAG : 0));
+			return true;
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+	}
+	/**Called under the lock once no slot points to the record.*/
+	protected void releaseRecord(long dataPtr, long length){
+		freeSecondary(dataPtr, length);
+	}
+	/**Reports any way in which the pointer does not lead to a whole record,
+	 * returning false if the record cannot be read at all.*/
+	protected boolean checkRecord(long dataPtr, String where, VerifyReport report){
+		final long headerSize = getHeaderSize(), writePos = secondaryWritePos.get(), secondaryLen = secondaryMapper.size();
+		if(dataPtr < headerSize || dataPtr + recordHeaderSize > secondaryLen){
+			report.error(where + ": record pointer outside the secondary");
+			return false;
+		}
+		final long kLen = secondaryMapper.getInt(dataPtr),
+		           vLen = secondaryMapper.getInt(dataPtr + 4) & ~RecordPtr.VAL_FLAGS;
+		if(kLen < 0 || dataPtr + recordHeaderSize + kLen + vLen > secondaryLen){
+			report.error(where + ": key or value runs outside the secondary");
+			return false;
+		}
+		if(dataPtr + recordHeaderSize + kLen + vLen > writePos) report.error(where + ": beyond the write position");
+		return true;
+	}
+
+	//Slots in primary
+
+	/**Returns the primary position of the slot holding the key, or -1.
+	 * Called under the lock.*/
+	long find(int stripe, long hash, byte[] k){
+		final long len = lengthFor(stripe), mask = (len >>> stripeBits) - 1, home = home(hash, len);
+		for(long d = 0; d <= mask; d++){
+			final long j = (home + d) & mask;
+			final long base = idxToPos(bucketIdx(stripe, j));
+			boolean open = false, passes = false;
+			for(int s = 0; s < slotsPerBucket; s++){
+				final long pos = base + s * slotSize;
+				final long dataPtr = primaryMapper.getLong(pos + 8);
+				if(dataPtr == 0){
+					open = true;
+					continue;
+				}
+				final long h = primaryMapper.getLong(pos);
+				if(h == hash && keyMatches(dataPtr, k)) return pos;
+				if(displacement(h, j, len) >= d) passes = true;
+			}
+			//Had the key probed further, it would have taken a free slot
+			//here, or the slot of a record nearer its home
+			if(open || !passes) return -1;
+		}
+		return -1;
+	}
+
+	private boolean hasFreeSlot(long idx){
+		final long base = idxToPos(idx);
+		for(int s = 0; s < slotsPerBucket; s++){
+			if(primaryMapper.getLong(base + s * slotSize + 8) == 0) return true;
+		}
+		return false;
+	}
+
+	/**Returns how many buckets past the home of a record with the given hash
+	 * the first free slot is, or -1 if the stripe is full.*/
+	private long freeDistance(int stripe, long len, long hash){
+		final long mask = (len >>> stripeBits) - 1, home = home(hash, len);
+		for(long d = 0; d <= mask; d++){
+			if(hasFreeSlot(bucketIdx(stripe, (home + d) & mask))) return d;
+		}
+		return -1;
+	}
+
+	/**Places a record in the stripe, laid out for a table of length len,
+	 * given the distance from its home to the first free slot.  In each full
+	 * bucket on the way, the record carried swaps places with the record
+	 * nearest its home, if that is nearer than the one carried.  Whichever
+	 * record is left over takes the free slot.  Called under the lock.*/
+	private void place(int stripe, long len, long hash, long dataPtr, long freeDistance){
+		final long mask = (len >>> stripeBits) - 1, home = home(hash, len);
+		long curHash = hash, curPtr = dataPtr, curDisp = 0;
+		for(long d = 0; ; d++, curDisp++){
+			final long j = (home + d) & mask;
+			final long base = idxToPos(bucketIdx(stripe, j));
+			if(d == freeDistance){
+				for(int s = 0; s < slotsPerBucket; s++){
+					final long pos = base + s * slotSize;
+					if(primaryMapper.getLong(pos + 8) == 0){
+						primaryMapper.putLong(pos, curHash);
+						primaryMapper.putLong(pos + 8, curPtr);
+						return;
+					}
+				}
+				throw new IllegalStateException("No free slot in bucket " + bucketIdx(stripe, j));
+			}
+			long nearestPos = -1, nearestDisp = curDisp;
+			for(int s = 0; s < slotsPerBucket; s++){
+				final long pos = base + s * slotSize;
+				final long disp = displacement(primaryMapper.getLong(pos), j, len);
+				if(disp < nearestDisp){
+					nearestDisp = disp;
+					nearestPos = pos;
+				}
+			}
+			if(nearestPos >= 0){
+				final long h = primaryMapper.getLong(nearestPos), p = primaryMapper.getLong(nearestPos + 8);
+				primaryMapper.putLong(nearestPos, curHash);
+				primaryMapper.putLong(nearestPos + 8, curPtr);
+				curHash = h;
+				curPtr = p;
+				curDisp = nearestDisp;
+			}
+		}
+	}
+
+	/**Empties the slot at pos, then shifts records back into the gap from
+	 * each following bucket (the one furthest from its home), until a bucket
+	 * holds none that are away from home.  Called under the lock.*/
+	private void removeAt(int stripe, long pos){
+		final long len = lengthFor(stripe), mask = (len >>> stripeBits) - 1;
+		long hole = pos;
+		long j = (pos / bucketByteSize) >>> stripeBits;
+		for(long n = 0; n < mask; n++){
+			j = (j + 1) & mask;
+			final long base = idxToPos(bucketIdx(stripe, j));
+			long furthestPos = -1, furthestDisp = 0;
+			for(int s = 0; s < slotsPerBucket; s++){
+				final long slot = base + s * slotSize;
+				if(primaryMapper.getLong(slot + 8) == 0) continue;
+				final long disp = displacement(primaryMapper.getLong(slot), j, len);
+				if(disp > furthestDisp){
+					furthestDisp = disp;
+					furthestPos = slot;
+				}
+			}
+			if(furthestPos < 0) break;
+			primaryMapper.putLong(hole, primaryMapper.getLong(furthestPos));
+			primaryMapper.putLong(hole + 8, primaryMapper.getLong(furthestPos + 8));
+			hole = furthestPos;
+		}
+		primaryMapper.putLong(hole, 0);
+		primaryMapper.putLong(hole + 8, 0);
+	}
+
+	/**Writes and places a new record, unless the stripe is full, in which
+	 * case this returns false having changed nothing.  Called under the lock.*/
+	private boolean insert(int stripe, long hash, byte[] k, byte[] v, byte[] compressed){
+		final long len = lengthFor(stripe);
+		final long free = freeDistance(stripe, len, hash);
+		if(free < 0) return false;
+		place(stripe, len, hash, writeRecord(k, v, compressed), free);
+		size.incrementAndGet();
+		return true;
+	}
+
+	/**Replaces the value of the record in the slot at pos, in place if the
+	 * new stored value fits.  Called under the lock.*/
+	private void replaceAt(long pos, byte[] k, byte[] v, byte[] compressed){
+		final byte[] stored = compressed == null ? v : compressed;
+		final long dataPtr = primaryMapper.getLong(pos + 8);
+		if(overwriteVal(dataPtr, k, stored, compressed != null)) return;
+		final long oldLength = recordLength(dataPtr);
+		primaryMapper.putLong(pos + 8, writeRecord(k, v, compressed));
+		releaseRecord(dataPtr, oldLength);
+	}
+
+	/**Removes the record in the slot at pos.  Called under the lock.*/
+	private void deleteAt(int stripe, long pos){
+		final long dataPtr = primaryMapper.getLong(pos + 8);
+		final long length = recordLength(dataPtr);
+		removeAt(stripe, pos);
+		releaseRecord(dataPtr, length);
+		size.decrementAndGet();
+	}
+
+	@Override
+	public byte[] get(byte[] k){
+		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
+		synchronized(lockForHash(hash)){
+			lockAcquired(hash, start);
+			try {
+				final long pos = find(stripeOf(hash), hash, k);
+				return pos < 0 ? null : readVal(primaryMapper.getLong(pos + 8));
+			} finally {
+				opDone(Op.GET, start);
+			}
+		}
+	}
+
+	@Override
+	public byte[] putIfAbsent(byte[] k, byte[] v){
+		if(load() > maxLoad) rehash();
+		final long hash = Hash.murmurHash(k);
+		final int stripe = stripeOf(hash);
+		final byte[] compressed = compressVal(v);
+		while(true){
+			final long observed;
+			final long start = opStart();
+			synchronized(lockForHash(hash)){
+				lockAcquired(hash, start);
+				try {
+					final long pos = find(stripe, hash, k);
+					if(pos >= 0) return readVal(primaryMapper.getLong(pos + 8));
+					if(insert(stripe, hash, k, v, compressed)) return null;
+					observed = lengthFor(stripe);
+				} finally {
+					opDone(Op.PUT_IF_ABSENT, start);
+				}
+			}
+			rehashStripeNow(stripe, observed);
+		}
+	}
+
+	@Override
+	public byte[] put(byte[] k, byte[] v){
+		if(load() > maxLoad) rehash();
+		final long hash = Hash.murmurHash(k);
+		final int stripe = stripeOf(hash);
+		final byte[] compressed = compressVal(v);
+		while(true){
+			final long observed;
+			final long start = opStart();
+			synchronized(lockForHash(hash)){
+				lockAcquired(hash, start);
+				try {
+					final long pos = find(stripe, hash, k);
+					if(pos >= 0){
+						final byte[] out = readVal(primaryMapper.getLong(pos + 8));
+						replaceAt(pos, k, v, compressed);
+						return out;
+					}
+					if(insert(stripe, hash, k, v, compressed)) return null;
+					observed = lengthFor(stripe);
+				} finally {
+					opDone(Op.PUT, start);
+				}
+			}
+			rehashStripeNow(stripe, observed);
+		}
+	}
+
+	@Override
+	public byte[] remove(byte[] k){
+		maybeShrink();
+		final long hash = Hash.murmurHash(k);
+		final int stripe = stripeOf(hash);
+		final long start = opStart();
+		synchronized(lockForHash(hash)){
+			lockAcquired(hash, start);
+			try {
+				final long pos = find(stripe, hash, k);
+				if(pos < 0) return null;
+				final byte[] out = readVal(primaryMapper.getLong(pos + 8));
+				deleteAt(stripe, pos);
+				return out;
+			} finally {
+				opDone(Op.REMOVE, start);
+			}
+		}
+	}
+
+	@Override
+	public boolean remove(byte[] k, byte[] v){
+		maybeShrink();
+		final long hash = Hash.murmurHash(k);
+		final int stripe = stripeOf(hash);
+		final long start = opStart();
+		synchronized(lockForHash(hash)){
+			lockAcquired(hash, start);
+			try {
+				final long pos = find(stripe, hash, k);
+				if(pos < 0 || !Arrays.equals(v, readVal(primaryMapper.getLong(pos + 8)))) return false;
+				deleteAt(stripe, pos);
+				return true;
+			} finally {
+				opDone(Op.REMOVE, start);
+			}
+		}
+	}
+
+	@Override
+	public boolean replace(byte[] k, byte[] prevVal, byte[] newVal){
+		final long hash = Hash.murmurHash(k);
+		final byte[] compressed = compressVal(newVal);
+		final long start = opStart();
+		synchronized(lockForHash(hash)){
+			lockAcquired(hash, start);
+			try {
+				final long pos = find(stripeOf(hash), hash, k);
+				if(pos < 0 || !Arrays.equals(prevVal, readVal(primaryMapper.getLong(pos + 8)))) return false;
+				replaceAt(pos, k, newVal, compressed);
+				return true;
+			} finally {
+				opDone(Op.REPLACE, start);
+			}
+		}
+	}
+
+	@Override
+	public byte[] replace(byte[] k, byte[] v){
+		final long hash = Hash.murmurHash(k);
+		final byte[] compressed = compressVal(v);
+		final long start = opStart();
+		synchronized(lockForHash(hash)){
+			lockAcquired(hash, start);
+			try {
+				final long pos = find(stripeOf(hash), hash, k);
+				if(pos < 0) return null;
+				final byte[] out = readVal(primaryMapper.getLong(pos + 8));
+				replaceAt(pos, k, v, compressed);
+				return out;
+			} finally {
+				opDone(Op.REPLACE, start);
+			}
+		}
+	}
+
+	/**f is applied only once room for a new record is assured, so a full
+	 * stripe does not cause it to be applied twice.*/
+	@Override
+	public byte[] compute(byte[] k, BiFunction<? super byte[], ? super byte[], ? extends byte[]> f){
+		if(load() > maxLoad) rehash();
+		else maybeShrink();
+		final long hash = Hash.murmurHash(k);
+		final int stripe = stripeOf(hash);
+		while(true){
+			final long observed;
+			final long start = opStart();
+			synchronized(lockForHash(hash)){
+				lockAcquired(hash, start);
+				try {
+					final long len = lengthFor(stripe);
+					final long pos = find(stripe, hash, k);
+					final long free = pos < 0 ? freeDistance(stripe, len, hash) : 0;
+					if(free >= 0){
+						final byte[] prevVal = pos < 0 ? null : readVal(primaryMapper.getLong(pos + 8));
+						final byte[] v = f.apply(k, prevVal);
+						if(v == null && prevVal == null) return null;
+						if(v == null) deleteAt(stripe, pos);
+						else if(pos >= 0) replaceAt(pos, k, v, compressVal(v));
+						else {
+							place(stripe, len, hash, writeRecord(k, v, compressVal(v)), free);
+							size.incrementAndGet();
+						}
+						return v;
+					}
+					observed = len;
+				} finally {
+					opDone(Op.COMPUTE, start);
+				}
+			}
+			rehashStripeNow(stripe, observed);
+		}
+	}
+
+	@Override
+	public long addAndGet(byte[] k, long delta){
+		if(load() > maxLoad) rehash();
+		final long hash = Hash.murmurHash(k);
+		final int stripe = stripeOf(hash);
+		while(true){
+			final long observed;
+			final long start = opStart();
+			synchronized(lockForHash(hash)){
+				lockAcquired(hash, start);
+				try {
+					final long pos = find(stripe, hash, k);
+					if(pos < 0){
+						if(insert(stripe, hash, k, counterBytes(delta), null)) return delta;
+						observed = lengthFor(stripe);
+					} else {
+						final byte[] prev = readVal(primaryMapper.getLong(pos + 8));
+						if(prev.length != 8) throw new IllegalArgumentException("Value is not an 8-byte counter");
+						final long out = counterValue(prev) + delta;
+						replaceAt(pos, k, counterBytes(out), null);
+						return out;
+					}
+				} finally {
+					opDone(Op.ADD_AND_GET, start);
+				}
+			}
+			rehashStripeNow(stripe, observed);
+		}
+	}
+
+	/**Records may lie beyond their home bucket, so rehashing redistributes
+	 * a whole stripe at once, on the call for its first bucket; later calls
+	 * for the stripe have nothing to do.*/
+	@Override
+	protected void rehashIdx(long idx){
+		if(idx < nLocks) relayStripe((int)idx, tableLength, tableLength * 2);
+	}
+
+	/**As rehashIdx, in reverse.*/
+	@Override
+	protected void mergeIdx(long idx){
+		if(idx < nLocks) relayStripe((int)idx, tableLength * 2, tableLength);
+	}
+
+	/**A stripe can be merged if it would be no fuller than the expansion
+	 * threshold afterwards.*/
+	@Override
+	protected boolean canMerge(int stripe){
+		final long buckets = tableLength >>> stripeBits;
+		return countStripe(stripe, tableLength * 2) <= buckets * slotsPerBucket * maxLoad;
+	}
+
+	private long countStripe(int stripe, long len){
+		long out = 0;
+		for(long j = 0; j < (len >>> stripeBits); j++){
+			final long base = idxToPos(bucketIdx(stripe, j));
+			for(int s = 0; s < slotsPerBucket; s++){
+				if(primaryMapper.getLong(base + s * slotSize + 8) != 0) out++;
+			}
+		}
+		return out;
+	}
+
+	/**Empties every slot of the stripe, laid out for a table of length
+	 * fromLen, and places the records again for a table of length toLen.*/
+	private void relayStripe(int stripe, long fromLen, long toLen){
+		final int n = (int)countStripe(stripe, fromLen);
+		final long[] hashes = new long[n], ptrs = new long[n];
+		int i = 0;
+		for(long j = 0; j < (fromLen >>> stripeBits); j++){
+			final long base = idxToPos(bucketIdx(stripe, j));
+			for(int s = 0; s < slotsPerBucket; s++){
+				final long pos = base + s * slotSize;
+				final long dataPtr = primaryMapper.getLong(pos + 8);
+				if(dataPtr == 0) continue;
+				hashes[i] = primaryMapper.getLong(pos);
+				ptrs[i++] = dataPtr;
+				primaryMapper.putLong(pos, 0);
+				primaryMapper.putLong(pos + 8, 0);
+			}
+		}
+		for(i = 0; i < n; i++){
+			final long free = freeDistance(stripe, toLen, hashes[i]);
+			if(free < 0) throw new IllegalStateException("Stripe " + stripe + " does not fit a table of length " + toLen);
+			place(stripe, toLen, hashes[i], ptrs[i], free);
+		}
+	}
+
+	@Override
+	protected void readBucket(long idx, List<Map.Entry<byte[], byte[]>> out){
+		final int stripe = (int)(idx & (nLocks - 1));
+		final long len = lengthFor(stripe), mask = (len >>> stripeBits) - 1, home = idx >>> stripeBits;
+		//Records whose home is idx lie in it or the buckets after it
+		for(long d = 0; d <= mask; d++){
+			final long j = (home + d) & mask;
+			final long base = idxToPos(bucketIdx(stripe, j));
+			boolean open = false, passes = false;
+			for(int s = 0; s < slotsPerBucket; s++){
+				final long pos = base + s * slotSize;
+				final long dataPtr = primaryMapper.getLong(pos + 8);
+				if(dataPtr == 0){
+					open = true;
+					continue;
+				}
+				final long disp = displacement(primaryMapper.getLong(pos), j, len);
+				if(disp == d) out.add(new DiskMapEntry(readKey(dataPtr), readVal(dataPtr)));
+				if(disp >= d) passes = true;
+			}
+			if(open || !passes) return;
+		}
+	}
+
+	//Chain length is the number of buckets probed to reach each record
+	@Override
+	protected void scanIdx(long idx, MapStats stats){
+		final int stripe = (int)(idx & (nLocks - 1));
+		final long len = lengthFor(stripe), base = idxToPos(idx);
+		for(int s = 0; s < slotsPerBucket; s++){
+			final long pos = base + s * slotSize;
+			final long dataPtr = primaryMapper.getLong(pos + 8);
+			if(dataPtr == 0) continue;
+			stats.liveBytes += recordLength(dataPtr);
+			stats.addChain((int)Math.min(Integer.MAX_VALUE, displacement(primaryMapper.getLong(pos), idx >>> stripeBits, len) + 1));
+		}
+	}
+
+	/**Whether find() would reach bucket j, in which a record with the given
+	 * hash lies.*/
+	private boolean reachable(int stripe, long len, long hash, long j){
+		final long mask = (len >>> stripeBits) - 1, home = home(hash, len), dist = (j - home) & mask;
+		for(long d = 0; d < dist; d++){
+			final long jd = (home + d) & mask;
+			final long base = idxToPos(bucketIdx(stripe, jd));
+			boolean passes = false;
+			for(int s = 0; s < slotsPerBucket; s++){
+				final long pos = base + s * slotSize;
+				if(primaryMapper.getLong(pos + 8) == 0) return false;
+				if(displacement(primaryMapper.getLong(pos), jd, len) >= d) passes = true;
+			}
+			if(!passes) return false;
+		}
+		return true;
+	}
+
+	@Override
+	protected void checkIdx(long idx, VerifyReport report, IDiskMap target){
+		final int stripe = (int)(idx & (nLocks - 1));
+		final long len = lengthFor(stripe), base = idxToPos(idx);
+		for(int s = 0; s < slotsPerBucket; s++){
+			final long pos = base + s * slotSize;
+			final long dataPtr = primaryMapper.getLong(pos + 8);
+			if(dataPtr == 0) continue;
+			final String where = "Bucket " + idx + ", slot " + s;
+			if(!checkRecord(dataPtr, where, report)) continue;
+			final byte[] key = readKey(dataPtr);
+			final long hash = primaryMapper.getLong(pos);
+			if(Hash.murmurHash(key) != hash){
+				report.error(where + ": stored hash does not match key");
+				continue;
+			}
+			if(stripeOf(hash) != stripe) report.error(where + ": belongs in stripe " + stripeOf(hash));
+			else if(idx >= len) report.error(where + ": outside the table of length " + len);
+			else if(!reachable(stripe, len, hash, idx >>> stripeBits)) report.error(where + ": not reachable from its home bucket");
+			report.record();
+			if(target != null){
+				try {
+					if(target.putIfAbsent(key, readVal(dataPtr)) == null) report.salvaged();
+				} catch(RuntimeException e){
+					report.error(where + ": value is unreadable (" + e + ")");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package com.nyeggen.lash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import com.nyeggen.lash.util.Hash;
+
+/**Partitions keys across several BucketDiskMaps, one per folder, so that
+ * maps on separate devices can serve requests in parallel.  A key's shard is
+ * chosen by the high bits of its hash, which the shards themselves do not
+ * use (they index by the low bits), so each shard's table stays evenly
+ * loaded.  Shards are opened, closed and cleared in parallel.
+ * The shard count and order are recorded in each folder, and reopening
+ * with a different list of folders throws IllegalArgumentException, since
+ * keys would no longer be found in their shards.*/
+public class ShardedDiskMap implements IDiskMap {
+	static final String shardFileName = "shard.info";
+	private final BucketDiskMap[] shards;
+	
+	public ShardedDiskMap(String... folders){
+		this(0, folders);
+	}
+	/**Opens the shards with the given primary file length, as for
+	 * BucketDiskMap(String, long).*/
+	public ShardedDiskMap(final long primaryFileLen, String... folders){
+		if(folders.length == 0) throw new IllegalArgumentException("No shard folders given");
+		shards = new BucketDiskMap[folders.length];
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(folders.length);
+		for(int i=0; i<folders.length; i++){
+			final int shard = i;
+			final String folder = folders[i];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					checkShardInfo(folder, shard, shards.length);
+					shards[shard] = openShard(folder, primaryFileLen);
+					return null;
+				}
+			});
+		}
+		try {
+			runAll(tasks);
+		} catch(RuntimeException e){
+			for(final BucketDiskMap shard : shards){
+				try {
+					if(shard != null) shard.close();
+				} catch(IOException ignored){}
+			}
+			throw e;
+		}
+	}
+	
+	/**Opens the map for one shard; subclasses may override this to
+	 * configure shards or to use a BucketDiskMap subclass.  Called in
+	 * parallel, from the constructor.*/
+	protected BucketDiskMap openShard(String folder, long primaryFileLen){
+		return new BucketDiskMap(folder, primaryFileLen);
+	}
+	
+	private static void checkShardInfo(String folder, int shard, int nShards) throws IOException {
+		new File(folder).mkdirs();
+		try(RandomAccessFile f = new RandomAccessFile(new File(folder, shardFileName), "rw")){
+			if(f.length() == 0){
+				f.writeInt(shard);
+				f.writeInt(nShards);
+			} else {
+				final int storedShard = f.readInt(), storedCount = f.readInt();
+				if(storedShard != shard || storedCount != nShards){
+					throw new IllegalArgumentException(folder + " holds shard " + storedShard + " of " + storedCount
+							+ ", but was given as shard " + shard + " of " + nShards);
+				}
+			}
+		}
+	}
+	
+	/**Runs the given tasks on a thread each, and waits for all to finish.*/
+	private static void runAll(List<? extends Callable<Void>> tasks){
+		final ExecutorService exec = Executors.newFixedThreadPool(tasks.size());
+		try {
+			RuntimeException failure = null;
+			for(final Future<Void> f : exec.invokeAll(tasks)){
+				try {
+					f.get();
+				} catch(ExecutionException e){
+					if(failure != null) continue;
+					failure = e.getCause() instanceof RuntimeException
+							? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+				}
+			}
+			if(failure != null) throw failure;
+		} catch(InterruptedException e){
+			throw new RuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+	}
+	
+	/**Returns the shard for the given key, scaling the top 32 bits of its
+	 * hash (which is never negative, so bits 31-62) to the shard count.*/
+	protected BucketDiskMap shardFor(byte[] k){
+		final long hash = Hash.murmurHash(k);
+		return shards[(int)(((hash >>> 31) * shards.length) >>> 32)];
+	}
+	
+	public int getShardCount(){
+		return shards.length;
+	}
+	public BucketDiskMap getShard(int i){
+		return shards[i];
+	}
+	
+	@Override
+	public byte[] get(byte[] k) {
+		return shardFor(k).get(k);
+	}
+	@Override
+	public byte[] put(byte[] k, byte[] v) {
+		return shardFor(k).put(k, v);
+	}
+	@Override
+	public byte[] putIfAbsent(byte[] k, byte[] v) {
+		return shardFor(k).putIfAbsent(k, v);
+	}
+	@Override
+	public byte[] remove(byte[] k) {
+		return shardFor(k).remove(k);
+	}
+	@Override
+	public boolean remove(byte[] k, byte[] v) {
+		return shardFor(k).remove(k, v);
+	}
+	@Override
+	public byte[] replace(byte[] k, byte[] v) {
+		return shardFor(k).replace(k, v);
+	}
+	@Override
+	public boolean replace(byte[] k, byte[] prevVal, byte[] newVal) {
+		return shardFor(k).replace(k, prevVal, newVal);
+	}
+	@Override
+	public byte[] compute(byte[] k, BiFunction<? super byte[], ? super byte[], ? extends byte[]> f) {
+		return shardFor(k).compute(k, f);
+	}
+	@Override
+	public long addAndGet(byte[] k, long delta) {
+		return shardFor(k).addAndGet(k, delta);
+	}
+	@Override
+	public boolean containsKey(byte[] k) {
+		return shardFor(k).containsKey(k);
+	}
+	
+	/**Sum of the shards' sizes, which is not atomic with respect to
+	 * concurrent modification.*/
+	@Override
+	public long size() {
+		long out = 0;
+		for(final BucketDiskMap shard : shards) out += shard.size();
+		return out;
+	}
+	
+	@Override
+	public void clear() {
+		forEachShard(new Consumer<BucketDiskMap>() {
+			@Override
+			public void accept(BucketDiskMap shard) {
+				shard.clear();
+			}
+		});
+	}
+	
+	@Override
+	public void close() throws IOException {
+		forEachShard(new Consumer<BucketDiskMap>() {
+			@Override
+			public void accept(BucketDiskMap shard) {
+				try {
+					shard.close();
+				} catch(IOException e){
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+	
+	/**Deletes every shard's files, and folders if they are then empty.*/
+	public void delete() throws IOException {
+		forEachShard(new Consumer<BucketDiskMap>() {
+			@Override
+			public void accept(BucketDiskMap shard) {
+				try {
+					new File(shard.baseFolderLoc, shardFileName).delete();
+					shard.delete();
+				} catch(IOException e){
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+	
+	/**Applies f to every shard in parallel, waiting for all to finish.*/
+	private void forEachShard(final Consumer<BucketDiskMap> f){
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(shards.length);
+		for(final BucketDiskMap shard : shards){
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					f.accept(shard);
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+	}
+	
+	/**Iterates over each shard in turn, with the shards' semantics: weakly
+	 * consistent, with removal supported.*/
+	@Override
+	public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+		return new Iterator<Map.Entry<byte[],byte[]>>() {
+			int shard = 0;
+			Iterator<Map.Entry<byte[], byte[]>> current = shards[0].iterator();
+			@Override
+			public boolean hasNext() {
+				while(!current.hasNext()){
+					if(shard + 1 == shards.length) return false;
+					current = shards[++shard].iterator();
+				}
+				return true;
+			}
+			@Override
+			public Map.Entry<byte[], byte[]> next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				return current.next();
+			}
+			@Override
+			public void remove() {
+				current.remove();
+			}
+		};
+	}
+	
+	/**Splits first between shards, and then within a shard, so that parallel
+	 * streams read every device at once.*/
+	@Override
+	public Spliterator<Map.Entry<byte[], byte[]>> spliterator() {
+		return new ShardSpliterator(0, shards.length);
+	}
+	
+	/**Covers shards [lo, hi), of which lo may be partly consumed through
+	 * current.*/
+	private class ShardSpliterator implements Spliterator<Map.Entry<byte[], byte[]>> {
+		int lo, hi;
+		Spliterator<Map.Entry<byte[], byte[]>> current = null;
+		
+		ShardSpliterator(int lo, int hi){
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+			while(lo < hi){
+				if(current == null) current = shards[lo].spliterator();
+				if(current.tryAdvance(action)) return true;
+				current = null;
+				lo++;
+			}
+			return false;
+		}
+		
+		@Override
+		public void forEachRemaining(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+			while(lo < hi){
+				if(current == null) current = shards[lo].spliterator();
+				current.forEachRemaining(action);
+				current = null;
+				lo++;
+			}
+		}
+		
+		//Not ORDERED, so the upper shards can be split off even if lo is
+		//partly consumed.
+		@Override
+		public Spliterator<Map.Entry<byte[], byte[]>> trySplit() {
+			if(hi - lo > 1){
+				final int mid = (lo + 1 + hi) >>> 1;
+				final ShardSpliterator out = new ShardSpliterator(mid, hi);
+				hi = mid;
+				return out;
+			}
+			if(lo == hi) return null;
+			if(current == null) current = shards[lo].spliterator();
+			return current.trySplit();
+		}
+		
+		@Override
+		public long estimateSize() {
+			long out = 0;
+			for(int i = lo; i < hi; i++){
+				out += (i == lo && current != null) ? current.estimateSize() : shards[i].size();
+			}
+			return out;
+		}
+		
+		@Override
+		public int characteristics() {
+			return Spliterator.DISTINCT | Spliterator.NONNULL;
+		}
+	}
+}
@@ -1,30 +1,58 @@
 package com.nyeggen.lash;
 
-import java.util.AbstractMap;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 
+import com.nyeggen.lash.bucket.ChainPtr;
 import com.nyeggen.lash.bucket.RecordChainNode;
+import com.nyeggen.lash.bucket.RecordPtr;
 import com.nyeggen.lash.bucket.WritethruRecordChainNode;
+import com.nyeggen.lash.stats.MapMetrics.Op;
+import com.nyeggen.lash.stats.MapStats;
 import com.nyeggen.lash.util.Hash;
+import com.nyeggen.lash.util.MapperFactory;
 
 /**An implementation that stores "buckets" consisting of single-record pointers,
- * which are chained on collision in a secondary file where data is also stored.*/
+ * which are chained on collision in a secondary file where data is also stored.
+ * Pointers carry a fingerprint of the record's hash and a flag marking the
+ * end of the chain (see ChainPtr), so that most lookups of absent keys are
+ * answered from the primary alone.  New records go at the head of a chain.*/
 public class VarSizeDiskMap extends ADiskMap {
 
 	private static final int PRIMARY_REC_SIZE = 8;
 	
+	/**Background compaction of scattered chains, or null if not running.*/
+	private ScheduledExecutorService defragmenter = null;
+	private final AtomicLong relocatedChains = new AtomicLong(0);
+	
 	public VarSizeDiskMap(String baseFolderLoc){
 		this(baseFolderLoc, 0);
 	}
 	public VarSizeDiskMap(String baseFolderLoc, long primaryFileLen){
 		super(baseFolderLoc, nextPowerOf2(primaryFileLen));
 	}
+	/**Serves the files through the given factory's mappers, such as
+	 * MapperFactory.READ_ONLY to serve a closed map to many processes.*/
+	public VarSizeDiskMap(String baseFolderLoc, long primaryFileLen, MapperFactory mappers){
+		super(baseFolderLoc, nextPowerOf2(primaryFileLen), mappers);
+	}
+	/**Creates (or opens) a map presized for the given number of entries, as
+	 * with reserve().*/
+	public VarSizeDiskMap(String baseFolderLoc, long expectedEntries, int avgKeyBytes, int avgValBytes){
+		this(baseFolderLoc, PRIMARY_REC_SIZE * tableLengthFor(expectedEntries, 1));
+		reserve(expectedEntries, avgKeyBytes, avgValBytes);
+	}
 
 	@Override
 	protected void readHeader(){
@@ -46,40 +74,287 @@ public class VarSizeDiskMap extends ADiskMap {
 	protected long idxToPos(long idx){
 		return idx * PRIMARY_REC_SIZE;
 	}
+	
+	//Chain length counts records.
+	@Override
+	protected void scanIdx(long idx, MapStats stats) {
+		int length = 0;
+		for(long ptr = primaryMapper.getLong(idxToPos(idx)); ptr != 0; length++){
+			final WritethruRecordChainNode record = getSecondaryRecord(ChainPtr.offset(ptr));
+			stats.liveBytes += record.extentSize();
+			ptr = record.getNextRecordPos();
+		}
+		stats.addChain(length);
+	}
+	
+	@Override
+	protected void checkIdx(long idx, VerifyReport report, IDiskMap target) {
+		final long headerSize = getHeaderSize(), writePos = secondaryWritePos.get(), secondaryLen = secondaryMapper.size();
+		final Set<Long> seen = new HashSet<Long>();
+		boolean pastTail = false;
+		for(long ptr = primaryMapper.getLong(idxToPos(idx)); ptr != 0; ){
+			final long adr = ChainPtr.offset(ptr);
+			final String where = "Chain " + idx + ", record at " + adr;
+			if(adr < headerSize || adr + 24 > secondaryLen){
+				report.error(where + ": outside the secondary");
+				return;
+			}
+			if(!seen.add(adr)){
+				report.error(where + ": chain has a cycle");
+				return;
+			}
+			//Check lengths before the record is read into arrays of those lengths
+			final long kLen = secondaryMapper.getInt(adr + 16),
+			           vLen = secondaryMapper.getInt(adr + 20) & ~RecordPtr.VAL_FLAGS;
+			if(kLen < 0 || adr + 24 + kLen + vLen > secondaryLen){
+				report.error(where + ": key or value runs outside the secondary");
+				return;
+			}
+			if(adr + 24 + kLen + vLen > writePos) report.error(where + ": beyond the write position");
+			if(pastTail) report.error(where + ": follows a pointer flagged as the chain's tail");
+			final WritethruRecordChainNode record = getSecondaryRecord(adr);
+			if(Hash.murmurHash(record.getKey()) != record.getHash()){
+				report.error(where + ": stored hash does not match key");
+			} else {
+				if(idxForHash(record.getHash()) != idx) report.error(where + ": belongs in chain " + idxForHash(record.getHash()));
+				if(!ChainPtr.mayMatch(ptr, record.getHash())) report.error(where + ": pointer fingerprint does not match record");
+				report.record();
+				if(target != null){
+					try {
+						if(target.putIfAbsent(record.getKey(), valOf(record)) == null) report.salvaged();
+					} catch(RuntimeException e){
+						report.error(where + ": value is unreadable (" + e + ")");
+					}
+				}
+			}
+			pastTail = ChainPtr.isTail(ptr);
+			ptr = record.getNextRecordPos();
+		}
+	}
+	//Header of hash, next pointer, and lengths, as in WritethruRecordChainNode
+	@Override
+	protected long secondaryBytesFor(int keyBytes, int valBytes) {
+		return 24 + keyBytes + valBytes;
+	}
 	/**Retrieves a record at the given position from the secondary. Does not
-	 * validate the correctness of the position.*/
+	 * validate the correctness of the position.  Only the header is read;
+	 * the key and value are read, under the secondary's read lock, if
+	 * needed.*/
 	protected WritethruRecordChainNode getSecondaryRecord(long pos){
+		//Nothing remaps the secondary of a read-only map
+		if(readOnly) return WritethruRecordChainNode.readRecord(secondaryMapper, pos, null);
 		secondaryLock.readLock().lock();
 		try {
-			return WritethruRecordChainNode.readRecord(secondaryMapper, pos);
+			return WritethruRecordChainNode.readRecord(secondaryMapper, pos, secondaryLock.readLock());
 		} finally {
 			secondaryLock.readLock().unlock();
 		}
 	}
 	
+	/**Reads the next pointer of the record at the given offset, and nothing
+	 * else of it.*/
+	private long nextPointer(long offset){
+		if(readOnly) return secondaryMapper.getLong(offset + 8);
+		secondaryLock.readLock().lock();
+		try {
+			return secondaryMapper.getLong(offset + 8);
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+	}
+	
+	/**Tagged pointer to the given record, as it should be stored.*/
+	private static long pointerTo(RecordChainNode record, long offset){
+		return ChainPtr.tag(record.getHash(), offset, record.getNextRecordPos() == 0);
+	}
+	
+	/**A place in a chain: ptr is stored in the primary at primaryPos if
+	 * holder is 0, or otherwise as the next pointer of the record at offset
+	 * holder, which in turn is pointed to from prevHolder likewise.*/
+	private static final class ChainCursor {
+		final long primaryPos;
+		long holder = 0, prevHolder = 0;
+		long ptr;
+		/**The record ptr points to, if it has the key sought.*/
+		WritethruRecordChainNode found = null;
+		
+		ChainCursor(long primaryPos, long ptr){
+			this.primaryPos = primaryPos;
+			this.ptr = ptr;
+		}
+		void advance(long offset, long next){
+			prevHolder = holder;
+			holder = offset;
+			ptr = next;
+		}
+	}
+	
+	/**Searches the chain at the given primary position for the key, reading
+	 * only the next pointers of records whose fingerprint rules them out, and
+	 * stopping at a pointer flagged as the tail.  Called under the lock.*/
+	private ChainCursor seek(long pos, long hash, byte[] k){
+		final ChainCursor c = new ChainCursor(pos, primaryMapper.getLong(pos));
+		while(c.ptr != 0){
+			final long offset = ChainPtr.offset(c.ptr);
+			if(ChainPtr.mayMatch(c.ptr, hash)){
+				final WritethruRecordChainNode record = getSecondaryRecord(offset);
+				if(record.keyEquals(hash, k)){
+					c.found = record;
+					return c;
+				}
+				c.advance(offset, record.getNextRecordPos());
+			} else if(ChainPtr.isTail(c.ptr)){
+				return c;
+			} else c.advance(offset, nextPointer(offset));
+		}
+		return c;
+	}
+	
+	/**Stores ptr in the primary at pos if holder is 0, or otherwise as the
+	 * next pointer of the record at offset holder.*/
+	private void setPointer(long pos, long holder, long ptr){
+		if(holder == 0){
+			primaryMapper.putLong(pos, ptr);
+			return;
+		}
+		secondaryLock.readLock().lock();
+		try {
+			secondaryMapper.putLong(holder + 8, ptr);
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+	}
+	private long getPointer(long pos, long holder){
+		return holder == 0 ? primaryMapper.getLong(pos) : nextPointer(holder);
+	}
+	
+	/**Links the given record in at the head of the chain at pos, which
+	 * leaves every existing pointer's tail flag correct.  Called under the
+	 * lock.*/
+	private void insertHead(long pos, RecordChainNode record){
+		final long insertPos = allocateForRecord(record);
+		record.setNextRecordPos(primaryMapper.getLong(pos));
+		WritethruRecordChainNode.writeRecord(record, secondaryMapper, insertPos);
+		primaryMapper.putLong(pos, pointerTo(record, insertPos));
+		size.incrementAndGet();
+	}
+	
+	/**Unlinks the record found by c, and frees its extent.  If it was the
+	 * tail, the record before it becomes the tail, and the pointer to that is
+	 * flagged.  Called under the lock.*/
+	private void unlink(ChainCursor c){
+		final long next = c.found.getNextRecordPos();
+		setPointer(c.primaryPos, c.holder, next);
+		if(next == 0 && c.holder != 0){
+			setPointer(c.primaryPos, c.prevHolder, getPointer(c.primaryPos, c.prevHolder) | ChainPtr.TAIL_FLAG);
+		}
+		size.decrementAndGet();
+		freeSecondary(c.found.getPos(), c.found.extentSize());
+	}
+	
+	/**Builds a record for the given key and value, compressing the value
+	 * if enabled.*/
+	protected RecordChainNode newRecord(long hash, byte[] k, byte[] v){
+		final byte[] compressed = compressVal(v);
+		return compressed == null
+				? new RecordChainNode(hash, k, v)
+				: new RecordChainNode(hash, k, compressed, true);
+	}
+	
+	/**Returns the (decompressed) value of the given record.*/
+	protected byte[] valOf(RecordChainNode record){
+		return record.isValCompressed() ? decompressVal(record.getVal()) : record.getVal();
+	}
+	
 	/**Allocates sufficient space for the record to be written to secondary
 	/* at the returned position.*/
 	protected long allocateForRecord(final RecordChainNode record){
-		final long recordSize = record.size();
-		return allocateSecondary(recordSize);
+		return allocateRecords(record.size());
+	}
+	
+	/**Allocates the given number of bytes for records, reusing space freed
+	 * by relocated chains if possible.*/
+	private long allocateRecords(long length){
+		final long out = allocateData(length);
+		if(out + length > ChainPtr.OFFSET_MASK) throw new IllegalStateException("Secondary offset " + out + " does not fit in a chain pointer");
+		return out;
+	}
+	
+	/**Returns the records of a chain, in order, copied into one newly
+	 * allocated extent, so that walking the chain touches as few pages as
+	 * possible.  Returns the records unchanged if there are fewer than two or
+	 * they are already contiguous.  The caller links the copies and then
+	 * frees the originals.  Called under the lock.*/
+	protected List<WritethruRecordChainNode> compactChain(List<WritethruRecordChainNode> chain){
+		if(chain.size() < 2) return chain;
+		long total = 0;
+		boolean contiguous = true;
+		for(int i=0; i<chain.size(); i++){
+			final WritethruRecordChainNode record = chain.get(i);
+			if(i > 0 && record.getPos() != chain.get(i - 1).getPos() + chain.get(i - 1).extentSize()) contiguous = false;
+			total += record.extentSize();
+		}
+		if(contiguous) return chain;
+		
+		final long base = allocateRecords(total);
+		final List<WritethruRecordChainNode> out = new ArrayList<WritethruRecordChainNode>(chain.size());
+		secondaryLock.readLock().lock();
+		try {
+			long dst = base;
+			for(final WritethruRecordChainNode record : chain){
+				//Copied with any slack, so that each keeps its capacity
+				final long length = record.extentSize();
+				secondaryMapper.copy(record.getPos(), dst, length);
+				out.add(WritethruRecordChainNode.readRecord(secondaryMapper, dst, secondaryLock.readLock()));
+				dst += length;
+			}
+		} finally {
+			secondaryLock.readLock().unlock();
+		}
+		relocatedChains.incrementAndGet();
+		return out;
+	}
+	
+	/**Frees the extents of records that compactChain replaced, if it did.*/
+	private void freeReplaced(List<WritethruRecordChainNode> original, List<WritethruRecordChainNode> compacted){
+		if(original == compacted) return;
+		for(final WritethruRecordChainNode record : original) freeSecondary(record.getPos(), record.extentSize());
+	}
+	
+	/**Replaces the record found by c with the given one.  If the new stored
+	 * value fits in the existing extent it is overwritten in place;
+	 * otherwise the replacement is written to newly allocated space and
+	 * linked in, and the old extent freed.  Called under the lock.*/
+	private void replaceRecord(ChainCursor c, RecordChainNode replacement){
+		final WritethruRecordChainNode found = c.found;
+		if(found.overwriteVal(replacement.getVal(), replacement.isValCompressed())) return;
+		final long insertPos = allocateForRecord(replacement);
+		replacement.setNextRecordPos(found.getNextRecordPos());
+		WritethruRecordChainNode.writeRecord(replacement, secondaryMapper, insertPos);
+		setPointer(c.primaryPos, c.holder, pointerTo(replacement, insertPos));
+		freeSecondary(found.getPos(), found.extentSize());
 	}
 	
 	@Override
 	public byte[] get(byte[] k){
 		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
+		if(readOnly){
+			//Nothing can change the chain, so it is read without the lock
+			try {
+				final ChainCursor c = seek(idxToPos(idxForHash(hash)), hash, k);
+				return c.found == null ? null : valOf(c.found);
+			} finally {
+				opDone(Op.GET, start);
+			}
+		}
 		synchronized(lockForHash(hash)){
-			final long idx = idxForHash(hash);
-			final long pos = idxToPos(idx);
-			final long adr = primaryMapper.getLong(pos);
-			if(adr == 0) return null;
-			
-			WritethruRecordChainNode record = getSecondaryRecord(adr);
-			while(true){
-				if(record.keyEquals(hash, k)) {
-					return record.getVal();
-				} else if(record.getNextRecordPos() != 0) {
-					record = getSecondaryRecord(record.getNextRecordPos());
-				} else return null;
+			lockAcquired(hash, start);
+			try {
+				final ChainCursor c = seek(idxToPos(idxForHash(hash)), hash, k);
+				return c.found == null ? null : valOf(c.found);
+			} finally {
+				opDone(Op.GET, start);
 			}
 		}
 	}
@@ -87,206 +362,188 @@ public class VarSizeDiskMap extends ADiskMap {
 	//This is the primary use case for a r/w lock
 	@Override
 	public byte[] putIfAbsent(byte[] k, byte[] v){
+		checkWritable();
 		if(load() > loadRehashThreshold) rehash();
 
 		final long hash = Hash.murmurHash(k);
-		final RecordChainNode toWriteBucket = new RecordChainNode(hash, k, v);
+		final RecordChainNode toWriteBucket = newRecord(hash, k, v);
 		
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final long idx = idxForHash(hash);
-			final long pos = idxToPos(idx);
-			final long adr = primaryMapper.getLong(pos);
-			if(adr == 0){
-				final long insertPos = allocateForRecord(toWriteBucket);
-				WritethruRecordChainNode.writeRecord(toWriteBucket, secondaryMapper, insertPos);
-				primaryMapper.putLong(pos, insertPos);
-				size.incrementAndGet();
+			lockAcquired(hash, start);
+			try {
+				final long pos = idxToPos(idxForHash(hash));
+				final ChainCursor c = seek(pos, hash, k);
+				if(c.found != null) return valOf(c.found);
+				insertHead(pos, toWriteBucket);
 				return null;
-			}
-			WritethruRecordChainNode bucket = getSecondaryRecord(adr);
-			while(true){
-				if(bucket.keyEquals(hash, k)) return bucket.getVal();
-				else if(bucket.getNextRecordPos() != 0) bucket = getSecondaryRecord(bucket.getNextRecordPos());
-				else {
-					final long insertPos = allocateForRecord(toWriteBucket);
-					WritethruRecordChainNode.writeRecord(toWriteBucket, secondaryMapper, insertPos);
-					bucket.setNextRecordPos(insertPos);
-					size.incrementAndGet();
-					return null;
-				}
+			} finally {
+				opDone(Op.PUT_IF_ABSENT, start);
 			}
 		}
 	}
 	
 	@Override
 	public byte[] put(byte[] k, byte[] v){
+		checkWritable();
 		if(load() > loadRehashThreshold) rehash();
 		
 		final long hash = Hash.murmurHash(k);
-		final RecordChainNode toWriteBucket = new RecordChainNode(hash, k, v);
-		//We'll be inserting somewhere
-		final long insertPos = allocateForRecord(toWriteBucket);
+		final RecordChainNode toWriteBucket = newRecord(hash, k, v);
 		
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final long idx = idxForHash(hash);
-			final long pos = idxToPos(idx);
-			
-			final long adr = primaryMapper.getLong(pos);
-			if(adr == 0) {
-				WritethruRecordChainNode.writeRecord(toWriteBucket, secondaryMapper, insertPos);
-				primaryMapper.putLong(pos, insertPos);
-				return null;
-			}
-			
-			WritethruRecordChainNode bucket = getSecondaryRecord(adr);
-			WritethruRecordChainNode prev = null;
-			while(true){
-				if(bucket.keyEquals(hash, k)) {
-					toWriteBucket.setNextRecordPos(bucket.getNextRecordPos());
-					WritethruRecordChainNode.writeRecord(toWriteBucket, secondaryMapper, insertPos);
-					if(prev == null) {
-						primaryMapper.putLong(pos, insertPos);
-					} else {
-						prev.setNextRecordPos(insertPos);						
-					}
-					return bucket.getVal();
-				}
-				else if(bucket.getNextRecordPos() != 0) {
-					prev = bucket;
-					bucket = getSecondaryRecord(bucket.getNextRecordPos());
-				}
-				else {
-					WritethruRecordChainNode.writeRecord(toWriteBucket, secondaryMapper, insertPos);
-					bucket.setNextRecordPos(insertPos);
-					size.incrementAndGet();
+			lockAcquired(hash, start);
+			try {
+				final long pos = idxToPos(idxForHash(hash));
+				final ChainCursor c = seek(pos, hash, k);
+				if(c.found == null){
+					insertHead(pos, toWriteBucket);
 					return null;
 				}
+				final byte[] out = valOf(c.found);
+				replaceRecord(c, toWriteBucket);
+				return out;
+			} finally {
+				opDone(Op.PUT, start);
 			}
 		}
 	}
 	
 	@Override
 	public byte[] remove(byte[] k){
+		checkWritable();
+		maybeShrink();
 		final long hash = Hash.murmurHash(k);
 
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final long idx = idxForHash(hash);
-			final long pos = idxToPos(idx);
-			final long adr = primaryMapper.getLong(pos);
-			if(adr == 0) return null;
-			
-			WritethruRecordChainNode bucket = getSecondaryRecord(adr);
-			WritethruRecordChainNode prev = null;
-			while(true){
-				if(bucket.keyEquals(hash, k)) {
-					if(prev == null) primaryMapper.putLong(pos, bucket.getNextRecordPos());
-					else prev.setNextRecordPos(bucket.getNextRecordPos());
-					size.decrementAndGet();
-					return bucket.getVal();
-				}
-				else if(bucket.getNextRecordPos() != 0) {
-					prev = bucket;
-					bucket = getSecondaryRecord(bucket.getNextRecordPos());
-				}
-				else return null;
+			lockAcquired(hash, start);
+			try {
+				final ChainCursor c = seek(idxToPos(idxForHash(hash)), hash, k);
+				if(c.found == null) return null;
+				final byte[] out = valOf(c.found);
+				unlink(c);
+				return out;
+			} finally {
+				opDone(Op.REMOVE, start);
 			}
 		}
 	}
 	
 	@Override
 	public boolean remove(byte[] k, byte[] v) {
+		checkWritable();
+		maybeShrink();
 		final long hash = Hash.murmurHash(k);
 
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final long idx = idxForHash(hash);
-			final long pos = idxToPos(idx);
-			final long adr = primaryMapper.getLong(pos);
-			if(adr == 0) return false;
-			
-			WritethruRecordChainNode bucket = getSecondaryRecord(adr);
-			WritethruRecordChainNode prev = null;
-			while(true){
-				if(bucket.keyEquals(hash, k) && Arrays.equals(v, bucket.getVal())) {
-					if(prev == null) primaryMapper.putLong(pos, bucket.getNextRecordPos());
-					else prev.setNextRecordPos(bucket.getNextRecordPos());
-					size.decrementAndGet();
-					return true;
-				}
-				else if(bucket.getNextRecordPos() != 0) {
-					prev = bucket;
-					bucket = getSecondaryRecord(bucket.getNextRecordPos());
-				}
-				else return false;
+			lockAcquired(hash, start);
+			try {
+				final ChainCursor c = seek(idxToPos(idxForHash(hash)), hash, k);
+				if(c.found == null || !Arrays.equals(v, valOf(c.found))) return false;
+				unlink(c);
+				return true;
+			} finally {
+				opDone(Op.REMOVE, start);
 			}
 		}
 	}
 	
 	@Override
 	public boolean replace(byte[] k, byte[] prevVal, byte[] newVal) {
+		checkWritable();
 		final long hash = Hash.murmurHash(k);
-		final RecordChainNode toWriteBucket = new RecordChainNode(hash, k, newVal);
+		final RecordChainNode toWriteBucket = newRecord(hash, k, newVal);
 		
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final long idx = idxForHash(hash);
-			final long pos = idxToPos(idx);
-			
-			final long adr = primaryMapper.getLong(pos);
-			if(adr == 0) return false;
-			
-			WritethruRecordChainNode bucket = getSecondaryRecord(adr);
-			WritethruRecordChainNode prev = null;
-			while(true){
-				if(bucket.keyEquals(hash, k) && Arrays.equals(bucket.getVal(), prevVal)) {
-					final long insertPos = allocateForRecord(toWriteBucket);
-					toWriteBucket.setNextRecordPos(bucket.getNextRecordPos());
-					WritethruRecordChainNode.writeRecord(toWriteBucket, secondaryMapper, insertPos);
-					if(prev == null) {
-						primaryMapper.putLong(pos, insertPos);
-					} else {
-						prev.setNextRecordPos(insertPos);						
-					}
-					return true;
-				}
-				else if(bucket.getNextRecordPos() != 0) {
-					prev = bucket;
-					bucket = getSecondaryRecord(bucket.getNextRecordPos());
-				}
-				else return false;
+			lockAcquired(hash, start);
+			try {
+				final ChainCursor c = seek(idxToPos(idxForHash(hash)), hash, k);
+				if(c.found == null || !Arrays.equals(valOf(c.found), prevVal)) return false;
+				replaceRecord(c, toWriteBucket);
+				return true;
+			} finally {
+				opDone(Op.REPLACE, start);
 			}
 		}
 
 	}
 	@Override
 	public byte[] replace(byte[] k, byte[] v) {
+		checkWritable();
 		final long hash = Hash.murmurHash(k);
-		final RecordChainNode toWriteBucket = new RecordChainNode(hash, k, v);
+		final RecordChainNode toWriteBucket = newRecord(hash, k, v);
 		
+		final long start = opStart();
 		synchronized(lockForHash(hash)){
-			final long idx = idxForHash(hash);
-			final long pos = idxToPos(idx);
-			
-			final long adr = primaryMapper.getLong(pos);
-			if(adr == 0) return null;
+			lockAcquired(hash, start);
+			try {
+				final ChainCursor c = seek(idxToPos(idxForHash(hash)), hash, k);
+				if(c.found == null) return null;
+				final byte[] out = valOf(c.found);
+				replaceRecord(c, toWriteBucket);
+				return out;
+			} finally {
+				opDone(Op.REPLACE, start);
+			}
+		}
+	}
+	
+	@Override
+	public byte[] compute(byte[] k, BiFunction<? super byte[], ? super byte[], ? extends byte[]> f) {
+		checkWritable();
+		if(load() > loadRehashThreshold) rehash();
+		else maybeShrink();
+		
+		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
+		synchronized(lockForHash(hash)){
+			lockAcquired(hash, start);
+			try {
+				final long pos = idxToPos(idxForHash(hash));
+				final ChainCursor c = seek(pos, hash, k);
+				final byte[] prevVal = c.found == null ? null : valOf(c.found);
+				final byte[] v = f.apply(k, prevVal);
+				if(v == null && prevVal == null) return null;
 			
-			WritethruRecordChainNode bucket = getSecondaryRecord(adr);
-			WritethruRecordChainNode prev = null;
-			while(true){
-				if(bucket.keyEquals(hash, k)) {
-					final long insertPos = allocateForRecord(toWriteBucket);
-					toWriteBucket.setNextRecordPos(bucket.getNextRecordPos());
-					WritethruRecordChainNode.writeRecord(toWriteBucket, secondaryMapper, insertPos);
-					if(prev == null) {
-						primaryMapper.putLong(pos, insertPos);
-					} else {
-						prev.setNextRecordPos(insertPos);						
-					}
-					return bucket.getVal();
+				if(v == null) unlink(c);
+				else if(c.found != null) replaceRecord(c, newRecord(hash, k, v));
+				else insertHead(pos, newRecord(hash, k, v));
+				return v;
+			} finally {
+				opDone(Op.COMPUTE, start);
+			}
+		}
+	}
+	
+	@Override
+	public long addAndGet(byte[] k, long delta) {
+		checkWritable();
+		if(load() > loadRehashThreshold) rehash();
+		
+		final long hash = Hash.murmurHash(k);
+		final long start = opStart();
+		synchronized(lockForHash(hash)){
+			lockAcquired(hash, start);
+			try {
+				final long pos = idxToPos(idxForHash(hash));
+				final ChainCursor c = seek(pos, hash, k);
+				final WritethruRecordChainNode bucket = c.found;
+				if(bucket == null){
+					insertHead(pos, newRecord(hash, k, counterBytes(delta)));
+					return delta;
 				}
-				else if(bucket.getNextRecordPos() != 0) {
-					prev = bucket;
-					bucket = getSecondaryRecord(bucket.getNextRecordPos());
+				if(bucket.isValCompressed() || bucket.getValLength() != 8){
+					throw new IllegalArgumentException("Value is not an 8-byte counter");
 				}
-				else return null;
+				final long out = bucket.getValLong() + delta;
+				bucket.putValLong(out);
+				return out;
+			} finally {
+				opDone(Op.ADD_AND_GET, start);
 			}
 		}
 	}
@@ -298,84 +555,159 @@ public class VarSizeDiskMap extends ADiskMap {
 		
 		final long keepIdx = idx, moveIdx = idx + tableLength;
 		
-		final long addr = primaryMapper.getLong(idxToPos(idx));
-		if(addr == 0) return;
+		final long ptr = primaryMapper.getLong(idxToPos(idx));
+		if(ptr == 0) return;
 
-		WritethruRecordChainNode bucket = getSecondaryRecord(addr);
+		WritethruRecordChainNode bucket = getSecondaryRecord(ChainPtr.offset(ptr));
 		while(true){
 			final long newIdx = bucket.getHash() & (tableLength + tableLength - 1L);
 			if(newIdx == keepIdx) keepBuckets.add(bucket);
 			else if(newIdx == moveIdx) moveBuckets.add(bucket);
 			else throw new IllegalStateException("hash:" + bucket.getHash() + ", idx:" + keepIdx + ", newIdx:" + newIdx + ", tableLength:" + tableLength);
-			if(bucket.getNextRecordPos() != 0) bucket = getSecondaryRecord(bucket.getNextRecordPos());
+			if(bucket.getNextRecordPos() != 0) bucket = getSecondaryRecord(ChainPtr.offset(bucket.getNextRecordPos()));
 			else break;
 		}
-		//Adjust chains
-		primaryMapper.putLong(idxToPos(keepIdx), rewriteChain(keepBuckets));
-		primaryMapper.putLong(idxToPos(moveIdx), rewriteChain(moveBuckets));
-	}
-		
-	/**Cause each bucket to point to the subsequent one.  Returns address of original,
-	 * or 0 if the list was empty.*/
-	protected long rewriteChain(List<WritethruRecordChainNode> buckets){
-		if(buckets.isEmpty()) return 0;
-		buckets.get(buckets.size() - 1).setNextRecordPos(0);
-		for(int i=0; i<buckets.size()-1; i++){
-			buckets.get(i).setNextRecordPos(buckets.get(i+1).getPos());
-		}
-		return buckets.get(0).getPos();
+		//Adjust chains, gathering each into one place as it is split
+		final List<WritethruRecordChainNode> keep = compactChain(keepBuckets), move = compactChain(moveBuckets);
+		primaryMapper.putLong(idxToPos(keepIdx), rewriteChain(keep));
+		primaryMapper.putLong(idxToPos(moveIdx), rewriteChain(move));
+		freeReplaced(keepBuckets, keep);
+		freeReplaced(moveBuckets, move);
 	}
-		
-	/**We don't try to synchronize this, or even throw a 
-	 * ConcurrentModificationException.  You must synchronize externally.
-	 * However, by virtue of the way we rewrite data, you will receive data
-	 * that was at least valid at one time (ie, not bit-sliced & corrupted).*/
-	@Override
-	public Iterator<Map.Entry<byte[], byte[]>> iterator(){
-		return new Iterator<Map.Entry<byte[],byte[]>>() {
-			long nextIdx, nextAddr;
-			boolean finished;
-			{
-				finished = true;
-				for(nextIdx = 0; nextIdx < tableLength; nextIdx++){
-					nextAddr = primaryMapper.getLong(idxToPos(nextIdx));
-					if(nextAddr == 0) continue;
-					else {
-						finished = false;
-						break;
-					} 
-				}
-			}
-			private void advance(){
-				WritethruRecordChainNode bucket = getSecondaryRecord(nextAddr);
-				if(bucket.getNextRecordPos() != 0){
-					nextAddr = bucket.getNextRecordPos();
-					finished = false;
-					return;
-				}
-				for(nextIdx=nextIdx+1; nextIdx < tableLength; nextIdx++){
-					final long pos = idxToPos(nextIdx);
-					nextAddr = primaryMapper.getLong(pos);
-					if(nextAddr == 0) continue;
-					else {
-						finished = false;
-						return;
-					}
+	
+	/**Compacts every chain of the given stripe that is scattered over the
+	 * secondary (see compactChain), returning the number moved.*/
+	public int defragmentStripe(int stripe){
+		checkWritable();
+		int out = 0;
+		synchronized(locks[stripe]){
+			final long limit = stripe < rehashComplete.get() ? tableLength * 2 : tableLength;
+			for(long idx = stripe; idx < limit; idx += nLocks){
+				final long pos = idxToPos(idx);
+				final long ptr = primaryMapper.getLong(pos);
+				if(ptr == 0 || ChainPtr.isTail(ptr)) continue;
+				final List<WritethruRecordChainNode> chain = new ArrayList<WritethruRecordChainNode>();
+				for(long p = ptr; p != 0; ){
+					final WritethruRecordChainNode record = getSecondaryRecord(ChainPtr.offset(p));
+					chain.add(record);
+					p = record.getNextRecordPos();
 				}
-				finished = true;
+				final List<WritethruRecordChainNode> compacted = compactChain(chain);
+				if(compacted == chain) continue;
+				primaryMapper.putLong(pos, rewriteChain(compacted));
+				freeReplaced(chain, compacted);
+				out++;
 			}
+		}
+		return out;
+	}
+	
+	/**Compacts every scattered chain now, one stripe at a time, returning the
+	 * number moved.*/
+	public long defragment(){
+		long out = 0;
+		for(int stripe=0; stripe<nLocks; stripe++) out += defragmentStripe(stripe);
+		return out;
+	}
+	
+	/**Starts a background thread that compacts the chains of one stripe at a
+	 * time, visiting every stripe once per period, so that chains scattered by
+	 * updates are gathered up while the map is otherwise idle.  Replaces any
+	 * defragmenter already running.*/
+	public synchronized void startDefragmenter(long period, TimeUnit unit){
+		checkWritable();
+		stopDefragmenter();
+		defragmenter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
 			@Override
-			public boolean hasNext() { return !finished; }
-			@Override
-			public Entry<byte[], byte[]> next() {
-				if(finished) throw new NoSuchElementException();
-				final WritethruRecordChainNode node = getSecondaryRecord(nextAddr);
-				advance();
-				return new AbstractMap.SimpleEntry<byte[],byte[]>(node.getKey(), node.getVal());
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "lash-defragmenter");
+				t.setDaemon(true);
+				return t;
 			}
-			/**This could potentially corrupt the map, not just return invalid data.*/
+		});
+		final long stripePeriod = Math.max(1, unit.toNanos(period) / nLocks);
+		defragmenter.scheduleWithFixedDelay(new Runnable() {
+			int stripe = 0;
 			@Override
-			public void remove() { throw new UnsupportedOperationException(); }
-		};
+			public void run() {
+				defragmentStripe(stripe);
+				stripe = (stripe + 1) & (nLocks - 1);
+			}
+		}, stripePeriod, stripePeriod, TimeUnit.NANOSECONDS);
+	}
+	
+	/**Stops the defragmenter, if one is running, waiting for any stripe it
+	 * is visiting.*/
+	public synchronized void stopDefragmenter(){
+		if(defragmenter == null) return;
+		defragmenter.shutdown();
+		try {
+			defragmenter.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		defragmenter = null;
+	}
+	
+	/**Number of chains copied into contiguous extents since opening.*/
+	public long getRelocatedChains(){
+		return relocatedChains.get();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		stopDefragmenter();
+		super.close();
+	}
+	
+	@Override
+	public void delete() throws IOException {
+		stopDefragmenter();
+		super.delete();
+	}
+		
+	@Override
+	protected void mergeIdx(long idx){
+		final long movePos = idxToPos(idx + tableLength);
+		final long movePtr = primaryMapper.getLong(movePos);
+		if(movePtr == 0) return;
+		
+		final long keepPos = idxToPos(idx);
+		long ptr = primaryMapper.getLong(keepPos);
+		if(ptr == 0) primaryMapper.putLong(keepPos, movePtr);
+		else {
+			//Find the tail, and where the pointer to it is held
+			long holder = 0, next;
+			while((next = nextPointer(ChainPtr.offset(ptr))) != 0){
+				holder = ChainPtr.offset(ptr);
+				ptr = next;
+			}
+			setPointer(keepPos, holder, ptr & ~ChainPtr.TAIL_FLAG);
+			setPointer(keepPos, ChainPtr.offset(ptr), movePtr);
+		}
+		primaryMapper.putLong(movePos, 0);
+	}
+	
+	@Override
+	protected void readBucket(long idx, List<Map.Entry<byte[], byte[]>> out){
+		long ptr = primaryMapper.getLong(idxToPos(idx));
+		while(ptr != 0){
+			final WritethruRecordChainNode node = getSecondaryRecord(ChainPtr.offset(ptr));
+			out.add(new DiskMapEntry(node.getKey(), valOf(node)));
+			ptr = node.getNextRecordPos();
+		}
+	}
+	
+	/**Cause each bucket to point to the subsequent one.  Returns a pointer
+	 * to the first, or 0 if the list was empty.*/
+	protected long rewriteChain(List<WritethruRecordChainNode> buckets){
+		if(buckets.isEmpty()) return 0;
+		long next = 0;
+		for(int i=buckets.size()-1; i>=0; i--){
+			final WritethruRecordChainNode bucket = buckets.get(i);
+			bucket.setNextRecordPos(next);
+			next = pointerTo(bucket, bucket.getPos());
+		}
+		return next;
 	}
 }
@@ -0,0 +1,40 @@
+package com.nyeggen.lash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Result of ADiskMap.verify() or salvageInto(): counts of the records found
+ * and copied, and of the problems found, with descriptions of the first few.
+ * Safe for concurrent use by the threads of a check.*/
+public class VerifyReport {
+	static final int maxMessages = 100;
+	private final AtomicLong records = new AtomicLong(0), salvaged = new AtomicLong(0), errors = new AtomicLong(0);
+	private final ConcurrentLinkedQueue<String> messages = new ConcurrentLinkedQueue<String>();
+	
+	public void error(String message){
+		if(errors.incrementAndGet() <= maxMessages) messages.add(message);
+	}
+	void record(){ records.incrementAndGet(); }
+	void salvaged(){ salvaged.incrementAndGet(); }
+	
+	/**Number of readable records whose hash matches their key.*/
+	public long getRecords(){ return records.get(); }
+	/**Number of records copied by salvageInto().*/
+	public long getSalvaged(){ return salvaged.get(); }
+	public long getErrorCount(){ return errors.get(); }
+	/**Descriptions of up to the first 100 problems found.*/
+	public List<String> getErrors(){ return new ArrayList<String>(messages); }
+	public boolean isClean(){ return errors.get() == 0; }
+	
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(records.get()).append(" records, ").append(errors.get()).append(" problems");
+		if(salvaged.get() > 0) sb.append(", ").append(salvaged.get()).append(" salvaged");
+		for(final String m : messages) sb.append("\n  ").append(m);
+		if(errors.get() > maxMessages) sb.append("\n  ...");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,43 @@
+package com.nyeggen.lash.bucket;
+
+/**Pointers to records in a VarSizeDiskMap chain, as stored in the primary
+ * and in each record's next pointer.  The low 48 bits are the record's
+ * offset in the secondary.  Bits 48-62 are a fingerprint of the record's
+ * hash, so that records whose key cannot match need not be read, and bit 63
+ * is set if the record is the last in its chain.
+ * A fingerprint of 0 matches any hash, and a clear tail flag says nothing,
+ * so plain offsets written before pointers were tagged remain valid.*/
+public class ChainPtr {
+	public static final long OFFSET_MASK = (1L << 48) - 1;
+	public static final long TAIL_FLAG = 1L << 63;
+	private static final int FINGERPRINT_SHIFT = 48;
+	private static final long FINGERPRINT_MASK = 0x7fffL;
+
+	private ChainPtr(){}
+
+	/**Bits 47-61 of the hash, which table indexes do not reach until there
+	 * are 2^47 buckets, never 0.*/
+	public static long fingerprint(long hash){
+		final long out = (hash >>> 47) & FINGERPRINT_MASK;
+		return out == 0 ? 1 : out;
+	}
+
+	public static long tag(long hash, long offset, boolean tail){
+		final long out = offset | (fingerprint(hash) << FINGERPRINT_SHIFT);
+		return tail ? out | TAIL_FLAG : out;
+	}
+
+	public static long offset(long ptr){
+		return ptr & OFFSET_MASK;
+	}
+
+	public static boolean isTail(long ptr){
+		return ptr < 0;
+	}
+
+	/**Whether the record pointed to may have the given hash.*/
+	public static boolean mayMatch(long ptr, long hash){
+		final long fingerprint = (ptr >>> FINGERPRINT_SHIFT) & FINGERPRINT_MASK;
+		return fingerprint == 0 || fingerprint == fingerprint(hash);
+	}
+}
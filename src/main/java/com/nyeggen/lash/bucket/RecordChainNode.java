@@ -8,7 +8,9 @@ public class RecordChainNode {
 	long hash;
 	long nextRecordPos;
 	byte[] key;
+	/**Value bytes as stored, which are compressed if valCompressed is set.*/
 	byte[] val;
+	boolean valCompressed;
 	
 	protected RecordChainNode(){}
 	
@@ -16,6 +18,11 @@ public class RecordChainNode {
 		this(hash, 0, key, val);
 	}
 	
+	public RecordChainNode(long hash, byte[] key, byte[] val, boolean valCompressed){
+		this(hash, 0, key, val);
+		this.valCompressed = valCompressed;
+	}
+	
 	public RecordChainNode(long hash, long nextBucket, byte[] key, byte[] val){
 		this.hash = hash;
 		this.nextRecordPos = nextBucket;
@@ -29,7 +36,9 @@ public class RecordChainNode {
 	public void setNextRecordPos(long nRecPos){ this.nextRecordPos = nRecPos; }
 	public long getHash(){ return hash; }
 	public byte[] getKey(){ return key; }
+	/**Returns the stored value bytes; see isValCompressed().*/
 	public byte[] getVal(){ return val; }
+	public boolean isValCompressed(){ return valCompressed; }
 	
 	public boolean keyEquals(long oHash, byte[] oKey){
 		return oHash == this.hash && Arrays.equals(oKey, this.key);
@@ -4,8 +4,29 @@ import com.nyeggen.lash.util.MMapper;
 
 public class RecordPtr{
 	public final long hash, dataPtr;
+	/**vLength is the stored length of the value, with the high bit set if
+	 * the stored bytes are compressed, and the next if the extent is padded.  kLength is the key length, with the
+	 * high bit set if the record carries an expiry time, stored as 8 bytes
+	 * at dataPtr ahead of the key, and the next bit used as a CLOCK
+	 * reference bit by caches.*/
 	public final int kLength, vLength;
 	public static final RecordPtr DELETED = new RecordPtr(-1, -1, -1, -1);
+	/**Set in the stored value length of compressed values.*/
+	public static final int COMPRESSED_FLAG = 0x80000000;
+	/**Set in the stored value length of records whose extent has room
+	 * beyond the value, left by overwriting it in place with a shorter one.
+	 * The number of bytes spare is recorded just after the value (see
+	 * readSlack), so that the extent keeps its capacity.*/
+	public static final int PADDED_FLAG = 0x40000000;
+	/**The flags that may be set in a stored value length.*/
+	public static final int VAL_FLAGS = COMPRESSED_FLAG | PADDED_FLAG;
+	/**Set in the stored key length of records with an expiry time.*/
+	public static final int EXPIRY_FLAG = 0x80000000;
+	/**Set in the stored key length of records accessed since the CLOCK hand
+	 * last passed them.*/
+	public static final int REFERENCED_FLAG = 0x40000000;
+	/**Bytes taken by the expiry time of records that have one.*/
+	public static final int EXPIRY_SIZE = 8;
 	
 	public RecordPtr(long hash, long dataPtr, int kLength, int vLength){
 		this.hash = hash;
@@ -26,6 +47,12 @@ public class RecordPtr{
 		return v == 0 || v == -1;
 	}
 	
+	/**Sets or clears the reference bit of the pointer stored at pos, which
+	 * this was read from.*/
+	public void writeReferenced(final long pos, final MMapper mapper, boolean referenced){
+		mapper.putInt(pos+16, referenced ? kLength | REFERENCED_FLAG : kLength & ~REFERENCED_FLAG);
+	}
+	
 	public RecordPtr writeToPos(final long pos, final MMapper mapper){
 		mapper.putLong(pos,  hash);
 		mapper.putLong(pos+8, dataPtr);
@@ -36,19 +63,61 @@ public class RecordPtr{
 	
 	/**Returns true if we cannot preclude a match based on locally stored data.*/
 	public boolean maybeMatches(long hash, byte[] k){
-		return this.hash == hash && this.kLength == k.length;
+		return this.hash == hash && keyLength() == k.length;
 	}
 	public boolean isWritable(){ return dataPtr == 0 || dataPtr == -1; }
 	public boolean isFree(){ return dataPtr == 0; }
 	public boolean isDeleted(){ return dataPtr == -1; }
+	public boolean isCompressed(){ return (vLength & COMPRESSED_FLAG) != 0; }
+	/**Number of value bytes stored in secondary.*/
+	public int storedValLength(){ return vLength & ~VAL_FLAGS; }
+	public boolean isPadded(){ return (vLength & PADDED_FLAG) != 0; }
+	public boolean hasExpiry(){ return (kLength & EXPIRY_FLAG) != 0; }
+	public int keyLength(){ return kLength & ~(EXPIRY_FLAG | REFERENCED_FLAG); }
+	public boolean isReferenced(){ return (kLength & REFERENCED_FLAG) != 0; }
+	/**Position of the key in secondary.*/
+	public long keyPos(){ return hasExpiry() ? dataPtr + EXPIRY_SIZE : dataPtr; }
+	/**Position of the stored value in secondary.*/
+	public long valPos(){ return keyPos() + keyLength(); }
+	/**Number of bytes the record's value may take in place.*/
+	public long valCapacity(MMapper mapper){
+		return isPadded() ? storedValLength() + readSlack(mapper, valPos() + storedValLength()) : storedValLength();
+	}
+	/**Number of bytes the record occupies in secondary.*/
+	public long extentLength(MMapper mapper){ return valPos() - dataPtr + valCapacity(mapper); }
+	/**Returns the expiry time in milliseconds since the epoch, or 0 if the
+	 * record does not expire.*/
+	public long getExpiry(MMapper mapper){
+		return hasExpiry() ? mapper.getLong(dataPtr) : 0;
+	}
+	public boolean isExpired(MMapper mapper, long now){
+		return hasExpiry() && mapper.getLong(dataPtr) <= now;
+	}
 	public byte[] getKey(MMapper mapper){
-		final byte[] out = new byte[kLength];
-		mapper.getBytes(dataPtr, out);
+		final byte[] out = new byte[keyLength()];
+		mapper.getBytes(keyPos(), out);
 		return out;
 	}
+	/**Reads the number of spare bytes recorded at pos, just after the value
+	 * of a padded record.*/
+	public static int readSlack(MMapper mapper, long pos){
+		final int b = mapper.getByte(pos) & 0xFF;
+		return b < 0xFF ? b : mapper.getInt(pos + 1);
+	}
+	/**Records the number of spare bytes, which must be at least one, at pos,
+	 * just after a value: in one byte if there are fewer than 255, and
+	 * otherwise in the four after a marker byte.*/
+	public static void writeSlack(MMapper mapper, long pos, int slack){
+		if(slack < 0xFF){
+			mapper.putByte(pos, (byte)slack);
+		} else {
+			mapper.putByte(pos, (byte)0xFF);
+			mapper.putInt(pos + 1, slack);
+		}
+	}
 	public byte[] getVal(MMapper mapper){
-		final byte[] out = new byte[vLength];
-		mapper.getBytes(dataPtr + kLength, out);
+		final byte[] out = new byte[storedValLength()];
+		mapper.getBytes(valPos(), out);
 		return out;
 	}
 }
\ No newline at end of file
@@ -1,44 +1,120 @@
 package com.nyeggen.lash.bucket;
 
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+
 import com.nyeggen.lash.util.MMapper;
 
 /**This represents a bucket that exists at a particular location in an underlying
  * file.  Mutator methods will propagate through to the underlying storage.
  * However, if another writer overwrites data logically corresponding to this
- * bucket, the change will not be reflected in the Java object.*/
+ * bucket, the change will not be reflected in the Java object.
+ * A record that is read is a view of its header only: keys are compared in
+ * place, and the key and value are copied out the first time they are asked
+ * for, so that walking a chain allocates nothing for the records skipped.*/
 public class WritethruRecordChainNode extends RecordChainNode {
 	final MMapper m;
 	final long pos;
+	final int keyLen;
+	int valLen;
+	/**Whether the extent has room beyond the value (see RecordPtr.PADDED_FLAG).*/
+	boolean padded;
+	/**Held while reading the key or value lazily, so that the mapping cannot
+	 * be moved underneath; null if there is no need.*/
+	final Lock lock;
 	
 	public static WritethruRecordChainNode readRecord(MMapper m, long pos){
-		return new WritethruRecordChainNode(m, pos);
+		return new WritethruRecordChainNode(m, pos, null);
+	}
+	/**Reads a record whose key and value are later read under the given lock.*/
+	public static WritethruRecordChainNode readRecord(MMapper m, long pos, Lock lock){
+		return new WritethruRecordChainNode(m, pos, lock);
 	}
 	
 	/**Used for reads*/
-	protected WritethruRecordChainNode(MMapper m, long pos){
+	protected WritethruRecordChainNode(MMapper m, long pos, Lock lock){
 		super();
 		this.m = m;
 		this.pos = pos;
-		
+		this.lock = lock;
+	
 		this.hash = m.getLong(pos);
 		this.nextRecordPos = m.getLong(pos + 8);
-		final int keyLen = m.getInt(pos + 16);
-		final int valLen = m.getInt(pos + 20);
-		this.key = new byte[keyLen];
-		this.val = new byte[valLen];
-		
-		m.getBytes(pos + 24, key);
-		m.getBytes(pos + 24 + keyLen, val);		
+		this.keyLen = m.getInt(pos + 16);
+		final int storedValLen = m.getInt(pos + 20);
+		this.valLen = storedValLen & ~RecordPtr.VAL_FLAGS;
+		this.valCompressed = (storedValLen & RecordPtr.COMPRESSED_FLAG) != 0;
+		this.padded = (storedValLen & RecordPtr.PADDED_FLAG) != 0;
 	}
 	
 	/**Used for writes*/
-	protected WritethruRecordChainNode(MMapper m, long pos, long hash, long nextRecordPos, byte[] key, byte[] val){
+	protected WritethruRecordChainNode(MMapper m, long pos, long hash, long nextRecordPos, byte[] key, byte[] val, boolean valCompressed){
 		this.m = m;
 		this.pos = pos;
+		this.lock = null;
 		this.hash = hash;
 		this.nextRecordPos = nextRecordPos;
 		this.key = key;
 		this.val = val;
+		this.keyLen = key.length;
+		this.valLen = val.length;
+		this.valCompressed = valCompressed;
+	}
+	
+	private byte[] readBytes(long from, int len){
+		final byte[] out = new byte[len];
+		if(lock != null) lock.lock();
+		try {
+			m.getBytes(from, out);
+		} finally {
+			if(lock != null) lock.unlock();
+		}
+		return out;
+	}
+	
+	@Override
+	public byte[] getKey(){
+		if(key == null) key = readBytes(pos + 24, keyLen);
+		return key;
+	}
+	@Override
+	public byte[] getVal(){
+		if(val == null) val = readBytes(pos + 24 + keyLen, valLen);
+		return val;
+	}
+	public int getValLength(){
+		return valLen;
+	}
+	
+	/**Number of bytes the value may take in place.*/
+	public long getValCapacity(){
+		if(!padded) return valLen;
+		if(lock != null) lock.lock();
+		try {
+			return valLen + RecordPtr.readSlack(m, pos + 24 + keyLen + valLen);
+		} finally {
+			if(lock != null) lock.unlock();
+		}
+	}
+	
+	@Override
+	public long size(){ return 8 + 8 + 4 + 4 + keyLen + valLen; }
+	/**Number of bytes the record occupies in the underlying storage, which
+	 * is more than size() if its value was overwritten by a shorter one.*/
+	public long extentSize(){ return size() - valLen + getValCapacity(); }
+	
+	/**Compares the hash, then the length, and only then the stored key bytes
+	 * in place.*/
+	@Override
+	public boolean keyEquals(long oHash, byte[] oKey){
+		if(oHash != hash || oKey.length != keyLen) return false;
+		if(key != null) return Arrays.equals(oKey, key);
+		if(lock != null) lock.lock();
+		try {
+			return m.bytesEqual(pos + 24, oKey);
+		} finally {
+			if(lock != null) lock.unlock();
+		}
 	}
 	
 	@Override
@@ -46,25 +122,53 @@ public class WritethruRecordChainNode extends RecordChainNode {
 		this.nextRecordPos = nRecPos;
 		m.putLong(pos + 8, nRecPos);
 	}
-
+	
+	/**Overwrites the stored value in place, if the new one fits in the
+	 * value's capacity.  Returns false, writing nothing, if it does not.  Any
+	 * bytes the new value leaves spare are recorded as slack, so that the
+	 * extent keeps its capacity.*/
+	public boolean overwriteVal(byte[] newVal, boolean compressed){
+		final long capacity = getValCapacity();
+		if(newVal.length > capacity) return false;
+		final boolean pad = newVal.length < capacity;
+		m.putBytes(pos + 24 + keyLen, newVal);
+		if(pad) RecordPtr.writeSlack(m, pos + 24 + keyLen + newVal.length, (int)(capacity - newVal.length));
+		m.putInt(pos + 20, newVal.length | (compressed ? RecordPtr.COMPRESSED_FLAG : 0) | (pad ? RecordPtr.PADDED_FLAG : 0));
+		this.val = newVal;
+		this.valLen = newVal.length;
+		this.valCompressed = compressed;
+		this.padded = pad;
+		return true;
+	}
+	
+	/**Returns the first 8 bytes of the stored value, read in native order.*/
+	public long getValLong(){
+		return m.getLong(pos + 24 + keyLen);
+	}
+	/**Overwrites the first 8 bytes of the stored value in place.*/
+	public void putValLong(long v){
+		m.putLong(pos + 24 + keyLen, v);
+		val = null;
+	}
+	
 	public long getPos(){
 		return pos;
 	}
-
+	
 	@Override
 	public String toString(){
-		return "Record:{Position:" + pos  + ", Hash: " + hash + ", NextRecPos:" + nextRecordPos 
-				+ ", KeySize:" + key.length + ", ValSize: " + val.length + "}";
+		return "Record:{Position:" + pos  + ", Hash: " + hash + ", NextRecPos:" + nextRecordPos
+				+ ", KeySize:" + keyLen + ", ValSize: " + valLen + "}";
 	}
 	
 	public static WritethruRecordChainNode writeRecord(RecordChainNode rec, MMapper m, long pos){
 		m.putLong(pos, rec.hash);
 		m.putLong(pos + 8, rec.nextRecordPos);
 		m.putInt(pos + 16, rec.key.length);
-		m.putInt(pos + 20, rec.val.length);
+		m.putInt(pos + 20, rec.valCompressed ? rec.val.length | RecordPtr.COMPRESSED_FLAG : rec.val.length);
 		m.putBytes(pos + 24, rec.key);
 		m.putBytes(pos + 24 + rec.key.length, rec.val);
-
-		return new WritethruRecordChainNode(m, pos, rec.hash, rec.nextRecordPos, rec.key, rec.val);
+	
+		return new WritethruRecordChainNode(m, pos, rec.hash, rec.nextRecordPos, rec.key, rec.val, rec.valCompressed);
 	}
 }
@@ -0,0 +1,395 @@
+package com.nyeggen.lash.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**A log-structured ordered set of keys, used to give a hash map range and
+ * prefix scans.  Recent changes accumulate in an in-memory skip list; once it
+ * exceeds flushThreshold entries it is written out as an immutable sorted run
+ * (see SortedRun), and once there are more than maxRuns runs they are merged
+ * into one.  Lookups merge all of these, with newer entries (including
+ * deletions) shadowing older ones.
+ *
+ * Keys are ordered as unsigned bytes, lexicographically.  Note that this is
+ * only numeric order for fixed-width big-endian encodings.
+ *
+ * Superseded runs are unlinked immediately, but stay mapped until close() so
+ * that outstanding iterators remain valid.*/
+public class OrderedKeyIndex implements Closeable {
+	static final String runFilePrefix = "ordered.";
+	static final String runFileSuffix = ".run";
+	static final int defaultFlushThreshold = 1 << 16;
+	static final int defaultMaxRuns = 8;
+
+	/**Unsigned lexicographic order.*/
+	public static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			final int len = Math.min(a.length, b.length);
+			for(int i=0; i<len; i++){
+				final int c = (a[i] & 0xff) - (b[i] & 0xff);
+				if(c != 0) return c;
+			}
+			return a.length - b.length;
+		}
+	};
+
+	private final String folderLoc;
+	private final int flushThreshold, maxRuns;
+
+	/**Mutators hold the read lock while writing to the memtable; the write
+	 * lock is held to swap out the memtable or the list of runs.*/
+	private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+	private volatile ConcurrentSkipListMap<byte[], Boolean> memtable = newMemtable();
+	private final AtomicInteger memtableWrites = new AtomicInteger(0);
+	/**Memtable being written to a run, or null.*/
+	private volatile ConcurrentSkipListMap<byte[], Boolean> flushing = null;
+	/**Immutable list, newest run first.*/
+	private volatile List<SortedRun> runs;
+	private final List<SortedRun> retiredRuns = new ArrayList<SortedRun>();
+	private final AtomicLong nextRunSeq = new AtomicLong(0);
+	/**Serializes flushes and compactions.*/
+	private final Object flushLock = new Object();
+
+	public OrderedKeyIndex(String folderLoc){
+		this(folderLoc, defaultFlushThreshold, defaultMaxRuns);
+	}
+
+	/**Opens the index stored in the given folder, loading any existing runs.*/
+	public OrderedKeyIndex(String folderLoc, int flushThreshold, int maxRuns){
+		this.folderLoc = folderLoc;
+		this.flushThreshold = flushThreshold;
+		this.maxRuns = maxRuns;
+
+		final List<SortedRun> loaded = new ArrayList<SortedRun>();
+		final File[] files = new File(folderLoc).listFiles();
+		try {
+			if(files != null) for(final File f : files){
+				final String name = f.getName();
+				if(!name.startsWith(runFilePrefix) || !name.endsWith(runFileSuffix)) continue;
+				final long seq = Long.parseLong(name.substring(runFilePrefix.length(), name.length() - runFileSuffix.length()));
+				loaded.add(SortedRun.open(f.getCanonicalPath(), seq));
+				if(seq >= nextRunSeq.get()) nextRunSeq.set(seq + 1);
+			}
+		} catch(Exception e){
+			throw new RuntimeException(e);
+		}
+		Collections.sort(loaded, new Comparator<SortedRun>() {
+			@Override
+			public int compare(SortedRun o1, SortedRun o2) {
+				return o1.seq > o2.seq ? -1 : o1.seq < o2.seq ? 1 : 0;
+			}
+		});
+		this.runs = Collections.unmodifiableList(loaded);
+	}
+
+	private static ConcurrentSkipListMap<byte[], Boolean> newMemtable(){
+		return new ConcurrentSkipListMap<byte[], Boolean>(KEY_ORDER);
+	}
+
+	private String runLoc(long seq){
+		return folderLoc + File.separator + runFilePrefix + seq + runFileSuffix;
+	}
+
+	/**True if any runs were loaded or written, ie the index is not new.*/
+	public boolean hasPersistedState(){
+		return !runs.isEmpty();
+	}
+
+	public void add(byte[] k){
+		record(k, Boolean.TRUE);
+	}
+
+	public void remove(byte[] k){
+		record(k, Boolean.FALSE);
+	}
+
+	private void record(byte[] k, Boolean present){
+		stateLock.readLock().lock();
+		try {
+			memtable.put(k, present);
+		} finally {
+			stateLock.readLock().unlock();
+		}
+		memtableWrites.incrementAndGet();
+	}
+
+	/**Flushes the memtable if it has grown past the threshold.  Callers should
+	 * not hold locks that mutators need.*/
+	public void maybeFlush(){
+		if(memtableWrites.get() >= flushThreshold) flush();
+	}
+
+	/**Writes the memtable to a new run, and compacts runs if there are too many.*/
+	public void flush(){
+		synchronized(flushLock){
+			stateLock.writeLock().lock();
+			try {
+				if(memtable.isEmpty()) return;
+				flushing = memtable;
+				memtable = newMemtable();
+				memtableWrites.set(0);
+			} finally {
+				stateLock.writeLock().unlock();
+			}
+
+			final long seq = nextRunSeq.getAndIncrement();
+			final SortedRun run;
+			try {
+				run = SortedRun.write(runLoc(seq), seq, flushing.entrySet().iterator(), runs.isEmpty());
+			} catch(Exception e){
+				throw new RuntimeException(e);
+			}
+
+			stateLock.writeLock().lock();
+			try {
+				final List<SortedRun> nRuns = new ArrayList<SortedRun>(runs.size() + 1);
+				nRuns.add(run);
+				nRuns.addAll(runs);
+				runs = Collections.unmodifiableList(nRuns);
+				flushing = null;
+			} finally {
+				stateLock.writeLock().unlock();
+			}
+			if(runs.size() > maxRuns) compact();
+		}
+	}
+
+	/**Merges all runs into one, discarding tombstones.*/
+	private void compact(){
+		final List<SortedRun> toMerge = runs;
+		final List<Cursor> cursors = new ArrayList<Cursor>();
+		for(int i=0; i<toMerge.size(); i++) cursors.add(new RunCursor(toMerge.get(i), i, null));
+		final MergeIterator merged = new MergeIterator(cursors, null, true);
+
+		final long seq = nextRunSeq.getAndIncrement();
+		final SortedRun run;
+		try {
+			run = SortedRun.write(runLoc(seq), seq, merged, true);
+		} catch(Exception e){
+			throw new RuntimeException(e);
+		}
+
+		stateLock.writeLock().lock();
+		try {
+			//Only flush() adds runs, and it holds flushLock, so runs == toMerge
+			runs = Collections.singletonList(run);
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+		synchronized(retiredRuns){
+			for(final SortedRun old : toMerge){
+				old.delete();
+				retiredRuns.add(old);
+			}
+		}
+	}
+
+	/**Returns the present keys k with from <= k < to, in order.  Either bound
+	 * may be null for an open range.  The iterator is weakly consistent with
+	 * concurrent changes.*/
+	public Iterator<byte[]> range(byte[] from, byte[] to){
+		final List<Cursor> cursors = new ArrayList<Cursor>();
+		stateLock.readLock().lock();
+		try {
+			int rank = 0;
+			cursors.add(new MemtableCursor(memtable, rank++, from));
+			if(flushing != null) cursors.add(new MemtableCursor(flushing, rank++, from));
+			for(final SortedRun run : runs) cursors.add(new RunCursor(run, rank++, from));
+		} finally {
+			stateLock.readLock().unlock();
+		}
+		final MergeIterator merged = new MergeIterator(cursors, to, false);
+		return new Iterator<byte[]>() {
+			@Override
+			public boolean hasNext() { return merged.hasNext(); }
+			@Override
+			public byte[] next() { return merged.next().getKey(); }
+			@Override
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	/**Returns the present keys beginning with the given prefix, in order.*/
+	public Iterator<byte[]> prefix(byte[] prefix){
+		return range(prefix, prefixUpperBound(prefix));
+	}
+
+	/**Smallest key greater than every key with the given prefix, or null if
+	 * there is none (the prefix is all 0xff).*/
+	static byte[] prefixUpperBound(byte[] prefix){
+		for(int i=prefix.length - 1; i>=0; i--){
+			if(prefix[i] != (byte)0xff){
+				final byte[] out = new byte[i + 1];
+				System.arraycopy(prefix, 0, out, 0, i + 1);
+				out[i]++;
+				return out;
+			}
+		}
+		return null;
+	}
+
+	/**Removes all keys and deletes all runs.*/
+	public void clear(){
+		synchronized(flushLock){
+			stateLock.writeLock().lock();
+			try {
+				memtable = newMemtable();
+				memtableWrites.set(0);
+				synchronized(retiredRuns){
+					for(final SortedRun old : runs){
+						old.delete();
+						retiredRuns.add(old);
+					}
+				}
+				runs = Collections.emptyList();
+			} finally {
+				stateLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**Flushes outstanding changes, and unmaps all runs.*/
+	@Override
+	public void close() throws IOException {
+		flush();
+		synchronized(retiredRuns){
+			for(final SortedRun run : runs) run.close();
+			for(final SortedRun run : retiredRuns) run.close();
+			retiredRuns.clear();
+		}
+	}
+
+	/**Unmaps and deletes all runs.*/
+	public void delete() throws IOException {
+		synchronized(retiredRuns){
+			for(final SortedRun run : runs){
+				run.close();
+				run.delete();
+			}
+			for(final SortedRun run : retiredRuns) run.close();
+			retiredRuns.clear();
+		}
+		runs = Collections.emptyList();
+	}
+
+	/**A position in one sorted source of keys.  Lower rank is newer.*/
+	private static abstract class Cursor {
+		final int rank;
+		byte[] key;
+		boolean present;
+		Cursor(int rank){ this.rank = rank; }
+		/**Moves to the next entry, returning false (and nulling key) if there is none.*/
+		abstract boolean advance();
+	}
+
+	private static final class MemtableCursor extends Cursor {
+		final Iterator<Map.Entry<byte[], Boolean>> it;
+		MemtableCursor(ConcurrentSkipListMap<byte[], Boolean> m, int rank, byte[] from){
+			super(rank);
+			it = (from == null ? m : m.tailMap(from, true)).entrySet().iterator();
+			advance();
+		}
+		@Override
+		boolean advance(){
+			if(!it.hasNext()){
+				key = null;
+				return false;
+			}
+			final Map.Entry<byte[], Boolean> e = it.next();
+			key = e.getKey();
+			present = e.getValue().booleanValue();
+			return true;
+		}
+	}
+
+	private static final class RunCursor extends Cursor {
+		final SortedRun run;
+		long idx;
+		RunCursor(SortedRun run, int rank, byte[] from){
+			super(rank);
+			this.run = run;
+			this.idx = run.lowerBound(from) - 1;
+			advance();
+		}
+		@Override
+		boolean advance(){
+			if(++idx >= run.count){
+				key = null;
+				return false;
+			}
+			key = run.keyAt(idx);
+			present = run.presentAt(idx);
+			return true;
+		}
+	}
+
+	/**Merges cursors in key order, taking the newest entry for each key.  If
+	 * includeTombstones is unset, deleted keys are skipped.*/
+	private static final class MergeIterator implements Iterator<Map.Entry<byte[], Boolean>> {
+		final PriorityQueue<Cursor> heap;
+		final byte[] to;
+		final boolean includeTombstones;
+		Map.Entry<byte[], Boolean> next;
+
+		MergeIterator(List<Cursor> cursors, byte[] to, boolean includeTombstones){
+			this.to = to;
+			this.includeTombstones = includeTombstones;
+			this.heap = new PriorityQueue<Cursor>(Math.max(1, cursors.size()), new Comparator<Cursor>() {
+				@Override
+				public int compare(Cursor o1, Cursor o2) {
+					final int c = KEY_ORDER.compare(o1.key, o2.key);
+					return c != 0 ? c : o1.rank - o2.rank;
+				}
+			});
+			for(final Cursor c : cursors) if(c.key != null) heap.add(c);
+			advance();
+		}
+
+		private void advance(){
+			next = null;
+			while(next == null && !heap.isEmpty()){
+				final Cursor newest = heap.poll();
+				final byte[] k = newest.key;
+				if(to != null && KEY_ORDER.compare(k, to) >= 0){
+					heap.clear();
+					return;
+				}
+				if(newest.present || includeTombstones){
+					next = new java.util.AbstractMap.SimpleImmutableEntry<byte[], Boolean>(k, newest.present);
+				}
+				//Skip shadowed entries for the same key
+				while(!heap.isEmpty() && KEY_ORDER.compare(heap.peek().key, k) == 0){
+					final Cursor shadowed = heap.poll();
+					if(shadowed.advance()) heap.add(shadowed);
+				}
+				if(newest.advance()) heap.add(newest);
+			}
+		}
+
+		@Override
+		public boolean hasNext() { return next != null; }
+		@Override
+		public Map.Entry<byte[], Boolean> next() {
+			if(next == null) throw new NoSuchElementException();
+			final Map.Entry<byte[], Boolean> out = next;
+			advance();
+			return out;
+		}
+		@Override
+		public void remove() { throw new UnsupportedOperationException(); }
+	}
+}
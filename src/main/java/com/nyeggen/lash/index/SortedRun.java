@@ -0,0 +1,104 @@
+package com.nyeggen.lash.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.nyeggen.lash.util.MMapper;
+
+/**An immutable, sorted run of keys stored in an mmap'd file.  Each entry
+ * records whether the key is present or has been deleted (a tombstone that
+ * shadows older runs).
+ * Layout: [count: 8][offsetsPos: 8], then entries of [keyLen: 4][present: 1][key],
+ * then count 8-byte absolute offsets of the entries, in key order.*/
+class SortedRun implements Closeable {
+	private static final int headerSize = 16;
+
+	final MMapper mapper;
+	final long seq;
+	final long count;
+	private final long offsetsPos;
+
+	private SortedRun(MMapper mapper, long seq){
+		this.mapper = mapper;
+		this.seq = seq;
+		this.count = mapper.getLong(0);
+		this.offsetsPos = mapper.getLong(8);
+	}
+
+	static SortedRun open(String loc, long seq) throws Exception {
+		return new SortedRun(new MMapper(loc, new File(loc).length()), seq);
+	}
+
+	/**Writes the given entries, which must already be in key order, to a new
+	 * run at the given location.  If dropTombstones is set, deleted keys are
+	 * omitted (which is only safe if there are no older runs).*/
+	static SortedRun write(String loc, long seq, Iterator<Map.Entry<byte[], Boolean>> entries, boolean dropTombstones) throws Exception {
+		final MMapper m = new MMapper(loc, 1 << 16);
+		long[] offsets = new long[1024];
+		long count = 0, pos = headerSize;
+		while(entries.hasNext()){
+			final Map.Entry<byte[], Boolean> e = entries.next();
+			final boolean present = e.getValue().booleanValue();
+			if(!present && dropTombstones) continue;
+			final byte[] k = e.getKey();
+			while(pos + 5 + k.length > m.size()) m.doubleLength();
+			if(count == offsets.length){
+				final long[] nOffsets = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, nOffsets, 0, offsets.length);
+				offsets = nOffsets;
+			}
+			offsets[(int)count++] = pos;
+			m.putInt(pos, k.length);
+			m.putByte(pos + 4, present ? (byte)1 : 0);
+			m.putBytes(pos + 5, k);
+			pos += 5 + k.length;
+		}
+		final long offsetsPos = pos;
+		while(offsetsPos + count * 8 > m.size()) m.doubleLength();
+		for(int i=0; i<count; i++) m.putLong(offsetsPos + i * 8L, offsets[i]);
+		m.putLong(0, count);
+		m.putLong(8, offsetsPos);
+		m.remap(offsetsPos + count * 8);
+		return new SortedRun(m, seq);
+	}
+
+	private long entryPos(long idx){
+		return mapper.getLong(offsetsPos + idx * 8);
+	}
+
+	byte[] keyAt(long idx){
+		final long pos = entryPos(idx);
+		final byte[] out = new byte[mapper.getInt(pos)];
+		mapper.getBytes(pos + 5, out);
+		return out;
+	}
+
+	boolean presentAt(long idx){
+		return mapper.getByte(entryPos(idx) + 4) != 0;
+	}
+
+	/**Index of the first key >= k, or count if there is none.  A null k
+	 * returns 0.*/
+	long lowerBound(byte[] k){
+		if(k == null) return 0;
+		long lo = 0, hi = count;
+		while(lo < hi){
+			final long mid = (lo + hi) >>> 1;
+			if(OrderedKeyIndex.KEY_ORDER.compare(keyAt(mid), k) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mapper.close();
+	}
+
+	void delete(){
+		new File(mapper.getLocation()).delete();
+	}
+}
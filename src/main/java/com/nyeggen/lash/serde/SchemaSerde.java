@@ -0,0 +1,405 @@
+package com.nyeggen.lash.serde;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import sun.misc.Unsafe;
+
+import com.nyeggen.lash.util.MMapper;
+
+/**Compact, field-by-field serde for plain Java objects.  The schema (which
+ * fields to write, in what order, and how) is derived once via reflection when
+ * the serde is constructed, so unlike SerializingSerde no class descriptors
+ * are written with each value.  The encoding is:
+ * <ul>
+ * <li>A bitmap with one bit per reference-typed field, set if it is non-null</li>
+ * <li>Each field, in field-name order (superclass fields first).  Primitives
+ * and boxed primitives are fixed width in native byte order; Strings, arrays
+ * and enums are prefixed with a varint length / ordinal.</li>
+ * </ul>
+ * Supported field types are primitives and their boxes, String, UUID, enums,
+ * byte/int/long/double arrays, and nested objects of any concrete class whose
+ * fields are themselves supported (encoded recursively, without polymorphism).
+ * Static and transient fields are skipped.  Objects are instantiated without
+ * running a constructor.
+ *
+ * Because there is no per-value metadata, renaming, adding or removing fields
+ * invalidates previously serialized data.  Following the other serdes, null
+ * serializes to an empty array, which also means that an instance of a class
+ * with no fields will deserialize as null.*/
+@SuppressWarnings("restriction")
+public class SchemaSerde<T> implements Serde<T> {
+	private static final Unsafe unsafe = MMapper.getUnsafe();
+	private static final long BYTE_ARRAY_OFFSET = MMapper.getByteArrayOffset();
+	private static final Charset utf8 = Charset.forName("UTF8");
+
+	private final Schema schema;
+
+	/**Derives a schema for the given class.  Throws IllegalArgumentException
+	 * if any field (or any field of a nested class) has an unsupported type.*/
+	public SchemaSerde(Class<T> cls){
+		this.schema = Schema.forClass(cls, new HashMap<Class<?>, Schema>());
+	}
+
+	@Override
+	public byte[] toBytes(T t) {
+		if(t == null) return new byte[]{};
+		final Output out = new Output(schema.sizeHint);
+		schema.write(t, out);
+		return out.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T fromBytes(byte[] d) {
+		if(d == null || d.length == 0) return null;
+		return (T) schema.read(new Input(d));
+	}
+
+	/**Ordered field codecs for a single class.*/
+	private static final class Schema {
+		final Class<?> cls;
+		FieldCodec[] fields;
+		int nRefFields;
+		int sizeHint;
+
+		private Schema(Class<?> cls){ this.cls = cls; }
+
+		/**Builds the schema for cls, reusing (possibly incomplete) schemas in
+		 * the given map so that self-referential classes terminate.*/
+		static Schema forClass(Class<?> cls, Map<Class<?>, Schema> known){
+			final Schema existing = known.get(cls);
+			if(existing != null) return existing;
+			if(cls.isInterface() || Modifier.isAbstract(cls.getModifiers()) || cls.isArray() || cls.isPrimitive())
+				throw new IllegalArgumentException("Cannot derive schema for " + cls.getName());
+
+			final Schema out = new Schema(cls);
+			known.put(cls, out);
+
+			final List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+			for(Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) hierarchy.add(0, c);
+
+			final List<FieldCodec> codecs = new ArrayList<FieldCodec>();
+			int refIdx = 0, sizeHint = 0;
+			for(final Class<?> c : hierarchy){
+				final List<Field> declared = new ArrayList<Field>();
+				for(final Field f : c.getDeclaredFields()){
+					final int mods = f.getModifiers();
+					if(Modifier.isStatic(mods) || Modifier.isTransient(mods) || f.isSynthetic()) continue;
+					declared.add(f);
+				}
+				Collections.sort(declared, new Comparator<Field>() {
+					@Override
+					public int compare(Field o1, Field o2) {
+						return o1.getName().compareTo(o2.getName());
+					}
+				});
+				for(final Field f : declared){
+					final FieldCodec codec = codecFor(f, known);
+					if(!codec.type.isPrimitive()) codec.refIdx = refIdx++;
+					sizeHint += codec.sizeHint();
+					codecs.add(codec);
+				}
+			}
+			out.fields = codecs.toArray(new FieldCodec[codecs.size()]);
+			out.nRefFields = refIdx;
+			out.sizeHint = sizeHint + ((refIdx + 7) >>> 3);
+			return out;
+		}
+
+		void write(Object o, Output out){
+			if(o.getClass() != cls)
+				throw new IllegalArgumentException("Expected " + cls.getName() + ", got " + o.getClass().getName());
+			final int bitmapPos = out.reserve((nRefFields + 7) >>> 3);
+			for(final FieldCodec f : fields){
+				if(f.refIdx >= 0){
+					final Object v = unsafe.getObject(o, f.offset);
+					if(v == null) continue;
+					out.buf[bitmapPos + (f.refIdx >>> 3)] |= (byte)(1 << (f.refIdx & 7));
+					f.writeRef(v, out);
+				} else f.writePrimitive(o, out);
+			}
+		}
+
+		Object read(Input in){
+			final Object o;
+			try {
+				o = unsafe.allocateInstance(cls);
+			} catch(InstantiationException e){
+				throw new RuntimeException(e);
+			}
+			final int bitmapPos = in.skip((nRefFields + 7) >>> 3);
+			for(final FieldCodec f : fields){
+				if(f.refIdx >= 0){
+					if((in.buf[bitmapPos + (f.refIdx >>> 3)] & (1 << (f.refIdx & 7))) == 0) continue;
+					unsafe.putObject(o, f.offset, f.readRef(in));
+				} else f.readPrimitive(o, in);
+			}
+			return o;
+		}
+	}
+
+	private static FieldCodec codecFor(Field f, Map<Class<?>, Schema> known){
+		final Class<?> t = f.getType();
+		final long off = unsafe.objectFieldOffset(f);
+		if(t == boolean.class || t == Boolean.class) return new BooleanCodec(t, off);
+		if(t == byte.class || t == Byte.class) return new ByteCodec(t, off);
+		if(t == short.class || t == Short.class) return new ShortCodec(t, off);
+		if(t == char.class || t == Character.class) return new CharCodec(t, off);
+		if(t == int.class || t == Integer.class) return new IntCodec(t, off);
+		if(t == long.class || t == Long.class) return new LongCodec(t, off);
+		if(t == float.class || t == Float.class) return new FloatCodec(t, off);
+		if(t == double.class || t == Double.class) return new DoubleCodec(t, off);
+		if(t == String.class) return new StringCodec(off);
+		if(t == UUID.class) return new UUIDCodec(off);
+		if(t == byte[].class) return new ArrayCodec(t, off, 0, MMapper.getByteArrayOffset());
+		if(t == int[].class) return new ArrayCodec(t, off, 2, MMapper.getIntArrayOffset());
+		if(t == long[].class) return new ArrayCodec(t, off, 3, MMapper.getLongArrayOffset());
+		if(t == double[].class) return new ArrayCodec(t, off, 3, MMapper.getDoubleArrayOffset());
+		if(t.isEnum()) return new EnumCodec(t, off);
+		if(t.isArray() || t.isInterface() || Modifier.isAbstract(t.getModifiers()) || t.getName().startsWith("java."))
+			throw new IllegalArgumentException("Unsupported type " + t.getName() + " for field " + f);
+		return new NestedCodec(t, off, Schema.forClass(t, known));
+	}
+
+	/**Reads and writes one field of an object.  Primitive-typed fields
+	 * implement the *Primitive methods; reference-typed fields (including
+	 * boxes) implement the *Ref methods, and are only called with non-null
+	 * values.*/
+	private static abstract class FieldCodec {
+		final Class<?> type;
+		final long offset;
+		int refIdx = -1;
+		FieldCodec(Class<?> type, long offset){
+			this.type = type;
+			this.offset = offset;
+		}
+		void writePrimitive(Object o, Output out){ throw new UnsupportedOperationException(); }
+		void readPrimitive(Object o, Input in){ throw new UnsupportedOperationException(); }
+		void writeRef(Object v, Output out){ throw new UnsupportedOperationException(); }
+		Object readRef(Input in){ throw new UnsupportedOperationException(); }
+		abstract int sizeHint();
+	}
+
+	private static final class BooleanCodec extends FieldCodec {
+		BooleanCodec(Class<?> t, long off){ super(t, off); }
+		void writePrimitive(Object o, Output out){ out.putByte(unsafe.getBoolean(o, offset) ? (byte)1 : 0); }
+		void readPrimitive(Object o, Input in){ unsafe.putBoolean(o, offset, in.getByte() != 0); }
+		void writeRef(Object v, Output out){ out.putByte(((Boolean)v).booleanValue() ? (byte)1 : 0); }
+		Object readRef(Input in){ return Boolean.valueOf(in.getByte() != 0); }
+		int sizeHint(){ return 1; }
+	}
+	private static final class ByteCodec extends FieldCodec {
+		ByteCodec(Class<?> t, long off){ super(t, off); }
+		void writePrimitive(Object o, Output out){ out.putByte(unsafe.getByte(o, offset)); }
+		void readPrimitive(Object o, Input in){ unsafe.putByte(o, offset, in.getByte()); }
+		void writeRef(Object v, Output out){ out.putByte(((Byte)v).byteValue()); }
+		Object readRef(Input in){ return Byte.valueOf(in.getByte()); }
+		int sizeHint(){ return 1; }
+	}
+	private static final class ShortCodec extends FieldCodec {
+		ShortCodec(Class<?> t, long off){ super(t, off); }
+		void writePrimitive(Object o, Output out){ out.putShort(unsafe.getShort(o, offset)); }
+		void readPrimitive(Object o, Input in){ unsafe.putShort(o, offset, in.getShort()); }
+		void writeRef(Object v, Output out){ out.putShort(((Short)v).shortValue()); }
+		Object readRef(Input in){ return Short.valueOf(in.getShort()); }
+		int sizeHint(){ return 2; }
+	}
+	private static final class CharCodec extends FieldCodec {
+		CharCodec(Class<?> t, long off){ super(t, off); }
+		void writePrimitive(Object o, Output out){ out.putShort((short)unsafe.getChar(o, offset)); }
+		void readPrimitive(Object o, Input in){ unsafe.putChar(o, offset, (char)in.getShort()); }
+		void writeRef(Object v, Output out){ out.putShort((short)((Character)v).charValue()); }
+		Object readRef(Input in){ return Character.valueOf((char)in.getShort()); }
+		int sizeHint(){ return 2; }
+	}
+	private static final class IntCodec extends FieldCodec {
+		IntCodec(Class<?> t, long off){ super(t, off); }
+		void writePrimitive(Object o, Output out){ out.putInt(unsafe.getInt(o, offset)); }
+		void readPrimitive(Object o, Input in){ unsafe.putInt(o, offset, in.getInt()); }
+		void writeRef(Object v, Output out){ out.putInt(((Integer)v).intValue()); }
+		Object readRef(Input in){ return Integer.valueOf(in.getInt()); }
+		int sizeHint(){ return 4; }
+	}
+	private static final class LongCodec extends FieldCodec {
+		LongCodec(Class<?> t, long off){ super(t, off); }
+		void writePrimitive(Object o, Output out){ out.putLong(unsafe.getLong(o, offset)); }
+		void readPrimitive(Object o, Input in){ unsafe.putLong(o, offset, in.getLong()); }
+		void writeRef(Object v, Output out){ out.putLong(((Long)v).longValue()); }
+		Object readRef(Input in){ return Long.valueOf(in.getLong()); }
+		int sizeHint(){ return 8; }
+	}
+	private static final class FloatCodec extends FieldCodec {
+		FloatCodec(Class<?> t, long off){ super(t, off); }
+		void writePrimitive(Object o, Output out){ out.putInt(Float.floatToRawIntBits(unsafe.getFloat(o, offset))); }
+		void readPrimitive(Object o, Input in){ unsafe.putFloat(o, offset, Float.intBitsToFloat(in.getInt())); }
+		void writeRef(Object v, Output out){ out.putInt(Float.floatToRawIntBits(((Float)v).floatValue())); }
+		Object readRef(Input in){ return Float.valueOf(Float.intBitsToFloat(in.getInt())); }
+		int sizeHint(){ return 4; }
+	}
+	private static final class DoubleCodec extends FieldCodec {
+		DoubleCodec(Class<?> t, long off){ super(t, off); }
+		void writePrimitive(Object o, Output out){ out.putLong(Double.doubleToRawLongBits(unsafe.getDouble(o, offset))); }
+		void readPrimitive(Object o, Input in){ unsafe.putDouble(o, offset, Double.longBitsToDouble(in.getLong())); }
+		void writeRef(Object v, Output out){ out.putLong(Double.doubleToRawLongBits(((Double)v).doubleValue())); }
+		Object readRef(Input in){ return Double.valueOf(Double.longBitsToDouble(in.getLong())); }
+		int sizeHint(){ return 8; }
+	}
+	private static final class StringCodec extends FieldCodec {
+		StringCodec(long off){ super(String.class, off); }
+		void writeRef(Object v, Output out){
+			final byte[] b = ((String)v).getBytes(utf8);
+			out.putVarInt(b.length);
+			out.putBytes(b, BYTE_ARRAY_OFFSET, b.length);
+		}
+		Object readRef(Input in){
+			final int len = in.getVarInt();
+			final String out = new String(in.buf, in.pos, len, utf8);
+			in.pos += len;
+			return out;
+		}
+		int sizeHint(){ return 16; }
+	}
+	private static final class UUIDCodec extends FieldCodec {
+		UUIDCodec(long off){ super(UUID.class, off); }
+		void writeRef(Object v, Output out){
+			final UUID u = (UUID)v;
+			out.putLong(u.getMostSignificantBits());
+			out.putLong(u.getLeastSignificantBits());
+		}
+		Object readRef(Input in){
+			final long mostSig = in.getLong();
+			return new UUID(mostSig, in.getLong());
+		}
+		int sizeHint(){ return 16; }
+	}
+	/**Primitive arrays, copied in bulk.*/
+	private static final class ArrayCodec extends FieldCodec {
+		final int shift;
+		final long baseOffset;
+		ArrayCodec(Class<?> t, long off, int shift, long baseOffset){
+			super(t, off);
+			this.shift = shift;
+			this.baseOffset = baseOffset;
+		}
+		void writeRef(Object v, Output out){
+			final int len = java.lang.reflect.Array.getLength(v);
+			out.putVarInt(len);
+			out.putBytes(v, baseOffset, len << shift);
+		}
+		Object readRef(Input in){
+			final int len = in.getVarInt();
+			final Object arr = java.lang.reflect.Array.newInstance(type.getComponentType(), len);
+			in.getBytes(arr, baseOffset, len << shift);
+			return arr;
+		}
+		int sizeHint(){ return 32; }
+	}
+	private static final class EnumCodec extends FieldCodec {
+		final Object[] constants;
+		EnumCodec(Class<?> t, long off){
+			super(t, off);
+			this.constants = t.getEnumConstants();
+		}
+		void writeRef(Object v, Output out){ out.putVarInt(((Enum<?>)v).ordinal()); }
+		Object readRef(Input in){ return constants[in.getVarInt()]; }
+		int sizeHint(){ return 1; }
+	}
+	private static final class NestedCodec extends FieldCodec {
+		final Schema schema;
+		NestedCodec(Class<?> t, long off, Schema schema){
+			super(t, off);
+			this.schema = schema;
+		}
+		void writeRef(Object v, Output out){ schema.write(v, out); }
+		Object readRef(Input in){ return schema.read(in); }
+		//Schema may still be under construction, so we can't consult it
+		int sizeHint(){ return 32; }
+	}
+
+	/**Growable output buffer.  Multi-byte values are written in native order.*/
+	private static final class Output {
+		byte[] buf;
+		int pos = 0;
+		Output(int sizeHint){ buf = new byte[Math.max(sizeHint, 16)]; }
+
+		private void ensure(int n){
+			if(pos + n <= buf.length) return;
+			final byte[] nBuf = new byte[Math.max(buf.length * 2, pos + n)];
+			System.arraycopy(buf, 0, nBuf, 0, pos);
+			buf = nBuf;
+		}
+		/**Skips n zeroed bytes, returning the position of the first.*/
+		int reserve(int n){
+			ensure(n);
+			final int out = pos;
+			pos += n;
+			return out;
+		}
+		void putByte(byte v){ ensure(1); buf[pos++] = v; }
+		void putShort(short v){ ensure(2); unsafe.putShort(buf, BYTE_ARRAY_OFFSET + pos, v); pos += 2; }
+		void putInt(int v){ ensure(4); unsafe.putInt(buf, BYTE_ARRAY_OFFSET + pos, v); pos += 4; }
+		void putLong(long v){ ensure(8); unsafe.putLong(buf, BYTE_ARRAY_OFFSET + pos, v); pos += 8; }
+		void putVarInt(int v){
+			ensure(5);
+			while((v & ~0x7f) != 0){
+				buf[pos++] = (byte)((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte)v;
+		}
+		void putBytes(Object src, long srcOffset, int len){
+			ensure(len);
+			unsafe.copyMemory(src, srcOffset, buf, BYTE_ARRAY_OFFSET + pos, len);
+			pos += len;
+		}
+		byte[] toByteArray(){
+			if(pos == buf.length) return buf;
+			final byte[] out = new byte[pos];
+			System.arraycopy(buf, 0, out, 0, pos);
+			return out;
+		}
+	}
+
+	private static final class Input {
+		final byte[] buf;
+		int pos = 0;
+		Input(byte[] buf){ this.buf = buf; }
+
+		private void check(int n){
+			if(pos + n > buf.length) throw new IllegalArgumentException("Truncated input");
+		}
+		int skip(int n){
+			check(n);
+			final int out = pos;
+			pos += n;
+			return out;
+		}
+		byte getByte(){ check(1); return buf[pos++]; }
+		short getShort(){ check(2); final short out = unsafe.getShort(buf, BYTE_ARRAY_OFFSET + pos); pos += 2; return out; }
+		int getInt(){ check(4); final int out = unsafe.getInt(buf, BYTE_ARRAY_OFFSET + pos); pos += 4; return out; }
+		long getLong(){ check(8); final long out = unsafe.getLong(buf, BYTE_ARRAY_OFFSET + pos); pos += 8; return out; }
+		int getVarInt(){
+			int out = 0;
+			for(int shift = 0; shift < 32; shift += 7){
+				final byte b = getByte();
+				out |= (b & 0x7f) << shift;
+				if(b >= 0) return out;
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+		void getBytes(Object dest, long destOffset, int len){
+			check(len);
+			unsafe.copyMemory(buf, BYTE_ARRAY_OFFSET + pos, dest, destOffset, len);
+			pos += len;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.nyeggen.lash.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**DiskMapMXBean backed by a source of fresh snapshots.*/
+public class DiskMapMBean implements DiskMapMXBean {
+	private final Supplier<MapStats> stats;
+	
+	public DiskMapMBean(Supplier<MapStats> stats){
+		this.stats = stats;
+	}
+	
+	@Override
+	public long getSize() { return stats.get().size; }
+	@Override
+	public long getTableLength() { return stats.get().tableLength; }
+	@Override
+	public double getLoad() { return stats.get().load; }
+	@Override
+	public long getRehashedStripes() { return stats.get().rehashedStripes; }
+	@Override
+	public long getRehashSteps() { return stats.get().rehashSteps; }
+	@Override
+	public long getMergeSteps() { return stats.get().mergeSteps; }
+	@Override
+	public long getPrimaryBytes() { return stats.get().primaryBytes; }
+	@Override
+	public long getSecondaryBytes() { return stats.get().secondaryBytes; }
+	@Override
+	public long getSecondaryUsedBytes() { return stats.get().secondaryUsedBytes; }
+	@Override
+	public long getFreeExtentBytes() { return stats.get().freeExtentBytes; }
+	@Override
+	public long getPrimaryRemaps() { return stats.get().primaryRemaps; }
+	@Override
+	public long getSecondaryRemaps() { return stats.get().secondaryRemaps; }
+	@Override
+	public long getMinorFaults() { return stats.get().minorFaults; }
+	@Override
+	public long getMajorFaults() { return stats.get().majorFaults; }
+	@Override
+	public boolean isMetricsEnabled() { return stats.get().latencies != null; }
+	
+	@Override
+	public Map<String, Long> getOperationCounts() {
+		final MapStats s = stats.get();
+		final Map<String, Long> out = new TreeMap<String, Long>();
+		if(s.latencies == null) return out;
+		for(final Map.Entry<MapMetrics.Op, long[]> e : s.latencies.entrySet()){
+			out.put(e.getKey().name(), LatencyHistogram.count(e.getValue()));
+		}
+		return out;
+	}
+	
+	@Override
+	public Map<String, Long> getP99LatencyNanos() {
+		final MapStats s = stats.get();
+		final Map<String, Long> out = new TreeMap<String, Long>();
+		if(s.latencies == null) return out;
+		for(final Map.Entry<MapMetrics.Op, long[]> e : s.latencies.entrySet()){
+			out.put(e.getKey().name(), LatencyHistogram.quantile(e.getValue(), 0.99));
+		}
+		return out;
+	}
+	
+	@Override
+	public long[] getLockWaitNanos() {
+		final long[] out = stats.get().lockWaitNanos;
+		return out == null ? new long[0] : out;
+	}
+}
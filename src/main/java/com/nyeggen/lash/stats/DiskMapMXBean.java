@@ -0,0 +1,30 @@
+package com.nyeggen.lash.stats;
+
+import java.util.Map;
+
+/**Management interface exposing a map's cheap statistics (those not needing
+ * a table scan) over JMX; see ADiskMap.registerMBean.*/
+public interface DiskMapMXBean {
+	public long getSize();
+	public long getTableLength();
+	public double getLoad();
+	public long getRehashedStripes();
+	public long getRehashSteps();
+	public long getMergeSteps();
+	public long getPrimaryBytes();
+	public long getSecondaryBytes();
+	public long getSecondaryUsedBytes();
+	public long getFreeExtentBytes();
+	public long getPrimaryRemaps();
+	public long getSecondaryRemaps();
+	public long getMinorFaults();
+	public long getMajorFaults();
+	public boolean isMetricsEnabled();
+	/**Operation counts by name, while metrics are enabled.*/
+	public Map<String, Long> getOperationCounts();
+	/**Upper bounds on 99th percentile latency in nanoseconds, by operation
+	 * name, while metrics are enabled.*/
+	public Map<String, Long> getP99LatencyNanos();
+	/**Total lock wait in nanoseconds for each stripe, while metrics are enabled.*/
+	public long[] getLockWaitNanos();
+}
@@ -0,0 +1,54 @@
+package com.nyeggen.lash.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**Histogram of nanosecond latencies in power-of-2 buckets: bucket i counts
+ * values in [2^i, 2^(i+1)), with 0 and 1 both in bucket 0.  Recording is a
+ * single uncontended-in-the-common-case increment, so it is cheap enough to
+ * do on every operation.*/
+public class LatencyHistogram {
+	public static final int BUCKETS = 64;
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	{ for(int i=0; i<BUCKETS; i++) counts[i] = new LongAdder(); }
+	
+	public void record(long nanos){
+		counts[bucketFor(nanos)].increment();
+	}
+	
+	public static int bucketFor(long nanos){
+		return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+	
+	/**Returns the current count of each bucket.  Not atomic with respect to
+	 * concurrent recording.*/
+	public long[] snapshot(){
+		final long[] out = new long[BUCKETS];
+		for(int i=0; i<BUCKETS; i++) out[i] = counts[i].sum();
+		return out;
+	}
+	
+	public void reset(){
+		for(final LongAdder a : counts) a.reset();
+	}
+	
+	public static long count(long[] snapshot){
+		long out = 0;
+		for(final long c : snapshot) out += c;
+		return out;
+	}
+	
+	/**Returns an upper bound on the given quantile (in [0, 1]) of a snapshot:
+	 * the exclusive upper end of the bucket containing it, or 0 if the
+	 * snapshot is empty.*/
+	public static long quantile(long[] snapshot, double q){
+		final long total = count(snapshot);
+		if(total == 0) return 0;
+		final long rank = Math.max(1, (long)Math.ceil(q * total));
+		long seen = 0;
+		for(int i=0; i<snapshot.length; i++){
+			seen += snapshot[i];
+			if(seen >= rank) return i == 63 ? Long.MAX_VALUE : 1L << (i+1);
+		}
+		return Long.MAX_VALUE;
+	}
+}
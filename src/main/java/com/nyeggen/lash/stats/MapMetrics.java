@@ -0,0 +1,40 @@
+package com.nyeggen.lash.stats;
+
+/**Recorder for per-operation latencies and stripe lock waits, held by a map
+ * while metrics are enabled (see ADiskMap.enableMetrics).  Latencies run
+ * from when the operation requests its stripe lock to when it is done with
+ * it, so they include lock wait, which is also recorded separately.*/
+public class MapMetrics {
+	public enum Op { GET, PUT, PUT_IF_ABSENT, REMOVE, REPLACE, COMPUTE, ADD_AND_GET }
+	
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+	{ for(int i=0; i<latencies.length; i++) latencies[i] = new LatencyHistogram(); }
+	
+	//Written only under the corresponding stripe lock, so plain longs suffice;
+	//snapshots may be slightly stale.
+	private final long[] lockWaitNanos, lockAcquisitions, lockMaxWaitNanos;
+	
+	public MapMetrics(int stripes){
+		lockWaitNanos = new long[stripes];
+		lockAcquisitions = new long[stripes];
+		lockMaxWaitNanos = new long[stripes];
+	}
+	
+	public void recordOp(Op op, long nanos){
+		latencies[op.ordinal()].record(nanos);
+	}
+	
+	/**Called under the given stripe's lock, with the time spent acquiring it.*/
+	public void recordLockWait(int stripe, long nanos){
+		lockWaitNanos[stripe] += nanos;
+		lockAcquisitions[stripe]++;
+		if(nanos > lockMaxWaitNanos[stripe]) lockMaxWaitNanos[stripe] = nanos;
+	}
+	
+	public long[] latencySnapshot(Op op){
+		return latencies[op.ordinal()].snapshot();
+	}
+	public long[] lockWaitNanos(){ return lockWaitNanos.clone(); }
+	public long[] lockAcquisitions(){ return lockAcquisitions.clone(); }
+	public long[] lockMaxWaitNanos(){ return lockMaxWaitNanos.clone(); }
+}
@@ -0,0 +1,126 @@
+package com.nyeggen.lash.stats;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**A point-in-time snapshot of a map's internals, as returned by
+ * ADiskMap.getStats().  Fields that are unavailable are null (arrays) or -1.
+ * Counters are read without locking, so the snapshot is not atomic.*/
+public class MapStats {
+	//Table
+	public long size, tableLength;
+	/**Stripes already rehashed into a table of twice tableLength.*/
+	public long rehashedStripes;
+	public double load;
+	/**Stripes rehashed (expanding) and merged (contracting) since opening.*/
+	public long rehashSteps, mergeSteps;
+	
+	//Files
+	public long primaryBytes, secondaryBytes;
+	/**Bytes of secondary allocated so far, including the header.*/
+	public long secondaryUsedBytes;
+	/**Released secondary extents held for reuse.*/
+	public long freeExtentBytes;
+	public long primaryRemaps, secondaryRemaps;
+	/**Page faults of the whole process, from /proc/self/stat, as a rough
+	 * measure of how much of the mapped data is resident.*/
+	public long minorFaults = -1, majorFaults = -1;
+	/**Page accesses served from, and read into, the cache of a file served
+	 * by a BufferedFileMapper.*/
+	public long primaryCacheHits = -1, primaryCacheMisses = -1;
+	public long secondaryCacheHits = -1, secondaryCacheMisses = -1;
+	
+	//Only while metrics are enabled
+	/**Latency histograms by operation; see LatencyHistogram.*/
+	public Map<MapMetrics.Op, long[]> latencies;
+	/**Total and worst wait, and number of acquisitions, for each stripe lock.*/
+	public long[] lockWaitNanos, lockMaxWaitNanos, lockAcquisitions;
+	
+	//Only from a table scan
+	/**Number of chains of each length (buckets in a BucketDiskMap chain,
+	 * records in a VarSizeDiskMap chain, or for a RobinHoodDiskMap, buckets
+	 * probed to reach each record), the last element counting all chains at
+	 * least that long.*/
+	public long[] chainLengths;
+	/**Secondary bytes referenced by live records (and overflow buckets).*/
+	public long liveBytes = -1;
+	
+	/**Empty overflow buckets held for reuse, for a BucketDiskMap.*/
+	public long freeBuckets = -1;
+	
+	/**Secondary bytes allocated but no longer referenced, or -1 if the table
+	 * was not scanned.*/
+	public long deadBytes(long headerSize){
+		return liveBytes < 0 ? -1 : secondaryUsedBytes - headerSize - liveBytes;
+	}
+	
+	/**Fraction of the primary's page accesses served from its cache, or -1
+	 * if it is mapped.*/
+	public double primaryHitRatio(){
+		return hitRatio(primaryCacheHits, primaryCacheMisses);
+	}
+	public double secondaryHitRatio(){
+		return hitRatio(secondaryCacheHits, secondaryCacheMisses);
+	}
+	private static double hitRatio(long hits, long misses){
+		if(hits < 0) return -1;
+		return hits + misses == 0 ? 1 : (double)hits / (hits + misses);
+	}
+	
+	public long operationCount(MapMetrics.Op op){
+		return latencies == null ? -1 : LatencyHistogram.count(latencies.get(op));
+	}
+	
+	public void readPageFaults(){
+		//Fields after the parenthesized command name, starting at field 3
+		try(BufferedReader r = new BufferedReader(new FileReader("/proc/self/stat"))){
+			final String line = r.readLine();
+			final String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+			minorFaults = Long.parseLong(fields[7]);
+			majorFaults = Long.parseLong(fields[9]);
+		} catch(IOException | RuntimeException e){
+			minorFaults = majorFaults = -1;
+		}
+	}
+	
+	public void readMetrics(MapMetrics metrics){
+		latencies = new EnumMap<MapMetrics.Op, long[]>(MapMetrics.Op.class);
+		for(final MapMetrics.Op op : MapMetrics.Op.values()) latencies.put(op, metrics.latencySnapshot(op));
+		lockWaitNanos = metrics.lockWaitNanos();
+		lockMaxWaitNanos = metrics.lockMaxWaitNanos();
+		lockAcquisitions = metrics.lockAcquisitions();
+	}
+	
+	/**Adds a chain of the given length to chainLengths.*/
+	public void addChain(int length){
+		chainLengths[Math.min(length, chainLengths.length - 1)]++;
+	}
+	
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("size=").append(size).append(" tableLength=").append(tableLength)
+		  .append(" load=").append(String.format("%.3f", load))
+		  .append(" rehashedStripes=").append(rehashedStripes)
+		  .append(" primaryBytes=").append(primaryBytes).append(" secondaryUsedBytes=").append(secondaryUsedBytes)
+		  .append(" freeExtentBytes=").append(freeExtentBytes)
+		  .append(" remaps=").append(primaryRemaps).append('/').append(secondaryRemaps);
+		if(primaryCacheHits >= 0) sb.append(" primaryHitRatio=").append(String.format("%.3f", primaryHitRatio()));
+		if(secondaryCacheHits >= 0) sb.append(" secondaryHitRatio=").append(String.format("%.3f", secondaryHitRatio()));
+		if(latencies != null){
+			for(final Map.Entry<MapMetrics.Op, long[]> e : latencies.entrySet()){
+				final long n = LatencyHistogram.count(e.getValue());
+				if(n == 0) continue;
+				sb.append(' ').append(e.getKey()).append("=").append(n)
+				  .append(" (p50<").append(LatencyHistogram.quantile(e.getValue(), 0.5))
+				  .append("ns p99<").append(LatencyHistogram.quantile(e.getValue(), 0.99)).append("ns)");
+			}
+		}
+		if(liveBytes >= 0) sb.append(" liveBytes=").append(liveBytes);
+		if(freeBuckets >= 0) sb.append(" freeBuckets=").append(freeBuckets);
+		return sb.toString();
+	}
+}
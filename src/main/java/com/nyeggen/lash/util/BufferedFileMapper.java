@@ -0,0 +1,504 @@
+package com.nyeggen.lash.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import sun.misc.Unsafe;
+
+/**Serves a file through the MMapper interface with explicit positional reads
+ * and writes (pread and pwrite) into a fixed pool of cached pages, instead
+ * of mapping it.  A miss reads the page on the calling thread, where it is
+ * visible as I/O rather than as a page fault, and nothing is cached beyond
+ * the pool, so the kernel's readahead and writeback no longer decide what
+ * stays in memory.  Dirty pages are written back when evicted, on flush(),
+ * and on close().
+ * The pool is split into segments, each with its own lock, page table and
+ * eviction state, so that threads working on different pages rarely
+ * contend.  Hits and misses are counted, and the whole file can be pinned
+ * in memory.
+ * Accesses spanning pages take each page's segment lock in turn, so, as
+ * with a mapping, callers must lock against concurrent writers themselves.*/
+@SuppressWarnings("restriction")
+public class BufferedFileMapper extends MMapper {
+	static final int pageBits = 12;
+	static final int pageSize = 1 << pageBits;
+	private static final Unsafe unsafe = MMapper.getUnsafe();
+	private static final long BYTE_ARRAY_OFFSET = MMapper.getByteArrayOffset();
+
+	private final RandomAccessFile file;
+	private final FileChannel ch;
+	private final Segment[] segments;
+	private final Policy policy;
+	/**Set once every page is to be held in memory; see pin().*/
+	private volatile boolean pinned = false;
+	private volatile long size;
+	private volatile long remaps = 0;
+	private boolean closed = false;
+
+	/**How a segment chooses the page to evict.*/
+	public enum Policy {
+		/**Second chance: evicts the first page, in frame order from the last
+		 * eviction, not used since the hand last passed it.*/
+		CLOCK,
+		/**2Q: a page read for the first time enters a FIFO of a quarter of
+		 * the frames.  It only enters the LRU-ordered main queue if it is
+		 * read again soon after leaving the FIFO, which is remembered for as
+		 * many pages as half the frames.  A scan therefore passes through the
+		 * FIFO without evicting the pages in the main queue.*/
+		TWO_Q
+	}
+
+	private final class Segment {
+		/**Page held by each frame, or -1.*/
+		long[] pages;
+		byte[][] data;
+		boolean[] dirty, referenced;
+		final HashMap<Long, Integer> index = new HashMap<Long, Integer>();
+		final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+		long hits = 0, misses = 0;
+		//CLOCK
+		int hand = 0;
+		//2Q: the FIFO, the LRU queue (in access order), and pages recently
+		//evicted from the FIFO
+		final LinkedHashMap<Long, Integer> a1in = new LinkedHashMap<Long, Integer>();
+		final LinkedHashMap<Long, Integer> am = new LinkedHashMap<Long, Integer>(16, 0.75f, true);
+		final LinkedHashSet<Long> a1out = new LinkedHashSet<Long>();
+
+		Segment(int frames){
+			pages = new long[frames];
+			Arrays.fill(pages, -1);
+			data = new byte[frames][];
+			dirty = new boolean[frames];
+			referenced = new boolean[frames];
+			for(int f=0; f<frames; f++) free.add(f);
+		}
+
+		/**Returns the frame holding the page, reading it in if need be.
+		 * Called under this segment's lock.*/
+		int frame(long page){
+			final Integer cached = index.get(page);
+			if(cached != null){
+				hits++;
+				referenced[cached] = true;
+				if(policy == Policy.TWO_Q) am.get(page);
+				return cached;
+			}
+			misses++;
+			if(free.isEmpty()){
+				if(pinned) grow();
+				else evict();
+			}
+			final int f = free.pop();
+			if(data[f] == null) data[f] = new byte[pageSize];
+			readPage(page, data[f]);
+			pages[f] = page;
+			dirty[f] = false;
+			referenced[f] = true;
+			index.put(page, f);
+			if(policy == Policy.TWO_Q){
+				if(a1out.remove(page)) am.put(page, f);
+				else a1in.put(page, f);
+			}
+			return f;
+		}
+
+		/**Writes back and frees one frame, as chosen by the policy.*/
+		private void evict(){
+			final int f;
+			if(policy == Policy.CLOCK){
+				while(referenced[hand]){
+					referenced[hand] = false;
+					hand = (hand + 1) % pages.length;
+				}
+				f = hand;
+				hand = (hand + 1) % pages.length;
+			} else if(a1in.size() > Math.max(1, pages.length / 4) || am.isEmpty()){
+				final Map.Entry<Long, Integer> e = a1in.entrySet().iterator().next();
+				f = e.getValue();
+				a1in.remove(e.getKey());
+				a1out.add(e.getKey());
+				if(a1out.size() > Math.max(1, pages.length / 2)) a1out.remove(a1out.iterator().next());
+			} else {
+				final Map.Entry<Long, Integer> e = am.entrySet().iterator().next();
+				f = e.getValue();
+				am.remove(e.getKey());
+			}
+			if(dirty[f]) writePage(pages[f], data[f]);
+			release(f);
+		}
+
+		private void release(int f){
+			index.remove(pages[f]);
+			pages[f] = -1;
+			dirty[f] = false;
+			referenced[f] = false;
+			free.push(f);
+		}
+
+		/**Doubles the number of frames, for a pinned mapper, which never
+		 * evicts.*/
+		private void grow(){
+			final int n = pages.length;
+			pages = Arrays.copyOf(pages, n * 2);
+			Arrays.fill(pages, n, n * 2, -1);
+			data = Arrays.copyOf(data, n * 2);
+			dirty = Arrays.copyOf(dirty, n * 2);
+			referenced = Arrays.copyOf(referenced, n * 2);
+			for(int f=n; f<n*2; f++) free.add(f);
+		}
+
+		void flush(){
+			for(int f=0; f<pages.length; f++){
+				if(pages[f] >= 0 && dirty[f]){
+					writePage(pages[f], data[f]);
+					dirty[f] = false;
+				}
+			}
+		}
+
+		/**Drops every cached page at or after the given one, without writing
+		 * it back.*/
+		void truncate(long fromPage){
+			for(int f=0; f<pages.length; f++){
+				if(pages[f] >= fromPage){
+					a1in.remove(pages[f]);
+					am.remove(pages[f]);
+					release(f);
+				}
+			}
+			for(Iterator<Long> it = a1out.iterator(); it.hasNext(); ){
+				if(it.next() >= fromPage) it.remove();
+			}
+		}
+	}
+
+	/**Opens (creating if need be) the file at the given location with the
+	 * given length, as MMapper does, caching up to cachePages pages of it.*/
+	public BufferedFileMapper(String loc, long len, int cachePages) throws IOException {
+		this(loc, len, cachePages, Policy.CLOCK);
+	}
+	/**As above, evicting pages by the given policy.*/
+	public BufferedFileMapper(String loc, long len, int cachePages, Policy policy) throws IOException {
+		super(loc);
+		this.policy = policy;
+		if(loc == null) throw new IllegalArgumentException("BufferedFileMapper needs a file");
+		if(cachePages <= 0) throw new IllegalArgumentException("cachePages must be positive");
+		this.size = roundToPage(len);
+		this.file = new RandomAccessFile(loc, "rw");
+		file.setLength(size);
+		this.ch = file.getChannel();
+		int nSegments = 1;
+		while(nSegments < 64 && nSegments * 16 <= cachePages) nSegments *= 2;
+		segments = new Segment[nSegments];
+		for(int i=0; i<nSegments; i++) segments[i] = new Segment(Math.max(1, cachePages / nSegments));
+	}
+
+	private static long roundToPage(long i){
+		return (i + pageSize - 1) & ~(long)(pageSize - 1);
+	}
+
+	private Segment segmentFor(long page){
+		return segments[(int)((page * 0x9E3779B97F4A7C15L) >>> 58) & (segments.length - 1)];
+	}
+
+	private void readPage(long page, byte[] into){
+		try {
+			final ByteBuffer buf = ByteBuffer.wrap(into);
+			while(buf.hasRemaining()){
+				if(ch.read(buf, (page << pageBits) + buf.position()) < 0) break;
+			}
+			//Past the end of the file, which a concurrent remap may have truncated
+			if(buf.hasRemaining()) Arrays.fill(into, buf.position(), into.length, (byte)0);
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writePage(long page, byte[] from){
+		try {
+			final ByteBuffer buf = ByteBuffer.wrap(from);
+			while(buf.hasRemaining()) ch.write(buf, (page << pageBits) + buf.position());
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void checkBounds(long pos, long len){
+		if(pos < 0 || pos + len > size) throw new IndexOutOfBoundsException("Access: " + pos + ". File covers [0, " + size + "]");
+	}
+
+	/**Copies len bytes at pos into dst, a page at a time.*/
+	private void read(long pos, byte[] dst, int off, int len){
+		checkBounds(pos, len);
+		while(len > 0){
+			final long page = pos >>> pageBits;
+			final int inPage = (int)(pos & (pageSize - 1)), n = Math.min(len, pageSize - inPage);
+			final Segment seg = segmentFor(page);
+			synchronized(seg){
+				System.arraycopy(seg.data[seg.frame(page)], inPage, dst, off, n);
+			}
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void write(long pos, byte[] src, int off, int len){
+		checkBounds(pos, len);
+		while(len > 0){
+			final long page = pos >>> pageBits;
+			final int inPage = (int)(pos & (pageSize - 1)), n = Math.min(len, pageSize - inPage);
+			final Segment seg = segmentFor(page);
+			synchronized(seg){
+				final int f = seg.frame(page);
+				System.arraycopy(src, off, seg.data[f], inPage, n);
+				seg.dirty[f] = true;
+			}
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public long size(){
+		return size;
+	}
+	@Override
+	public long getRemapCount(){
+		return remaps;
+	}
+
+	@Override
+	public byte getByte(long pos){
+		checkBounds(pos, 1);
+		final long page = pos >>> pageBits;
+		final Segment seg = segmentFor(page);
+		synchronized(seg){
+			return seg.data[seg.frame(page)][(int)(pos & (pageSize - 1))];
+		}
+	}
+	@Override
+	public int getInt(long pos){
+		if((pos & (pageSize - 1)) > pageSize - 4){
+			final byte[] b = new byte[4];
+			read(pos, b, 0, 4);
+			return unsafe.getInt(b, BYTE_ARRAY_OFFSET);
+		}
+		checkBounds(pos, 4);
+		final long page = pos >>> pageBits;
+		final Segment seg = segmentFor(page);
+		synchronized(seg){
+			return unsafe.getInt(seg.data[seg.frame(page)], BYTE_ARRAY_OFFSET + (pos & (pageSize - 1)));
+		}
+	}
+	@Override
+	public long getLong(long pos){
+		if((pos & (pageSize - 1)) > pageSize - 8){
+			final byte[] b = new byte[8];
+			read(pos, b, 0, 8);
+			return unsafe.getLong(b, BYTE_ARRAY_OFFSET);
+		}
+		checkBounds(pos, 8);
+		final long page = pos >>> pageBits;
+		final Segment seg = segmentFor(page);
+		synchronized(seg){
+			return unsafe.getLong(seg.data[seg.frame(page)], BYTE_ARRAY_OFFSET + (pos & (pageSize - 1)));
+		}
+	}
+	@Override
+	public void putByte(long pos, byte val){
+		write(pos, new byte[]{val}, 0, 1);
+	}
+	@Override
+	public void putInt(long pos, int val){
+		if((pos & (pageSize - 1)) > pageSize - 4){
+			final byte[] b = new byte[4];
+			unsafe.putInt(b, BYTE_ARRAY_OFFSET, val);
+			write(pos, b, 0, 4);
+			return;
+		}
+		checkBounds(pos, 4);
+		final long page = pos >>> pageBits;
+		final Segment seg = segmentFor(page);
+		synchronized(seg){
+			final int f = seg.frame(page);
+			unsafe.putInt(seg.data[f], BYTE_ARRAY_OFFSET + (pos & (pageSize - 1)), val);
+			seg.dirty[f] = true;
+		}
+	}
+	@Override
+	public void putLong(long pos, long val){
+		if((pos & (pageSize - 1)) > pageSize - 8){
+			final byte[] b = new byte[8];
+			unsafe.putLong(b, BYTE_ARRAY_OFFSET, val);
+			write(pos, b, 0, 8);
+			return;
+		}
+		checkBounds(pos, 8);
+		final long page = pos >>> pageBits;
+		final Segment seg = segmentFor(page);
+		synchronized(seg){
+			final int f = seg.frame(page);
+			unsafe.putLong(seg.data[f], BYTE_ARRAY_OFFSET + (pos & (pageSize - 1)), val);
+			seg.dirty[f] = true;
+		}
+	}
+	@Override
+	public void getBytes(long pos, byte[] data){
+		read(pos, data, 0, data.length);
+	}
+	@Override
+	public void putBytes(long pos, byte[] data){
+		write(pos, data, 0, data.length);
+	}
+	@Override
+	public void copy(long srcPos, long dstPos, long len){
+		checkBounds(srcPos, len);
+		checkBounds(dstPos, len);
+		final byte[] buf = new byte[(int)Math.min(len, pageSize)];
+		for(long done = 0; done < len; ){
+			final int n = (int)Math.min(buf.length, len - done);
+			read(srcPos + done, buf, 0, n);
+			write(dstPos + done, buf, 0, n);
+			done += n;
+		}
+	}
+	@Override
+	public boolean bytesEqual(long pos, byte[] data){
+		checkBounds(pos, data.length);
+		for(int off = 0; off < data.length; ){
+			final long page = (pos + off) >>> pageBits;
+			final int inPage = (int)((pos + off) & (pageSize - 1)), n = Math.min(data.length - off, pageSize - inPage);
+			final Segment seg = segmentFor(page);
+			synchronized(seg){
+				final byte[] d = seg.data[seg.frame(page)];
+				for(int i=0; i<n; i++){
+					if(d[inPage + i] != data[off + i]) return false;
+				}
+			}
+			off += n;
+		}
+		return true;
+	}
+
+	/**Reads every page of the file into the cache, and holds it there from
+	 * then on, including pages added as the file grows, so that no access
+	 * waits on I/O.  The cache grows to the size of the file.*/
+	public void pin(){
+		pinned = true;
+		loadFrom(0);
+	}
+	public boolean isPinned(){
+		return pinned;
+	}
+
+	private void loadFrom(long pos){
+		for(long page = pos >>> pageBits; page < (size >>> pageBits); page++){
+			final Segment seg = segmentFor(page);
+			synchronized(seg){
+				seg.frame(page);
+			}
+		}
+	}
+
+	/**Number of accesses to a page found in the cache, counting each page an
+	 * access spans.*/
+	public long getHits(){
+		long out = 0;
+		for(final Segment seg : segments){
+			synchronized(seg){
+				out += seg.hits;
+			}
+		}
+		return out;
+	}
+	/**Number of accesses to a page that had to be read in.*/
+	public long getMisses(){
+		long out = 0;
+		for(final Segment seg : segments){
+			synchronized(seg){
+				out += seg.misses;
+			}
+		}
+		return out;
+	}
+
+	/**Writes every dirty page back to the file.*/
+	public void flush(){
+		for(final Segment seg : segments){
+			synchronized(seg){
+				seg.flush();
+			}
+		}
+	}
+
+	/**Sets the file's length; nothing needs to be mapped again.  Cached pages
+	 * beyond a shorter length are dropped.*/
+	@Override
+	public void remap(long nLen, boolean preallocate) throws Exception {
+		final long oldSize = size, nSize = roundToPage(nLen);
+		remaps++;
+		if(nSize < oldSize){
+			for(final Segment seg : segments){
+				synchronized(seg){
+					seg.truncate(nSize >>> pageBits);
+				}
+			}
+		}
+		file.setLength(nSize);
+		if(preallocate && nSize > oldSize){
+			final ByteBuffer zeros = ByteBuffer.allocate(1 << 20);
+			for(long pos = oldSize; pos < nSize; pos += zeros.capacity()){
+				zeros.clear();
+				zeros.limit((int)Math.min(zeros.capacity(), nSize - pos));
+				while(zeros.hasRemaining()) ch.write(zeros, pos + zeros.position());
+			}
+		}
+		size = nSize;
+		if(pinned && nSize > oldSize) loadFrom(oldSize);
+	}
+	@Override
+	public void remap(long nLen) throws Exception {
+		remap(nLen, false);
+	}
+	@Override
+	public void doubleLength() throws Exception {
+		remap(size * 2);
+	}
+
+	/**Zeroes the file, and drops every cached page.*/
+	@Override
+	public void clear(){
+		for(final Segment seg : segments){
+			synchronized(seg){
+				seg.truncate(0);
+			}
+		}
+		try {
+			file.setLength(0);
+			file.setLength(size);
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**Writes back dirty pages and closes the file.  Subsequent calls do
+	 * nothing.*/
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		flush();
+		file.close();
+	}
+}
@@ -0,0 +1,273 @@
+package com.nyeggen.lash.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import sun.misc.Unsafe;
+
+/**A small LZ77 codec in the style of LZ4's block format, optionally primed
+ * with a shared dictionary so that short records can reference common
+ * substrings.  Output is a varint uncompressed length followed by sequences of
+ * (token, literal length ext., literals, 2-byte offset, match length ext.),
+ * with the final sequence containing literals only.
+ * Instances are immutable and thread-safe.*/
+@SuppressWarnings("restriction")
+public class LZCompressor {
+	private static final Unsafe unsafe = MMapper.getUnsafe();
+	private static final long BYTE_ARRAY_OFFSET = MMapper.getByteArrayOffset();
+
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_BITS = 12;
+	/**Dictionaries larger than this can't be fully addressed by 2-byte offsets.*/
+	public static final int MAX_DICTIONARY_SIZE = MAX_OFFSET;
+
+	private final byte[] dictionary;
+	/**Hash table pre-populated with dictionary positions (+1), copied per call.*/
+	private final int[] dictionaryTable;
+
+	public LZCompressor(){
+		this(null);
+	}
+
+	/**Creates a codec primed with the given dictionary, which must be supplied
+	 * identically to decompress.  Only the last MAX_DICTIONARY_SIZE bytes are
+	 * used.  A null or empty dictionary is equivalent to none.*/
+	public LZCompressor(byte[] dictionary){
+		if(dictionary == null) dictionary = new byte[0];
+		if(dictionary.length > MAX_DICTIONARY_SIZE){
+			final byte[] trimmed = new byte[MAX_DICTIONARY_SIZE];
+			System.arraycopy(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, trimmed, 0, MAX_DICTIONARY_SIZE);
+			dictionary = trimmed;
+		}
+		this.dictionary = dictionary;
+		this.dictionaryTable = new int[1 << HASH_BITS];
+		for(int i=0; i + MIN_MATCH <= dictionary.length; i++){
+			dictionaryTable[hash(readInt(dictionary, i))] = i + 1;
+		}
+	}
+
+	public byte[] getDictionary(){
+		return dictionary.clone();
+	}
+
+	private static int readInt(byte[] b, int pos){
+		return unsafe.getInt(b, BYTE_ARRAY_OFFSET + pos);
+	}
+
+	private static int hash(int i){
+		return (i * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	private static int putVarInt(byte[] out, int op, int v){
+		while((v & ~0x7f) != 0){
+			out[op++] = (byte)((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out[op++] = (byte)v;
+		return op;
+	}
+
+	/**Writes the LZ4-style extension bytes for a length that overflowed
+	 * its 4-bit token field.*/
+	private static int putLengthExt(byte[] out, int op, int len){
+		while(len >= 255){
+			out[op++] = (byte)255;
+			len -= 255;
+		}
+		out[op++] = (byte)len;
+		return op;
+	}
+
+	/**Worst case compressed size for an input of the given length.*/
+	public static int maxCompressedLength(int len){
+		return len + len / 255 + 16;
+	}
+
+	public byte[] compress(byte[] src){
+		final int dictLen = dictionary.length;
+		//Matching works over the virtual concatenation of dictionary and input
+		final byte[] in;
+		if(dictLen == 0) in = src;
+		else {
+			in = new byte[dictLen + src.length];
+			System.arraycopy(dictionary, 0, in, 0, dictLen);
+			System.arraycopy(src, 0, in, dictLen, src.length);
+		}
+		final int[] table = dictionaryTable.clone();
+		final byte[] out = new byte[maxCompressedLength(src.length)];
+		int op = putVarInt(out, 0, src.length);
+
+		final int end = in.length;
+		int ip = dictLen, anchor = dictLen;
+		while(ip + MIN_MATCH <= end){
+			final int seq = readInt(in, ip);
+			final int h = hash(seq);
+			final int ref = table[h] - 1;
+			table[h] = ip + 1;
+			if(ref < 0 || ip - ref > MAX_OFFSET || readInt(in, ref) != seq){
+				ip++;
+				continue;
+			}
+			int matchLen = MIN_MATCH;
+			while(ip + matchLen < end && in[ref + matchLen] == in[ip + matchLen]) matchLen++;
+
+			final int litLen = ip - anchor;
+			final int tokenPos = op++;
+			int token = 0;
+			if(litLen >= 15){
+				token = 15 << 4;
+				op = putLengthExt(out, op, litLen - 15);
+			} else token = litLen << 4;
+			System.arraycopy(in, anchor, out, op, litLen);
+			op += litLen;
+			final int offset = ip - ref;
+			out[op++] = (byte)offset;
+			out[op++] = (byte)(offset >>> 8);
+			final int mlExt = matchLen - MIN_MATCH;
+			if(mlExt >= 15){
+				token |= 15;
+				op = putLengthExt(out, op, mlExt - 15);
+			} else token |= mlExt;
+			out[tokenPos] = (byte)token;
+
+			ip += matchLen;
+			anchor = ip;
+		}
+		//Trailing literals
+		final int litLen = end - anchor;
+		if(litLen >= 15){
+			out[op++] = (byte)(15 << 4);
+			op = putLengthExt(out, op, litLen - 15);
+		} else out[op++] = (byte)(litLen << 4);
+		System.arraycopy(in, anchor, out, op, litLen);
+		op += litLen;
+
+		final byte[] trimmed = new byte[op];
+		System.arraycopy(out, 0, trimmed, 0, op);
+		return trimmed;
+	}
+
+	public byte[] decompress(byte[] src){
+		int ip = 0;
+		int n = 0;
+		for(int shift = 0; ; shift += 7){
+			final byte b = src[ip++];
+			n |= (b & 0x7f) << shift;
+			if(b >= 0) break;
+		}
+		final byte[] out = new byte[n];
+		final int dictLen = dictionary.length;
+		int op = 0;
+		try {
+			while(true){
+				final int token = src[ip++] & 0xff;
+				int litLen = token >>> 4;
+				if(litLen == 15){
+					int b;
+					do { b = src[ip++] & 0xff; litLen += b; } while(b == 255);
+				}
+				System.arraycopy(src, ip, out, op, litLen);
+				ip += litLen;
+				op += litLen;
+				if(op == n) return out;
+
+				final int offset = (src[ip] & 0xff) | ((src[ip+1] & 0xff) << 8);
+				ip += 2;
+				int matchLen = (token & 15);
+				if(matchLen == 15){
+					int b;
+					do { b = src[ip++] & 0xff; matchLen += b; } while(b == 255);
+				}
+				matchLen += MIN_MATCH;
+				//Byte-at-a-time, since matches may overlap their own output or
+				//start in the dictionary
+				int s = op - offset;
+				for(int i=0; i<matchLen; i++, s++){
+					out[op++] = s < 0 ? dictionary[dictLen + s] : out[s];
+				}
+			}
+		} catch(IndexOutOfBoundsException e){
+			throw new IllegalArgumentException("Corrupt compressed data", e);
+		}
+	}
+
+	/**Builds a dictionary of at most maxSize bytes from a sample of typical
+	 * values, by greedily choosing the fixed-size segments whose 8-byte
+	 * substrings occur in the most samples.  The most useful segments are
+	 * placed at the end, where offsets from compressed data are shortest.*/
+	public static byte[] trainDictionary(Iterable<byte[]> samples, int maxSize){
+		final int gramLen = 8, segmentLen = 64;
+		maxSize = Math.min(maxSize, MAX_DICTIONARY_SIZE);
+		final int[] counts = new int[1 << 16];
+
+		//Count the number of samples in which each gram (by hash) appears
+		for(final byte[] sample : samples){
+			final int[] seen = new int[64];
+			int nSeen = 0;
+			for(int i=0; i + gramLen <= sample.length; i++){
+				final int h = gramHash(sample, i);
+				boolean dup = false;
+				for(int j=0; j<nSeen && !dup; j++) dup = seen[j] == h;
+				if(dup) continue;
+				counts[h]++;
+				if(nSeen < seen.length) seen[nSeen++] = h;
+			}
+		}
+
+		final List<long[]> candidates = new ArrayList<long[]>();
+		final List<byte[]> sources = new ArrayList<byte[]>();
+		for(final byte[] sample : samples){
+			final int sampleIdx = sources.size();
+			sources.add(sample);
+			for(int i=0; i + segmentLen <= sample.length || (i == 0 && sample.length >= gramLen); i += segmentLen/2){
+				candidates.add(new long[]{ scoreSegment(sample, i, segmentLen, counts), sampleIdx, i });
+			}
+		}
+		Collections.sort(candidates, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				return o1[0] > o2[0] ? -1 : o1[0] < o2[0] ? 1 : 0;
+			}
+		});
+
+		final List<byte[]> chosen = new ArrayList<byte[]>();
+		int size = 0;
+		for(final long[] c : candidates){
+			if(size >= maxSize) break;
+			final byte[] sample = sources.get((int)c[1]);
+			final int start = (int)c[2];
+			//Grams already covered by a chosen segment no longer count
+			final long score = scoreSegment(sample, start, segmentLen, counts);
+			if(score <= 1 || score * 2 < c[0]) continue;
+			final int len = Math.min(Math.min(segmentLen, sample.length - start), maxSize - size);
+			final byte[] seg = new byte[len];
+			System.arraycopy(sample, start, seg, 0, len);
+			chosen.add(seg);
+			size += len;
+			for(int i=start; i + gramLen <= start + len; i++) counts[gramHash(sample, i)] = 0;
+		}
+
+		final byte[] out = new byte[size];
+		int pos = size;
+		for(final byte[] seg : chosen){
+			pos -= seg.length;
+			System.arraycopy(seg, 0, out, pos, seg.length);
+		}
+		return out;
+	}
+
+	private static int gramHash(byte[] b, int pos){
+		final long v = unsafe.getLong(b, BYTE_ARRAY_OFFSET + pos);
+		return (int)((v * 0x9E3779B97F4A7C15L) >>> 48);
+	}
+
+	private static long scoreSegment(byte[] sample, int start, int len, int[] counts){
+		long score = 0;
+		final int end = Math.min(sample.length, start + len);
+		for(int i=start; i + 8 <= end; i++) score += counts[gramHash(sample, i)];
+		return score;
+	}
+}
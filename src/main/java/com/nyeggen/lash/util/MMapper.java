@@ -2,10 +2,12 @@ package com.nyeggen.lash.util;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 import sun.nio.ch.FileChannelImpl;
@@ -22,8 +24,24 @@ public class MMapper implements Closeable{
 	private static final int INT_ARRAY_OFFSET;
 	private static final int LONG_ARRAY_OFFSET;
 
+	/**Anonymous mappings are made by privately mapping this device, which
+	 * gives lazily allocated zero pages as mmap(MAP_ANONYMOUS) would.*/
+	private static final String anonymousSource = "/dev/zero";
+	private static final boolean canMapAnonymous = new File(anonymousSource).exists();
+	/**Anonymous mappings of at least this size are aligned to, and rounded
+	 * up to a multiple of, it, so that transparent huge pages can back all of
+	 * them.  The usual x86-64 and arm64 PMD size.*/
+	static final long hugePageSize = 1L << 21;
+	//Protection modes for FileChannelImpl.map0
+	private static final int MAP_RO = 0, MAP_RW = 1, MAP_PV = 2;
+
 	private long addr=0, size=0;
+	/**Bound for writes: size, or 0 for a read-only mapping, so that a write
+	 * to one throws rather than faulting.*/
+	private long writableSize=0;
+	private volatile long remaps = 0;
 	private final String loc;
+	private final boolean readOnly;
 
 	static {
 		try {
@@ -51,6 +69,7 @@ public class MMapper implements Closeable{
 		}
 		@Override
 		public String toString() {
+			if(readOnly && pos < size) return "Write to read-only mapping at " + pos;
 			return "Access: " + pos + ". Map covers [" + 0 +", " + size + "]";
 		}
 	}
@@ -67,15 +86,27 @@ public class MMapper implements Closeable{
 		return (i + 0xfffL) & ~0xfffL;
 	}
 
+	//Anonymous memory is rounded to whole huge pages once it is large
+	//enough to use any
+	private static long roundSize(String loc, long i) {
+		if(loc != null || i < hugePageSize) return roundTo4096(i);
+		return (i + hugePageSize - 1) & ~(hugePageSize - 1);
+	}
+
 	//Given that the location and size have been set, map that location
 	//for the given length and set this.addr to the returned offset
 	private void mapAndSetOffset() throws Exception{
 		if(loc == null){
-			if(addr == 0){
-				addr = allocateDirect(size);
-				clear();
-			} else {
-				addr = reAllocateDirect(addr, size);
+			addr = allocateAnonymous(size);
+			writableSize = size;
+			return;
+		}
+		if(readOnly){
+			final RandomAccessFile backingFile = new RandomAccessFile(loc, "r");
+			try {
+				addr = (Long) mmap.invoke(backingFile.getChannel(), MAP_RO, 0L, size);
+			} finally {
+				backingFile.close();
 			}
 			return;
 		}
@@ -84,41 +115,149 @@ public class MMapper implements Closeable{
 		backingFile.setLength(size);
 
 		final FileChannel ch = backingFile.getChannel();
-		addr = (Long) mmap.invoke(ch, 1, 0L, size);
+		addr = (Long) mmap.invoke(ch, MAP_RW, 0L, size);
+		writableSize = size;
 
 		ch.close();
 		backingFile.close();
 	}
+	
+	/**Returns zeroed memory of the given length, mapped at a huge page
+	 * boundary if it is at least a huge page long.  The kernel only backs
+	 * aligned 2MB ranges with huge pages, and mmap only promises 4KB
+	 * alignment, so a huge page more is mapped and the slop either side of
+	 * the aligned range unmapped again.  Falls back to malloc'd memory where
+	 * there is no /dev/zero to map.*/
+	private static long allocateAnonymous(long len) throws Exception {
+		if(!canMapAnonymous){
+			final long out = allocateDirect(len);
+			unsafe.setMemory(out, len, (byte)0);
+			return out;
+		}
+		final RandomAccessFile zero = new RandomAccessFile(anonymousSource, "r");
+		try {
+			final FileChannel ch = zero.getChannel();
+			if(len < hugePageSize) return (Long) mmap.invoke(ch, MAP_PV, 0L, len);
+			
+			final long raw = (Long) mmap.invoke(ch, MAP_PV, 0L, len + hugePageSize);
+			final long aligned = (raw + hugePageSize - 1) & ~(hugePageSize - 1);
+			if(aligned > raw) unmmap.invoke(null, raw, aligned - raw);
+			final long tail = raw + hugePageSize - aligned;
+			if(tail > 0) unmmap.invoke(null, aligned + len, tail);
+			return aligned;
+		} finally {
+			zero.close();
+		}
+	}
+	
+	private static void freeAnonymous(long addr, long len) throws Exception {
+		if(canMapAnonymous) unmmap.invoke(null, addr, len);
+		else deallocateDirect(addr);
+	}
 
 	/**MMaps a file at the given location, creating the file if it does not
-	 * exist.  If the location is null, allocates memory in an anonymous
-	 * mapping not backed by any file.*/
+	 * exist.  If the location is null, allocates zeroed memory in an
+	 * anonymous mapping not backed by any file.  Anonymous mappings of 2MB or
+	 * more are aligned for transparent huge pages (when the kernel's
+	 * transparent_hugepage setting is "always"; Java cannot madvise).  They
+	 * follow the process's NUMA policy, so a JVM started under
+	 * "numactl --interleave=all" spreads them over all nodes.*/
 	public MMapper(final String loc, long len) throws Exception {
 		this.loc = loc;
-		this.size = roundTo4096(len);
+		this.readOnly = false;
+		this.size = roundSize(loc, len);
+		mapAndSetOffset();
+	}
+	/**For subclasses that serve the file some other way than by mapping it,
+	 * and so override every accessor.*/
+	protected MMapper(final String loc){
+		this.loc = loc;
+		this.readOnly = false;
+	}
+	private MMapper(final String loc, long len, boolean readOnly) throws Exception {
+		this.loc = loc;
+		this.readOnly = readOnly;
+		this.size = len;
 		mapAndSetOffset();
 	}
+	/**Maps the whole of an existing file read-only and shared (PROT_READ,
+	 * MAP_SHARED), so that every process mapping it reads the same pages of
+	 * the page cache, and none can change them.  Writes through the mapper
+	 * throw, as do remapping and clearing it.*/
+	public static MMapper openReadOnly(String loc) throws Exception {
+		final File f = new File(loc);
+		if(!f.isFile() || f.length() == 0) throw new FileNotFoundException("No data at " + loc);
+		return new MMapper(loc, f.length(), true);
+	}
+	public boolean isReadOnly(){
+		return readOnly;
+	}
 	public long size(){
 		return this.size;
 	}
+	/**Number of times this has been remapped since it was created.*/
+	public long getRemapCount(){
+		return remaps;
+	}
 
 	//Callers should synchronize to avoid calls in the middle of this, but
 	//it is undesirable to synchronize w/ all access methods.
 	public void remap(long nLen) throws Exception{
-		if(loc != null) unmmap.invoke(null, addr, this.size);
+		remap(nLen, false);
+	}
+	
+	/**As remap(), but if preallocate is set and the file grows, the new tail
+	 * is written out with zeros first, so that the filesystem allocates its
+	 * blocks now rather than leaving a sparse region to be filled piecemeal.*/
+	public void remap(long nLen, boolean preallocate) throws Exception{
+		if(readOnly) throw new UnsupportedOperationException("Read-only mapping of " + loc);
+		final long oldSize = this.size;
+		remaps++;
+		if(loc == null){
+			//Anonymous memory has nothing behind it to map again, so the
+			//contents are copied to a fresh (zeroed) mapping
+			final long nSize = roundSize(null, nLen);
+			final long nAddr = allocateAnonymous(nSize);
+			unsafe.copyMemory(addr, nAddr, Math.min(oldSize, nSize));
+			freeAnonymous(addr, oldSize);
+			this.addr = nAddr;
+			this.size = nSize;
+			this.writableSize = nSize;
+			return;
+		}
+		unmmap.invoke(null, addr, this.size);
 		this.size = roundTo4096(nLen);
+		if(preallocate && size > oldSize) zeroFill(oldSize, size);
 		mapAndSetOffset();
 	}
 	
+	private void zeroFill(long from, long to) throws IOException {
+		final RandomAccessFile backingFile = new RandomAccessFile(loc, "rw");
+		try {
+			final FileChannel ch = backingFile.getChannel();
+			final ByteBuffer zeros = ByteBuffer.allocateDirect(1 << 20);
+			for(long pos = from; pos < to; pos += zeros.capacity()){
+				zeros.clear();
+				zeros.limit((int)Math.min(zeros.capacity(), to - pos));
+				while(zeros.hasRemaining()) ch.write(zeros, pos + zeros.position());
+			}
+		} finally {
+			backingFile.close();
+		}
+	}
+	
 	public void doubleLength() throws Exception{
 		remap(this.size * 2);
 	}
 	
+	/**Unmaps or frees the underlying memory.  Subsequent calls do nothing.*/
 	@Override
 	public void close() throws IOException {
+		if(addr == 0) return;
 		try {
 			if(loc != null) unmmap.invoke(null, addr, size);
-			else deallocateDirect(addr);
+			else freeAnonymous(addr, size);
+			addr = 0;
 		} catch (Exception e){
 			throw new RuntimeException(e);
 		}
@@ -140,17 +279,17 @@ public class MMapper implements Closeable{
 	}
 
 	public void putByte(long pos, byte val){
-		if(pos>=size) throw new MMapIndexOOBException(pos);
+		if(pos>=writableSize) throw new MMapIndexOOBException(pos);
 		unsafe.putByte(pos + addr, val);
 	}
 	
 	public void putInt(long pos, int val){
-		if(pos+4>size) throw new MMapIndexOOBException(pos);
+		if(pos+4>writableSize) throw new MMapIndexOOBException(pos);
 		unsafe.putInt(pos + addr, val);
 	}
 
 	public void putLong(long pos, long val){
-		if(pos+8>size) throw new MMapIndexOOBException(pos);
+		if(pos+8>writableSize) throw new MMapIndexOOBException(pos);
 		unsafe.putLong(pos + addr, val);
 	}
 	
@@ -161,15 +300,38 @@ public class MMapper implements Closeable{
 	}
 
 	public void putBytes(long pos, byte[] data){
-		if(pos+data.length>size) throw new MMapIndexOOBException(pos);
+		if(pos+data.length>writableSize) throw new MMapIndexOOBException(pos);
 		unsafe.copyMemory(data, BYTE_ARRAY_OFFSET, null, pos + addr, data.length);
 	}
 	
+	/**Copies len bytes from srcPos to dstPos within this mapping.*/
+	public void copy(long srcPos, long dstPos, long len){
+		if(srcPos+len>size) throw new MMapIndexOOBException(srcPos);
+		if(dstPos+len>writableSize) throw new MMapIndexOOBException(dstPos);
+		unsafe.copyMemory(srcPos + addr, dstPos + addr, len);
+	}
+	
+	/**Whether the bytes at pos equal data, compared a word at a time in
+	 * place rather than copied out first.*/
+	public boolean bytesEqual(long pos, byte[] data){
+		if(pos+data.length>size) throw new MMapIndexOOBException(pos);
+		final long base = pos + addr;
+		int i = 0;
+		for(; i + 8 <= data.length; i += 8){
+			if(unsafe.getLong(base + i) != unsafe.getLong(data, (long)BYTE_ARRAY_OFFSET + i)) return false;
+		}
+		for(; i < data.length; i++){
+			if(unsafe.getByte(base + i) != data[i]) return false;
+		}
+		return true;
+	}
+	
 	public String getLocation(){
 		return loc;
 	}
 	
 	public void clear(){
+		if(readOnly) throw new UnsupportedOperationException("Read-only mapping of " + loc);
 		unsafe.setMemory(addr, size, (byte)0);
 	}
 	
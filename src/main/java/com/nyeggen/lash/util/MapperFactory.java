@@ -0,0 +1,77 @@
+package com.nyeggen.lash.util;
+
+/**Opens the storage behind a map's files.  A null location is an in-memory
+ * map's, which is always served by an anonymous MMapper.*/
+public interface MapperFactory {
+	public MMapper open(String loc, long len) throws Exception;
+
+	/**Opens a map's primary, which holds its table.*/
+	public default MMapper openPrimary(String loc, long len) throws Exception {
+		return open(loc, len);
+	}
+	/**Opens a map's secondary, which holds its records.*/
+	public default MMapper openSecondary(String loc, long len) throws Exception {
+		return open(loc, len);
+	}
+
+	/**Maps the files, leaving caching to the kernel.  The default.*/
+	public static final MapperFactory MMAP = new MapperFactory() {
+		@Override
+		public MMapper open(String loc, long len) throws Exception {
+			return new MMapper(loc, len);
+		}
+	};
+
+	/**Whether the mappers are read-only, so that the map must not write.*/
+	public default boolean isReadOnly(){
+		return false;
+	}
+
+	/**Maps the existing files of a map read-only and shared (see
+	 * MMapper.openReadOnly), for serving a map, once built and closed, from
+	 * many processes at once.  Requested lengths are ignored.*/
+	public static final MapperFactory READ_ONLY = new MapperFactory() {
+		@Override
+		public MMapper open(String loc, long len) throws Exception {
+			if(loc == null) throw new IllegalArgumentException("An in-memory map cannot be opened read-only");
+			return MMapper.openReadOnly(loc);
+		}
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+	};
+
+	/**Serves each file through a BufferedFileMapper caching the given number
+	 * of pages of it, with CLOCK eviction.*/
+	public static MapperFactory buffered(final int cachePages){
+		return new MapperFactory() {
+			@Override
+			public MMapper open(String loc, long len) throws Exception {
+				return loc == null ? new MMapper(null, len) : new BufferedFileMapper(loc, len, cachePages);
+			}
+		};
+	}
+
+	/**Serves only the primary through a BufferedFileMapper, evicting by the
+	 * given policy, and maps the secondary.  This keeps the hot table
+	 * buckets in the application's own cache, where a scan of the secondary
+	 * through the page cache cannot evict them.  If pin is set, the whole
+	 * primary is read in and held, whatever cachePages is, so that no lookup
+	 * waits on I/O for its bucket.*/
+	public static MapperFactory bufferedPrimary(final int cachePages, final BufferedFileMapper.Policy policy, final boolean pin){
+		return new MapperFactory() {
+			@Override
+			public MMapper open(String loc, long len) throws Exception {
+				return new MMapper(loc, len);
+			}
+			@Override
+			public MMapper openPrimary(String loc, long len) throws Exception {
+				if(loc == null) return new MMapper(null, len);
+				final BufferedFileMapper out = new BufferedFileMapper(loc, len, cachePages, policy);
+				if(pin) out.pin();
+				return out;
+			}
+		};
+	}
+}
@@ -0,0 +1,60 @@
+package com.nyeggen.lash.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Random;
+
+import com.nyeggen.lash.ADiskMap;
+import com.nyeggen.lash.BucketDiskMap;
+import com.nyeggen.lash.util.InsertHelper;
+import com.nyeggen.lash.util.MMapper;
+
+/**Compares random lookups on a file-backed map against the same map held in
+ * anonymous memory, which transparent huge pages can back (see MMapper).
+ * Not run as part of the test suite; after mvn test-compile, run main() with
+ * target/classes and target/test-classes on the classpath, optionally under
+ * "numactl --interleave=all" on a multi-socket machine.  The first argument,
+ * if given, is the number of entries.*/
+public class InMemoryBenchmark {
+	private static String thpSetting(){
+		try(BufferedReader in = new BufferedReader(new FileReader("/sys/kernel/mm/transparent_hugepage/enabled"))){
+			return in.readLine();
+		} catch(IOException e){
+			return "unknown";
+		}
+	}
+
+	private static void run(String name, ADiskMap dmap, int recs, int rounds){
+		for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+		final Random rng = new Random(0);
+		long sink = 0;
+		final long start = System.nanoTime();
+		for(int r=0; r<rounds; r++){
+			for(int i=0; i<recs; i++){
+				sink += dmap.get(InsertHelper.longToBytes(rng.nextInt(recs)))[7];
+			}
+		}
+		final long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%-12s %8.1f ns/get (%d)", name, (double)elapsed / ((long)rounds * recs), sink));
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int recs = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		System.out.println("transparent_hugepage: " + thpSetting());
+		for(int i=0; i<2; i++){
+			final BucketDiskMap onDisk = new BucketDiskMap(MMapper.createTempDir().getCanonicalPath(), recs, 8, 8);
+			try {
+				run("file-backed", onDisk, recs, 3);
+			} finally {
+				onDisk.delete();
+			}
+			final BucketDiskMap inMemory = new BucketDiskMap(null, recs, 8, 8);
+			try {
+				run("in-memory", inMemory, recs, 3);
+			} finally {
+				inMemory.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.nyeggen.lash.bench;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.nyeggen.lash.ADiskMap;
+import com.nyeggen.lash.BucketDiskMap;
+import com.nyeggen.lash.VarSizeDiskMap;
+import com.nyeggen.lash.util.InsertHelper;
+import com.nyeggen.lash.util.MMapper;
+import com.nyeggen.lash.util.MapperFactory;
+
+/**Compares random lookups from many threads on a closed map opened as usual,
+ * where each get takes its stripe's lock, against the same files opened with
+ * MapperFactory.READ_ONLY, where it takes none.  Skewed keys make some
+ * stripes hot, as a real workload's would.
+ * Not run as part of the test suite; after mvn test-compile, run main() with
+ * target/classes and target/test-classes on the classpath.  The arguments,
+ * if given, are the number of entries and of threads.*/
+public class ReadOnlyBenchmark {
+	private interface Opener {
+		ADiskMap open(String dir, MapperFactory mappers);
+	}
+
+	private static void run(String name, final ADiskMap dmap, final int recs, int threads) throws InterruptedException {
+		final int getsPerThread = 2000000;
+		final AtomicLong sink = new AtomicLong(0);
+		final Thread[] workers = new Thread[threads];
+		for(int t=0; t<threads; t++){
+			final long seed = t;
+			workers[t] = new Thread(){
+				@Override
+				public void run() {
+					final Random rng = new Random(seed);
+					long local = 0;
+					for(int i=0; i<getsPerThread; i++){
+						//Half of the lookups go to a thousandth of the keys
+						final int k = rng.nextBoolean() ? rng.nextInt(Math.max(1, recs / 1000)) : rng.nextInt(recs);
+						local += dmap.get(InsertHelper.longToBytes(k))[7];
+					}
+					sink.addAndGet(local);
+				}
+			};
+		}
+		final long start = System.nanoTime();
+		for(final Thread t : workers) t.start();
+		for(final Thread t : workers) t.join();
+		final long elapsed = System.nanoTime() - start;
+		final double gets = (double)threads * getsPerThread;
+		System.out.println(String.format("%-24s %8.1f ns/get per thread, %6.2f M gets/s (%d)",
+				name, (double)elapsed * threads / gets, gets * 1000 / elapsed, sink.get()));
+	}
+
+	private static void compare(String kind, Opener opener, int recs, int threads) throws Exception {
+		final String dir = MMapper.createTempDir().getCanonicalPath();
+		final ADiskMap build = opener.open(dir, MapperFactory.MMAP);
+		for(long i=0; i<recs; i++) build.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+		build.close();
+		for(int i=0; i<2; i++){
+			final ADiskMap locked = opener.open(dir, MapperFactory.MMAP);
+			run(kind + " locked", locked, recs, threads);
+			locked.close();
+			final ADiskMap lockFree = opener.open(dir, MapperFactory.READ_ONLY);
+			run(kind + " read-only", lockFree, recs, threads);
+			lockFree.close();
+		}
+		opener.open(dir, MapperFactory.MMAP).delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int recs = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		System.out.println(threads + " threads");
+		compare("bucket", new Opener() {
+			@Override
+			public ADiskMap open(String dir, MapperFactory mappers) {
+				return new BucketDiskMap(dir, 0, mappers);
+			}
+		}, recs, threads);
+		compare("varsize", new Opener() {
+			@Override
+			public ADiskMap open(String dir, MapperFactory mappers) {
+				return new VarSizeDiskMap(dir, 0, mappers);
+			}
+		}, recs, threads);
+	}
+}
@@ -0,0 +1,70 @@
+package com.nyeggen.lash.bench;
+
+import java.io.Serializable;
+import java.util.Random;
+
+import com.nyeggen.lash.serde.SchemaSerde;
+import com.nyeggen.lash.serde.Serde;
+import com.nyeggen.lash.serde.SerializingSerde;
+
+/**Compares SchemaSerde against SerializingSerde on a small POJO.  Not run as
+ * part of the test suite; after mvn test-compile, run main() with
+ * target/classes and target/test-classes on the classpath.*/
+public class SerdeBenchmark {
+	public static class Event implements Serializable {
+		private static final long serialVersionUID = 1L;
+		long id;
+		long timestamp;
+		int userId;
+		double score;
+		String source;
+		long[] tags;
+	}
+	
+	private static Event[] makeEvents(int n){
+		final Random rng = new Random(0);
+		final Event[] out = new Event[n];
+		for(int i=0; i<n; i++){
+			final Event e = new Event();
+			e.id = i;
+			e.timestamp = System.currentTimeMillis() + rng.nextInt();
+			e.userId = rng.nextInt(1000000);
+			e.score = rng.nextDouble();
+			e.source = "source-" + rng.nextInt(100);
+			e.tags = new long[rng.nextInt(4)];
+			for(int j=0; j<e.tags.length; j++) e.tags[j] = rng.nextLong();
+			out[i] = e;
+		}
+		return out;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void run(String name, Serde serde, Event[] events, int rounds){
+		long bytes = 0, sink = 0;
+		final long start = System.nanoTime();
+		for(int r=0; r<rounds; r++){
+			for(final Event e : events){
+				final byte[] b = serde.toBytes(e);
+				bytes += b.length;
+				sink += ((Event)serde.fromBytes(b)).userId;
+			}
+		}
+		final long elapsed = System.nanoTime() - start;
+		final long ops = (long)rounds * events.length;
+		System.out.println(String.format("%-18s %8.1f ns/roundtrip %6.1f bytes/value (%d)",
+				name, (double)elapsed / ops, (double)bytes / ops, sink));
+	}
+	
+	public static void main(String[] args) {
+		final Event[] events = makeEvents(100000);
+		final Serde<?> schema = new SchemaSerde<Event>(Event.class);
+		final Serde<?> serializing = SerializingSerde.getInstance();
+		//Warm up
+		for(int i=0; i<3; i++){
+			run("SchemaSerde", schema, events, 1);
+			run("SerializingSerde", serializing, events, 1);
+		}
+		run("SchemaSerde", schema, events, 10);
+		run("SerializingSerde", serializing, events, 10);
+	}
+}
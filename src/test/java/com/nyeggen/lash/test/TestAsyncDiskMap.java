@@ -0,0 +1,98 @@
+package com.nyeggen.lash.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.nyeggen.lash.AsyncDiskMap;
+import com.nyeggen.lash.BucketDiskMap;
+import com.nyeggen.lash.util.InsertHelper;
+import com.nyeggen.lash.util.MMapper;
+
+@RunWith(JUnit4.class)
+public class TestAsyncDiskMap {
+	@Test
+	public void testOperations() throws Exception {
+		final BucketDiskMap dmap = new BucketDiskMap(MMapper.createTempDir().getCanonicalPath());
+		final AsyncDiskMap async = new AsyncDiskMap(dmap, 4, 100000);
+		final int recs = 50000;
+		try {
+			final List<CompletableFuture<byte[]>> puts = new ArrayList<>();
+			for(long i=0; i<recs; i++) puts.add(async.putAsync(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i)));
+			for(final CompletableFuture<byte[]> f : puts) assertEquals(null, f.get());
+			assertEquals(recs, dmap.size());
+			for(long i=0; i<recs; i+=7) assertArrayEquals(InsertHelper.longToBytes(-i), async.getAsync(InsertHelper.longToBytes(i)).get());
+			//Fewer batches than operations, since a drain runs several
+			assertTrue(async.getBatchCount() < recs + recs / 7);
+
+			//Operations on a key complete in submission order
+			final byte[] k = InsertHelper.longToBytes(recs);
+			final List<CompletableFuture<Long>> adds = new ArrayList<>();
+			for(int i=0; i<1000; i++) adds.add(async.addAndGetAsync(k, 1));
+			for(int i=0; i<1000; i++) assertEquals(Long.valueOf(i + 1), adds.get(i).get());
+
+			//Failures complete the future, not the pool thread
+			try {
+				async.addAndGetAsync(InsertHelper.longToBytes(0), 1).get();
+				async.addAndGetAsync(new byte[]{1}, 1).get();
+				async.putAsync(new byte[]{1}, new byte[3]).get();
+				async.addAndGetAsync(new byte[]{1}, 1).get();
+				fail();
+			} catch(ExecutionException e){
+				assertTrue(e.getCause() instanceof IllegalArgumentException);
+			}
+			assertEquals(0, async.pending());
+		} finally {
+			async.close();
+			dmap.close();
+			dmap.delete();
+		}
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		final BucketDiskMap dmap = new BucketDiskMap(MMapper.createTempDir().getCanonicalPath());
+		//Holds drains until they are run by hand
+		final List<Runnable> held = new ArrayList<>();
+		final AsyncDiskMap async = new AsyncDiskMap(dmap, new Executor() {
+			@Override
+			public void execute(Runnable r) {
+				held.add(r);
+			}
+		}, 10);
+		try {
+			final List<CompletableFuture<byte[]>> puts = new ArrayList<>();
+			for(long i=0; i<10; i++) puts.add(async.putAsync(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i)));
+			assertEquals(10, async.pending());
+			try {
+				async.getAsync(InsertHelper.longToBytes(0)).get();
+				fail();
+			} catch(ExecutionException e){
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+			for(final Runnable r : new ArrayList<>(held)) r.run();
+			for(final CompletableFuture<byte[]> f : puts) assertTrue(f.isDone());
+			assertEquals(0, async.pending());
+
+			//Once closed, nothing more is accepted
+			async.close();
+			assertTrue(async.getAsync(InsertHelper.longToBytes(3)).isCompletedExceptionally());
+		} finally {
+			async.close();
+			dmap.close();
+			dmap.delete();
+		}
+	}
+}
@@ -1,12 +1,31 @@
 package com.nyeggen.lash.test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -14,8 +33,16 @@ import org.junit.runners.JUnit4;
 
 import com.nyeggen.lash.ADiskMap;
 import com.nyeggen.lash.BucketDiskMap;
+import com.nyeggen.lash.DiskMapVerifier;
+import com.nyeggen.lash.LinearHashBucketDiskMap;
+import com.nyeggen.lash.VerifyReport;
+import com.nyeggen.lash.stats.MapMetrics;
+import com.nyeggen.lash.stats.MapStats;
+import com.nyeggen.lash.util.BufferedFileMapper;
 import com.nyeggen.lash.util.Hash;
+import com.nyeggen.lash.util.LZCompressor;
 import com.nyeggen.lash.util.MMapper;
+import com.nyeggen.lash.util.MapperFactory;
 import com.nyeggen.lash.util.InsertHelper;
 
 @RunWith(JUnit4.class)
@@ -185,4 +212,671 @@ public class TestBucketDiskMap {
 			dmap.delete();
 		}
 	}
+	
+	static byte[] jsonValue(long i){
+		return ("{\"id\":" + i + ",\"type\":\"session\",\"user\":\"user-" + (i % 977)
+				+ "\",\"active\":true,\"tags\":[\"alpha\",\"beta\"],\"score\":" + (i * 31 % 1000) + "}").getBytes();
+	}
+	
+	@Test
+	public void testCompression() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		ADiskMap dmap = new BucketDiskMap(dir);
+		final int recs = 20000;
+		try {
+			final List<byte[]> sample = new ArrayList<byte[]>();
+			for(long i=0; i<100; i++) sample.add(jsonValue(i));
+			final byte[] dict = LZCompressor.trainDictionary(sample, 4096);
+			final LZCompressor codec = new LZCompressor(dict);
+			for(long i=0; i<100; i++){
+				assertArrayEquals(jsonValue(i), codec.decompress(codec.compress(jsonValue(i))));
+			}
+			
+			//Half written uncompressed, half compressed
+			for(long i=0; i<recs/2; i++) dmap.put(InsertHelper.longToBytes(i), jsonValue(i));
+			dmap.enableValueCompression(dict);
+			for(long i=recs/2; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), jsonValue(i));
+			dmap.close();
+			
+			//Dictionary is reloaded with the map
+			dmap = new BucketDiskMap(dir);
+			assertEquals(recs, dmap.size());
+			for(long i=0; i<recs; i++){
+				assertArrayEquals(jsonValue(i), dmap.get(InsertHelper.longToBytes(i)));
+			}
+			final byte[] k = InsertHelper.longToBytes(0);
+			assertArrayEquals(jsonValue(0), dmap.replace(k, jsonValue(1)));
+			assertEquals(true, dmap.replace(k, jsonValue(1), jsonValue(2)));
+			assertArrayEquals(jsonValue(2), dmap.get(k));
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testParallelStream() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final ADiskMap dmap = new BucketDiskMap(dir);
+		final long recs = 200000;
+		try {
+			for(long i=0; i<recs; i++){
+				dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i+1));
+			}
+			assertNotNull(dmap.spliterator().trySplit());
+			final long[] sums = dmap.parallelStream().mapToLong(new ToLongFunction<Map.Entry<byte[], byte[]>>() {
+				@Override
+				public long applyAsLong(Map.Entry<byte[], byte[]> e) {
+					final long k = InsertHelper.bytesToLong(e.getKey());
+					assertEquals(k + 1, InsertHelper.bytesToLong(e.getValue()));
+					return k;
+				}
+			}).collect(new Supplier<long[]>() {
+				@Override
+				public long[] get() { return new long[2]; }
+			}, new ObjLongConsumer<long[]>() {
+				@Override
+				public void accept(long[] acc, long k) { acc[0]++; acc[1] += k; }
+			}, new BiConsumer<long[], long[]>() {
+				@Override
+				public void accept(long[] a, long[] b) { a[0] += b[0]; a[1] += b[1]; }
+			});
+			assertEquals(recs, sums[0]);
+			assertEquals(recs * (recs - 1) / 2, sums[1]);
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testAtomicUpdates() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final ADiskMap dmap = new BucketDiskMap(dir);
+		final int nThreads = 4, nKeys = 1000, rounds = 100;
+		try {
+			final Thread[] threads = new Thread[nThreads];
+			for(int t=0; t<nThreads; t++){
+				threads[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for(int r=0; r<rounds; r++){
+							for(long i=0; i<nKeys; i++){
+								final byte[] k = InsertHelper.longToBytes(i);
+								dmap.addAndGet(k, i);
+								dmap.merge(InsertHelper.longToBytes(-i-1), InsertHelper.longToBytes(1), new BiFunction<byte[], byte[], byte[]>() {
+									@Override
+									public byte[] apply(byte[] prev, byte[] v) {
+										return InsertHelper.longToBytes(InsertHelper.bytesToLong(prev) + InsertHelper.bytesToLong(v));
+									}
+								});
+							}
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for(final Thread t : threads) t.join();
+			assertEquals(2 * nKeys, dmap.size());
+			for(long i=0; i<nKeys; i++){
+				assertEquals(i * nThreads * rounds, InsertHelper.bytesToLong(dmap.get(InsertHelper.longToBytes(i))));
+				assertEquals(nThreads * rounds, InsertHelper.bytesToLong(dmap.get(InsertHelper.longToBytes(-i-1))));
+			}
+			
+			final byte[] k = InsertHelper.longToBytes(0);
+			final byte[] absent = InsertHelper.longToBytes(nKeys);
+			//Present keys are left alone, absent ones inserted
+			assertArrayEquals(InsertHelper.longToBytes(0), dmap.computeIfAbsent(k, new Function<byte[], byte[]>() {
+				@Override
+				public byte[] apply(byte[] key) { throw new AssertionError(); }
+			}));
+			assertArrayEquals(k, dmap.computeIfAbsent(absent, new Function<byte[], byte[]>() {
+				@Override
+				public byte[] apply(byte[] key) { return InsertHelper.longToBytes(0); }
+			}));
+			//Returning null removes
+			assertEquals(null, dmap.compute(absent, new BiFunction<byte[], byte[], byte[]>() {
+				@Override
+				public byte[] apply(byte[] key, byte[] prev) { return null; }
+			}));
+			assertEquals(false, dmap.containsKey(absent));
+			//The old value changed in place and returned is still written
+			dmap.compute(k, new BiFunction<byte[], byte[], byte[]>() {
+				@Override
+				public byte[] apply(byte[] key, byte[] prev) { prev[0]++; return prev; }
+			});
+			assertEquals(1, dmap.get(k)[0]);
+			assertEquals(2 * nKeys, dmap.size());
+			try {
+				dmap.put(absent, new byte[3]);
+				dmap.addAndGet(absent, 1);
+				fail("Expected IllegalArgumentException");
+			} catch(IllegalArgumentException e){}
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testInPlaceUpdate() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final ADiskMap dmap = new BucketDiskMap(dir);
+		final int recs = 10000, rounds = 100;
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), new byte[1000]);
+			final long secondaryLen = new File(tmpDir, "secondary.hash").length();
+			//About 1GB of same-size or shrinking overwrites, none of which need new space
+			for(int r=0; r<rounds; r++){
+				final byte[] v = new byte[1000 - r];
+				v[0] = (byte)r;
+				for(long i=0; i<recs; i++){
+					final byte[] k = InsertHelper.longToBytes(i);
+					if(r % 3 == 0) dmap.replace(k, v);
+					else dmap.put(k, v);
+				}
+			}
+			assertEquals(secondaryLen, new File(tmpDir, "secondary.hash").length());
+			for(long i=0; i<recs; i++){
+				final byte[] v = dmap.get(InsertHelper.longToBytes(i));
+				assertEquals(1000 - rounds + 1, v.length);
+				assertEquals(rounds - 1, v[0]);
+			}
+			assertEquals(recs, dmap.size());
+			
+			//Shrunk values keep their extents' capacity, so they grow back in place
+			final long used = dmap.getStats(false).secondaryUsedBytes;
+			for(final int len : new int[]{ 1000, 10, 999, 700, 1000, 1 }){
+				final byte[] v = new byte[len];
+				v[0] = (byte)len;
+				for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), v);
+				for(long i=0; i<recs; i++) assertArrayEquals(v, dmap.get(InsertHelper.longToBytes(i)));
+			}
+			assertEquals(used, dmap.getStats(false).secondaryUsedBytes);
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testExpiry() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final BucketDiskMap dmap = new BucketDiskMap(dir);
+		final byte[] v = InsertHelper.longToBytes(1), v2 = InsertHelper.longToBytes(2);
+		try {
+			final byte[] expiring = InsertHelper.longToBytes(1),
+			             permanent = InsertHelper.longToBytes(2),
+			             replaced = InsertHelper.longToBytes(3),
+			             cleared = InsertHelper.longToBytes(4);
+			dmap.put(expiring, v, 100, TimeUnit.MILLISECONDS);
+			dmap.put(permanent, v);
+			assertEquals(null, dmap.putIfAbsent(replaced, v, 100, TimeUnit.MILLISECONDS));
+			dmap.replace(replaced, v2);
+			dmap.put(cleared, v, 100, TimeUnit.MILLISECONDS);
+			dmap.put(cleared, v2);
+			assertArrayEquals(v, dmap.get(expiring));
+			assertEquals(4, dmap.size());
+			Thread.sleep(200);
+			
+			//Iteration skips expired entries that size() still counts
+			assertEquals(2, dmap.stream().toArray().length);
+			assertEquals(null, dmap.get(expiring));
+			assertEquals(null, dmap.get(replaced));
+			assertArrayEquals(v, dmap.get(permanent));
+			assertArrayEquals(v2, dmap.get(cleared));
+			assertEquals(2, dmap.size());
+			final Iterator<Map.Entry<byte[], byte[]>> it = dmap.iterator();
+			it.next(); it.next();
+			assertEquals(false, it.hasNext());
+			dmap.clear();
+			
+			//Expired space is reused: about 300MB written, into the same extents
+			final int recs = 10000;
+			final long secondaryLen = new File(tmpDir, "secondary.hash").length();
+			for(int r=0; r<30; r++){
+				for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), new byte[1000], 1, TimeUnit.MILLISECONDS);
+				Thread.sleep(5);
+				dmap.expireAll();
+				assertEquals(0, dmap.size());
+			}
+			assertEquals(secondaryLen, new File(tmpDir, "secondary.hash").length());
+			
+			//Background sweeping
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), v, 50, TimeUnit.MILLISECONDS);
+			dmap.startExpirySweeper(100, TimeUnit.MILLISECONDS);
+			for(int tries=0; tries<100 && dmap.size() > 0; tries++) Thread.sleep(50);
+			assertEquals(0, dmap.size());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testCacheMode() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final BucketDiskMap dmap = new BucketDiskMap(dir);
+		final int maxEntries = 300000, recs = 1000000, hot = 1000;
+		try {
+			dmap.setCacheLimits(maxEntries, 0);
+			for(long i=0; i<recs; i++){
+				dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i+1));
+				if(i >= hot && i % 50 == 0) dmap.get(InsertHelper.longToBytes((i / 50) % hot));
+			}
+			//Eviction is per chain, so the bound is approximate
+			assertTrue("Size " + dmap.size(), dmap.size() <= maxEntries * 1.05);
+			assertTrue("Size " + dmap.size(), dmap.size() >= maxEntries * 0.9);
+			assertEquals(recs - dmap.size(), dmap.getEvictionCount());
+			int hotKept = 0;
+			for(long i=0; i<hot; i++) if(dmap.containsKey(InsertHelper.longToBytes(i))) hotKept++;
+			assertTrue("Hot keys kept: " + hotKept, hotKept > hot * 0.9);
+			
+			dmap.clear();
+			final long maxBytes = 10000000;
+			dmap.setCacheLimits(0, maxBytes);
+			for(long i=0; i<recs/4; i++) dmap.put(InsertHelper.longToBytes(i), new byte[100]);
+			assertTrue("Live bytes " + dmap.getLiveBytes(), dmap.getLiveBytes() <= maxBytes * 1.05);
+			assertTrue("Live bytes " + dmap.getLiveBytes(), dmap.getLiveBytes() >= maxBytes * 0.9);
+			assertEquals(dmap.size() * 108, dmap.getLiveBytes());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testPresizeAndShrink() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final File primary = new File(tmpDir, "primary.hash"), secondary = new File(tmpDir, "secondary.hash");
+		final int recs = 50000;
+		ADiskMap dmap = new BucketDiskMap(dir, recs, 8, 8);
+		try {
+			//Presized load needs no rehashing or remapping
+			final long presizedLen = primary.length(), secondaryLen = secondary.length();
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			assertEquals(presizedLen, primary.length());
+			assertEquals(secondaryLen, secondary.length());
+			
+			//Grow well past the reservation, then delete most of it
+			dmap.setShrinkThreshold(0.1);
+			for(long i=recs; i<recs*8; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			final long grownLen = primary.length();
+			assertTrue(grownLen > presizedLen);
+			for(long i=0; i<recs*8; i++){
+				if(i % 20 != 0) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.remove(InsertHelper.longToBytes(i)));
+			}
+			assertTrue(primary.length() < grownLen);
+			assertTrue(primary.length() >= presizedLen);
+			
+			//Reserving on a populated table rehashes up front
+			dmap.reserve(recs*8, 8, 8);
+			final long reservedLen = primary.length();
+			assertTrue(reservedLen >= grownLen);
+			for(long i=0; i<recs*8; i++){
+				if(i % 20 != 0) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			}
+			assertEquals(reservedLen, primary.length());
+			for(long i=0; i<recs*8; i++){
+				if(i % 2 != 0) dmap.remove(InsertHelper.longToBytes(i));
+			}
+			assertEquals(reservedLen, primary.length());
+			dmap.close();
+			
+			dmap = new BucketDiskMap(dir);
+			assertEquals(recs*4, dmap.size());
+			for(long i=0; i<recs*8; i++){
+				final byte[] v = dmap.get(InsertHelper.longToBytes(i));
+				if(i % 2 == 0) assertArrayEquals(InsertHelper.longToBytes(-i), v);
+				else assertEquals(null, v);
+			}
+			long count = 0;
+			for(Iterator<Map.Entry<byte[], byte[]>> it = dmap.iterator(); it.hasNext(); it.next()) count++;
+			assertEquals(recs*4, count);
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testLinearPrimaryGrowth() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final File primary = new File(tmpDir, "primary.hash");
+		final int recs = 400000;
+		ADiskMap dmap = new LinearHashBucketDiskMap(dir, 4096 * 256);
+		try {
+			//The primary covers the table and the stripes split so far, to the
+			//next sixteenth of the table, never the whole doubled table
+			for(long i=0; i<recs; i++){
+				dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+				if(i % 1000 == 0){
+					final MapStats stats = dmap.getStats(false);
+					final long split = (stats.rehashedStripes + 15) / 16 * 16;
+					assertEquals(4096 * (stats.tableLength + split * (stats.tableLength / 256)), primary.length());
+				}
+			}
+			final MapStats grown = dmap.getStats(false);
+			assertTrue(grown.tableLength > 256);
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+			assertTrue(dmap.verify(2).isClean());
+			
+			//Contraction truncates it the same way
+			dmap.setShrinkThreshold(0.1);
+			final long grownLen = primary.length();
+			for(long i=0; i<recs; i++){
+				if(i % 20 != 0) dmap.remove(InsertHelper.longToBytes(i));
+			}
+			final MapStats shrunk = dmap.getStats(false);
+			final long split = (shrunk.rehashedStripes + 15) / 16 * 16;
+			assertEquals(4096 * (shrunk.tableLength + split * (shrunk.tableLength / 256)), primary.length());
+			assertTrue(primary.length() < grownLen);
+			dmap.close();
+			assertEquals(0, DiskMapVerifier.checkHeaderFiles(tmpDir, 4096, 1).size());
+			
+			dmap = new LinearHashBucketDiskMap(dir);
+			assertEquals(recs / 20, dmap.size());
+			for(long i=0; i<recs; i+=20) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+			assertTrue(dmap.verify(2).isClean());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testBufferedMapper() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final int recs = 100000;
+		//A cache far smaller than the files, so that pages are evicted and
+		//written back throughout
+		ADiskMap dmap = new BucketDiskMap(dir, 4096 * 256, MapperFactory.buffered(128));
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			for(long i=0; i<recs; i+=2) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.remove(InsertHelper.longToBytes(i)));
+			//Values spanning page boundaries
+			final byte[] big = new byte[10000];
+			for(int i=0; i<big.length; i++) big[i] = (byte)i;
+			dmap.put(InsertHelper.longToBytes(-1), big);
+			for(long i=1; i<recs; i+=2) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+			assertArrayEquals(big, dmap.get(InsertHelper.longToBytes(-1)));
+			assertTrue(dmap.verify(2).isClean());
+			dmap.close();
+			
+			//The files are the same as mapped ones
+			dmap = new BucketDiskMap(dir);
+			assertEquals(recs / 2 + 1, dmap.size());
+			for(long i=0; i<recs; i++){
+				final byte[] v = dmap.get(InsertHelper.longToBytes(i));
+				if(i % 2 == 0) assertEquals(null, v);
+				else assertArrayEquals(InsertHelper.longToBytes(-i), v);
+			}
+			assertArrayEquals(big, dmap.get(InsertHelper.longToBytes(-1)));
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	/**Misses on the primary while reading hot keys, after a scan of every
+	 * other key.*/
+	private static long hotMissesAfterScan(BufferedFileMapper.Policy policy) throws Exception {
+		final int recs = 20000, hot = 8;
+		final BucketDiskMap dmap = new BucketDiskMap(MMapper.createTempDir().getCanonicalPath(), 4096 * 256,
+		                                             MapperFactory.bufferedPrimary(64, policy, false));
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			//Hot keys read throughout a scan, so they are seen again soon after
+			//the scan pushes them out
+			long n = 0;
+			for(Iterator<Map.Entry<byte[], byte[]>> it = dmap.iterator(); it.hasNext(); it.next()){
+				if(n++ % 16 == 0) for(long h=0; h<hot; h++) dmap.get(InsertHelper.longToBytes(h));
+			}
+			for(Iterator<Map.Entry<byte[], byte[]>> it = dmap.iterator(); it.hasNext(); it.next());
+			final long misses = dmap.getStats(false).primaryCacheMisses;
+			for(long h=0; h<hot; h++) assertArrayEquals(InsertHelper.longToBytes(-h), dmap.get(InsertHelper.longToBytes(h)));
+			final MapStats stats = dmap.getStats(false);
+			assertTrue(stats.primaryHitRatio() > 0 && stats.primaryHitRatio() < 1);
+			assertEquals(-1, stats.secondaryCacheHits);
+			return stats.primaryCacheMisses - misses;
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testPrimaryCache() throws Exception {
+		//2Q keeps the hot buckets through the scan, where CLOCK loses them
+		assertEquals(0, hotMissesAfterScan(BufferedFileMapper.Policy.TWO_Q));
+		assertTrue(hotMissesAfterScan(BufferedFileMapper.Policy.CLOCK) > 0);
+		
+		//A pinned primary is read in once, and as it grows
+		final File tmpDir = MMapper.createTempDir();
+		final BucketDiskMap dmap = new BucketDiskMap(tmpDir.getCanonicalPath(), 4096 * 256,
+		                                             MapperFactory.bufferedPrimary(16, BufferedFileMapper.Policy.CLOCK, true));
+		final int recs = 100000;
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			assertTrue(dmap.getStats(false).tableLength > 256);
+			final long misses = dmap.getStats(false).primaryCacheMisses;
+			assertEquals(new File(tmpDir, "primary.hash").length() / 4096, misses);
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+			assertEquals(misses, dmap.getStats(false).primaryCacheMisses);
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testInMemory() throws Exception {
+		final int recs = 200000;
+		final BucketDiskMap dmap = new BucketDiskMap(null, recs / 20, 8, 8);
+		try {
+			assertTrue(dmap.isInMemory());
+			//Grows well past the presized table, copying the primary each time
+			final long remaps = dmap.getStats(false).primaryRemaps;
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			assertTrue(dmap.getStats(false).primaryRemaps > remaps);
+			assertEquals(recs, dmap.size());
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+			assertTrue(dmap.verify(2).isClean());
+			
+			//The dictionary is kept in memory, and still cannot be swapped out
+			final byte[] dict = new byte[64];
+			dmap.enableValueCompression(dict);
+			final byte[] v = new byte[256];
+			dmap.put(InsertHelper.longToBytes(-1), v);
+			assertArrayEquals(v, dmap.get(InsertHelper.longToBytes(-1)));
+			try {
+				dmap.enableValueCompression(new byte[]{1});
+				fail();
+			} catch(IllegalStateException expected){}
+		} finally {
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testStats() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final BucketDiskMap dmap = new BucketDiskMap(dir, 10000, 8, 8);
+		final int recs = 10000;
+		final ObjectName name = new ObjectName("com.nyeggen.lash:type=DiskMap,name=" + ObjectName.quote(dir));
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			MapStats stats = dmap.getStats(false);
+			assertEquals(null, stats.latencies);
+			assertEquals(null, stats.chainLengths);
+			final long remaps = stats.primaryRemaps + stats.secondaryRemaps;
+			
+			dmap.enableMetrics();
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i));
+			for(long i=0; i<recs; i++) dmap.get(InsertHelper.longToBytes(i));
+			for(long i=0; i<recs; i+=2) dmap.remove(InsertHelper.longToBytes(i));
+			
+			stats = dmap.getStats(true);
+			assertEquals(recs, stats.operationCount(MapMetrics.Op.PUT));
+			assertEquals(recs, stats.operationCount(MapMetrics.Op.GET));
+			assertEquals(recs / 2, stats.operationCount(MapMetrics.Op.REMOVE));
+			long acquisitions = 0, chains = 0;
+			for(final long a : stats.lockAcquisitions) acquisitions += a;
+			for(final long c : stats.chainLengths) chains += c;
+			assertEquals(recs * 5 / 2, acquisitions);
+			assertEquals(stats.tableLength, chains);
+			assertEquals(recs / 2, stats.size);
+			//Removed records' data is free, not live
+			assertEquals(recs / 2 * 16, stats.liveBytes);
+			assertEquals(recs / 2 * 16, stats.freeExtentBytes);
+			assertEquals(recs / 2 * 16, stats.deadBytes(32));
+			assertEquals(remaps, stats.primaryRemaps + stats.secondaryRemaps);
+			
+			dmap.registerMBean(dir);
+			assertEquals(Long.valueOf(recs / 2), server.getAttribute(name, "Size"));
+			assertEquals(Boolean.TRUE, server.getAttribute(name, "MetricsEnabled"));
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+		assertTrue(!server.isRegistered(name));
+	}
+	
+	@Test
+	public void testVerifyAndSalvage() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final File salvageDir = MMapper.createTempDir();
+		final int recs = 10000;
+		BucketDiskMap dmap = new BucketDiskMap(dir, recs, 8, 8);
+		final BucketDiskMap salvaged = new BucketDiskMap(salvageDir.getCanonicalPath());
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			VerifyReport report = dmap.verify(4);
+			assertTrue(report.toString(), report.isClean());
+			assertEquals(recs, report.getRecords());
+			dmap.close();
+			assertEquals(0, DiskMapVerifier.checkHeaderFiles(tmpDir, 4096).size());
+			
+			//Damage the first key, which makes its hash mismatch, and the size in the header
+			try(RandomAccessFile f = new RandomAccessFile(new File(tmpDir, "secondary.hash"), "rw")){
+				f.seek(32);
+				f.write(~f.read());
+				f.seek(0);
+				f.write(0x7f);
+			}
+			dmap = new BucketDiskMap(dir);
+			report = dmap.verify(4);
+			assertEquals(recs - 1, report.getRecords());
+			assertEquals(2, report.getErrorCount());
+			
+			report = dmap.salvageInto(salvaged, 4);
+			assertEquals(recs - 1, report.getSalvaged());
+			assertEquals(null, salvaged.get(InsertHelper.longToBytes(0)));
+			for(long i=1; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(-i), salvaged.get(InsertHelper.longToBytes(i)));
+			assertTrue(salvaged.verify(1).isClean());
+			
+			//An implausible table length is caught before opening
+			dmap.close();
+			try(RandomAccessFile f = new RandomAccessFile(new File(tmpDir, "secondary.hash"), "rw")){
+				f.seek(8);
+				f.writeLong(3);
+			}
+			assertEquals(1, DiskMapVerifier.checkHeaderFiles(tmpDir, 4096).size());
+		} finally {
+			dmap.delete();
+			salvaged.close();
+			salvaged.delete();
+		}
+	}
+	
+	@Test
+	public void testReadOnly() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final int recs = 100000;
+		BucketDiskMap dmap = new BucketDiskMap(dir);
+		for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+		dmap.put(InsertHelper.longToBytes(-1), InsertHelper.longToBytes(1), 1, TimeUnit.MILLISECONDS);
+		dmap.close();
+		Thread.sleep(10);
+		
+		//Two readers of the same files at once, as separate processes would be
+		final BucketDiskMap a = new BucketDiskMap(dir, 0, MapperFactory.READ_ONLY),
+		                    b = new BucketDiskMap(dir, 0, MapperFactory.READ_ONLY);
+		try {
+			assertTrue(a.isReadOnly());
+			assertEquals(recs + 1, a.size());
+			final AtomicLong wrong = new AtomicLong(0);
+			final Thread[] readers = new Thread[4];
+			for(int t=0; t<readers.length; t++){
+				final BucketDiskMap reader = t % 2 == 0 ? a : b;
+				readers[t] = new Thread(){
+					@Override
+					public void run() {
+						final Random rng = new Random();
+						for(int i=0; i<recs; i++){
+							final long k = rng.nextInt(recs);
+							final byte[] v = reader.get(InsertHelper.longToBytes(k));
+							if(v == null || InsertHelper.bytesToLong(v) != -k) wrong.incrementAndGet();
+						}
+					}
+				};
+				readers[t].start();
+			}
+			for(final Thread t : readers) t.join();
+			assertEquals(0, wrong.get());
+			
+			//An expired entry is skipped, not removed
+			assertEquals(null, a.get(InsertHelper.longToBytes(-1)));
+			assertEquals(recs + 1, a.size());
+			long iterated = 0;
+			for(final Iterator<Map.Entry<byte[], byte[]>> it = b.iterator(); it.hasNext(); it.next()) iterated++;
+			assertEquals(recs, iterated);
+			
+			try {
+				a.put(InsertHelper.longToBytes(0), InsertHelper.longToBytes(0));
+				fail();
+			} catch(UnsupportedOperationException e){}
+			try {
+				a.remove(InsertHelper.longToBytes(0));
+				fail();
+			} catch(UnsupportedOperationException e){}
+			try {
+				a.clear();
+				fail();
+			} catch(UnsupportedOperationException e){}
+			try {
+				a.delete();
+				fail();
+			} catch(UnsupportedOperationException e){}
+			assertArrayEquals(InsertHelper.longToBytes(0), a.get(InsertHelper.longToBytes(0)));
+		} finally {
+			a.close();
+			b.close();
+		}
+		
+		//Nothing is created for a reader of a missing map
+		final File missing = new File(tmpDir, "missing");
+		try {
+			new BucketDiskMap(missing.getPath(), 0, MapperFactory.READ_ONLY);
+			fail();
+		} catch(RuntimeException e){}
+		assertTrue(!missing.exists());
+		
+		dmap = new BucketDiskMap(dir);
+		assertEquals(recs + 1, dmap.size());
+		dmap.close();
+		dmap.delete();
+	}
 }
@@ -0,0 +1,159 @@
+package com.nyeggen.lash.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.nyeggen.lash.LogStructuredDiskMap;
+import com.nyeggen.lash.util.InsertHelper;
+import com.nyeggen.lash.util.MMapper;
+
+@RunWith(JUnit4.class)
+public class TestLogStructuredDiskMap {
+	//Key and value of 8 bytes each, after the 8-byte record header
+	private static final long recordBytes = 24;
+
+	@Test
+	public void testAppendAndReopen() throws Exception {
+		final String dir = MMapper.createTempDir().getCanonicalPath();
+		final int recs = 50000;
+		LogStructuredDiskMap dmap = new LogStructuredDiskMap(dir, 1 << 16);
+		try {
+			for(long i=0; i<recs; i++) assertEquals(null, dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i)));
+			final int written = dmap.getSegmentCount();
+			assertTrue(written > 10);
+
+			//Overwriting everything leaves the first segments dead, and so
+			//deleted, without any merge
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(i), dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i)));
+			assertTrue(dmap.getDroppedSegments() >= written - 2);
+			assertEquals(recs * recordBytes, dmap.getLiveSegmentBytes());
+
+			for(long i=0; i<recs; i+=3) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.remove(InsertHelper.longToBytes(i)));
+			for(long i=1; i<recs; i+=3) assertEquals(-i + 5, dmap.addAndGet(InsertHelper.longToBytes(i), 5));
+			final long size = dmap.size(), live = dmap.getLiveSegmentBytes(), used = dmap.getSegmentBytes();
+			assertEquals(size * recordBytes, live);
+			assertTrue(dmap.verify(2).isClean());
+			dmap.close();
+
+			//Segment files are truncated to the bytes written
+			long onDisk = 0;
+			for(final File f : new File(dir).listFiles()){
+				if(f.getName().startsWith("segment-")) onDisk += f.length();
+			}
+			assertEquals(used, onDisk);
+
+			dmap = new LogStructuredDiskMap(dir, 1 << 16);
+			assertEquals(size, dmap.size());
+			assertEquals(live, dmap.getLiveSegmentBytes());
+			for(long i=0; i<recs; i++){
+				final byte[] v = dmap.get(InsertHelper.longToBytes(i));
+				if(i % 3 == 0) assertEquals(null, v);
+				else if(i % 3 == 1) assertArrayEquals(InsertHelper.longToBytes(-i + 5), v);
+				else assertArrayEquals(InsertHelper.longToBytes(-i), v);
+			}
+			//Appending resumes in the newest segment
+			final int segments = dmap.getSegmentCount();
+			dmap.put(InsertHelper.longToBytes(recs), InsertHelper.longToBytes(recs));
+			assertEquals(segments, dmap.getSegmentCount());
+
+			dmap.clear();
+			assertEquals(0, dmap.getSegmentCount());
+			assertEquals(0, dmap.getLiveSegmentBytes());
+			dmap.put(InsertHelper.longToBytes(0), InsertHelper.longToBytes(0));
+			assertEquals(1, dmap.getSegmentCount());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+
+	@Test
+	public void testOpenLeavesSegments() throws Exception {
+		final String dir = MMapper.createTempDir().getCanonicalPath();
+		LogStructuredDiskMap dmap = new LogStructuredDiskMap(dir, 1 << 16);
+		try {
+			for(long i=0; i<20000; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i));
+			dmap.close();
+
+			//With the primary zeroed, no slot points into any segment
+			final File primary = new File(dir, "primary.hash");
+			try(RandomAccessFile f = new RandomAccessFile(primary, "rw")){
+				f.write(new byte[(int)f.length()]);
+			}
+			final Map<String, Long> before = segmentLengths(dir);
+			assertTrue(before.size() > 5);
+
+			dmap = new LogStructuredDiskMap(dir, 1 << 16);
+			assertEquals(0, dmap.getLiveSegmentBytes());
+			dmap.close();
+			assertEquals(before, segmentLengths(dir));
+		} finally {
+			dmap.delete();
+		}
+	}
+
+	private static Map<String, Long> segmentLengths(String dir){
+		final Map<String, Long> out = new TreeMap<String, Long>();
+		for(final File f : new File(dir).listFiles()){
+			if(f.getName().startsWith("segment-")) out.put(f.getName(), f.length());
+		}
+		return out;
+	}
+
+	@Test
+	public void testMerge() throws Exception {
+		final String dir = MMapper.createTempDir().getCanonicalPath();
+		final int recs = 50000;
+		final LogStructuredDiskMap dmap = new LogStructuredDiskMap(dir, 1 << 16);
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i));
+			final int first = dmap.getSegmentCount();
+			//Half of every first segment is now dead
+			for(long i=0; i<recs; i+=2) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			assertEquals(0, dmap.merge(0.25));
+			final long before = dmap.getSegmentBytes();
+			assertTrue(dmap.merge(0.5) >= first - 1);
+			assertEquals(recs * recordBytes, dmap.getLiveSegmentBytes());
+			assertTrue(dmap.getSegmentBytes() < before * 3 / 4);
+			for(long i=0; i<recs; i++){
+				assertArrayEquals(InsertHelper.longToBytes(i % 2 == 0 ? -i : i), dmap.get(InsertHelper.longToBytes(i)));
+			}
+
+			//Merging alongside writers, which keep making segments dead
+			dmap.startMerger(1, TimeUnit.MILLISECONDS, 0.5);
+			final Thread[] writers = new Thread[4];
+			for(int t=0; t<writers.length; t++){
+				final int offset = t;
+				writers[t] = new Thread(){
+					@Override
+					public void run() {
+						for(int pass=0; pass<5; pass++){
+							for(long i=offset; i<recs; i+=writers.length) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i * pass));
+						}
+					}
+				};
+				writers[t].start();
+			}
+			for(final Thread t : writers) t.join();
+			dmap.stopMerger();
+			assertTrue(dmap.getMergedSegments() > first);
+			assertEquals(recs * recordBytes, dmap.getLiveSegmentBytes());
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(i * 4), dmap.get(InsertHelper.longToBytes(i)));
+			assertTrue(dmap.verify(2).isClean());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+}
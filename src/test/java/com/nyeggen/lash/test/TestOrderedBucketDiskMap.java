@@ -0,0 +1,114 @@
+package com.nyeggen.lash.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.nyeggen.lash.OrderedBucketDiskMap;
+import com.nyeggen.lash.util.MMapper;
+
+@RunWith(JUnit4.class)
+public class TestOrderedBucketDiskMap {
+	private static byte[] key(int i){
+		return String.format("key-%07d", i).getBytes();
+	}
+	
+	private static void assertRange(Iterator<Map.Entry<byte[], byte[]>> it, int from, int to, int step){
+		for(int i=from; i<to; i+=step){
+			final Map.Entry<byte[], byte[]> e = it.next();
+			assertArrayEquals(key(i), e.getKey());
+			assertArrayEquals(key(i+1), e.getValue());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testRangeAndPrefix() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		OrderedBucketDiskMap dmap = new OrderedBucketDiskMap(dir);
+		//Enough to spill several runs and trigger compaction
+		final int recs = 600000;
+		try {
+			for(int i=recs-1; i>=0; i--) dmap.put(key(i), key(i+1));
+			for(int i=0; i<recs; i+=2) dmap.remove(key(i));
+			
+			assertRange(dmap.range(key(1000), key(2000)), 1001, 2000, 2);
+			assertRange(dmap.prefix("key-001".getBytes()), 10001, 20000, 2);
+			assertRange(dmap.range(null, key(100)), 1, 100, 2);
+			assertRange(dmap.range(key(recs - 100), null), recs - 99, recs, 2);
+			dmap.close();
+			
+			//Persisted index is reloaded
+			dmap = new OrderedBucketDiskMap(dir);
+			assertRange(dmap.range(key(5000), key(6000)), 5001, 6000, 2);
+			dmap.put(key(5002), key(5003));
+			assertRange(dmap.range(key(5002), key(5004)), 5002, 5004, 1);
+			dmap.clear();
+			assertFalse(dmap.range(null, null).hasNext());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	private static Set<String> runFiles(File dir){
+		final Set<String> out = new HashSet<String>();
+		for(final File f : dir.listFiles()){
+			if(f.getName().endsWith(".run")) out.add(f.getName());
+		}
+		return out;
+	}
+	
+	@Test
+	public void testExpiryFlushes() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final OrderedBucketDiskMap dmap = new OrderedBucketDiskMap(tmpDir.getCanonicalPath());
+		//More removals than a memtable holds, made by expiry alone
+		final int recs = 100000;
+		try {
+			for(int i=0; i<recs; i++) dmap.put(key(i), key(i+1), 1, TimeUnit.MILLISECONDS);
+			Thread.sleep(10);
+			final Set<String> before = runFiles(tmpDir);
+			dmap.expireAll();
+			assertEquals(0, dmap.size());
+			assertNotEquals(before, runFiles(tmpDir));
+			assertFalse(dmap.range(null, null).hasNext());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testRebuild() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		OrderedBucketDiskMap dmap = new OrderedBucketDiskMap(dir);
+		try {
+			for(int i=0; i<1000; i++) dmap.put(key(i), key(i+1));
+			dmap.close();
+			for(final File f : tmpDir.listFiles()){
+				if(f.getName().endsWith(".run")) f.delete();
+			}
+			dmap = new OrderedBucketDiskMap(dir);
+			assertRange(dmap.range(null, null), 0, 1000, 1);
+			assertEquals(1000, dmap.size());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+}
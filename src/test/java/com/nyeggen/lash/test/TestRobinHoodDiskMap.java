@@ -0,0 +1,174 @@
+package com.nyeggen.lash.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.nyeggen.lash.ADiskMap;
+import com.nyeggen.lash.RobinHoodDiskMap;
+import com.nyeggen.lash.VerifyReport;
+import com.nyeggen.lash.stats.MapStats;
+import com.nyeggen.lash.util.InsertHelper;
+import com.nyeggen.lash.util.MMapper;
+
+@RunWith(JUnit4.class)
+public class TestRobinHoodDiskMap {
+
+	@Test
+	public void testInserts() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final int recs = 200000;
+		//Starts with a single bucket per stripe, so stripes fill and are
+		//rehashed early as well as by load
+		ADiskMap dmap = new RobinHoodDiskMap(dir, 64 * 256);
+		try {
+			for(long i=0; i<recs; i++) assertEquals(null, dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i)));
+			assertEquals(recs, dmap.size());
+			assertTrue(dmap.load() <= 0.9);
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(i), dmap.get(InsertHelper.longToBytes(i)));
+			assertEquals(null, dmap.get(InsertHelper.longToBytes(recs)));
+
+			//Replace in place, and with a value that must move
+			for(long i=0; i<recs; i+=3) assertArrayEquals(InsertHelper.longToBytes(i), dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i)));
+			for(long i=1; i<recs; i+=3) dmap.put(InsertHelper.longToBytes(i), new byte[20]);
+			for(long i=2; i<recs; i+=3) assertArrayEquals(InsertHelper.longToBytes(i), dmap.remove(InsertHelper.longToBytes(i)));
+			assertEquals(recs - recs / 3, dmap.size());
+			for(long i=0; i<recs; i++){
+				final byte[] v = dmap.get(InsertHelper.longToBytes(i));
+				if(i % 3 == 0) assertArrayEquals(InsertHelper.longToBytes(-i), v);
+				else if(i % 3 == 1) assertArrayEquals(new byte[20], v);
+				else assertEquals(null, v);
+			}
+			for(long i=0; i<recs; i+=3) assertEquals(-i + 5, dmap.addAndGet(InsertHelper.longToBytes(i), 5));
+
+			final MapStats stats = dmap.getStats(true);
+			long probed = 0;
+			for(final long c : stats.chainLengths) probed += c;
+			assertEquals(dmap.size(), probed);
+			assertTrue(dmap.verify(2).isClean());
+			dmap.close();
+
+			dmap = new RobinHoodDiskMap(dir);
+			assertEquals(recs - recs / 3, dmap.size());
+			final Set<Long> seen = new HashSet<>();
+			for(Iterator<Map.Entry<byte[], byte[]>> it = dmap.iterator(); it.hasNext();){
+				assertTrue(seen.add(InsertHelper.bytesToLong(it.next().getKey())));
+			}
+			assertEquals(dmap.size(), seen.size());
+			for(long i=0; i<recs; i+=3) assertArrayEquals(InsertHelper.longToBytes(-i + 5), dmap.get(InsertHelper.longToBytes(i)));
+
+			//The old value changed in place and returned is still written
+			final byte[] expected = InsertHelper.longToBytes(5);
+			expected[0]++;
+			dmap.compute(InsertHelper.longToBytes(0), new BiFunction<byte[], byte[], byte[]>() {
+				@Override
+				public byte[] apply(byte[] key, byte[] prev) { prev[0]++; return prev; }
+			});
+			assertArrayEquals(expected, dmap.get(InsertHelper.longToBytes(0)));
+
+			//A value shrunk in place keeps its extent's capacity, so it grows back in place
+			final byte[] k = InsertHelper.longToBytes(1);
+			final long used = dmap.getStats(false).secondaryUsedBytes;
+			for(final int len : new int[]{ 3, 20, 19, 1, 20 }) dmap.put(k, new byte[len]);
+			assertArrayEquals(new byte[20], dmap.get(k));
+			assertEquals(used, dmap.getStats(false).secondaryUsedBytes);
+			assertTrue(dmap.verify(2).isClean());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+
+	@Test
+	public void testConcurrentInsertsAndShrink() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final File primary = new File(tmpDir, "primary.hash");
+		final ADiskMap dmap = new RobinHoodDiskMap(dir, 64 * 256);
+		final int recsPerThread = 100000, nThreads = 4;
+		try {
+			final Thread[] threads = new Thread[nThreads];
+			for(int t=0; t<nThreads; t++){
+				final long from = (long)t * recsPerThread;
+				threads[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for(long i=from; i<from + recsPerThread; i++){
+							dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for(final Thread t : threads) t.join();
+			final int recs = recsPerThread * nThreads;
+			assertEquals(recs, dmap.size());
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+
+			dmap.setShrinkThreshold(0.1);
+			final long grownLen = primary.length();
+			for(long i=0; i<recs; i++){
+				if(i % 50 != 0) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.remove(InsertHelper.longToBytes(i)));
+			}
+			assertTrue(primary.length() < grownLen);
+			assertEquals(recs / 50, dmap.size());
+			for(long i=0; i<recs; i+=50) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+			assertTrue(dmap.verify(2).isClean());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+
+	@Test
+	public void testVerifyAndSalvage() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final File salvageDir = MMapper.createTempDir();
+		final int recs = 10000;
+		ADiskMap dmap = new RobinHoodDiskMap(dir, recs, 8, 8);
+		final ADiskMap salvaged = new RobinHoodDiskMap(salvageDir.getCanonicalPath());
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			VerifyReport report = dmap.verify(4);
+			assertTrue(report.toString(), report.isClean());
+			assertEquals(recs, report.getRecords());
+			dmap.close();
+
+			//Damage the first key, which makes its hash mismatch, and so the
+			//size in the header
+			try(RandomAccessFile f = new RandomAccessFile(new File(tmpDir, "secondary.hash"), "rw")){
+				f.seek(32 + 8);
+				f.write(~f.read());
+			}
+			dmap = new RobinHoodDiskMap(dir);
+			report = dmap.verify(4);
+			assertEquals(recs - 1, report.getRecords());
+			assertEquals(2, report.getErrorCount());
+
+			report = dmap.salvageInto(salvaged, 4);
+			assertEquals(recs - 1, report.getSalvaged());
+			assertEquals(null, salvaged.get(InsertHelper.longToBytes(0)));
+			for(long i=1; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(-i), salvaged.get(InsertHelper.longToBytes(i)));
+			assertTrue(salvaged.verify(1).isClean());
+		} finally {
+			dmap.close();
+			dmap.delete();
+			salvaged.close();
+			salvaged.delete();
+		}
+	}
+}
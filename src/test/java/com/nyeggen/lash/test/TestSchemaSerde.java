@@ -0,0 +1,120 @@
+package com.nyeggen.lash.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.nyeggen.lash.ADiskMap;
+import com.nyeggen.lash.BucketDiskMap;
+import com.nyeggen.lash.DiskMap;
+import com.nyeggen.lash.serde.IntSerde;
+import com.nyeggen.lash.serde.SchemaSerde;
+import com.nyeggen.lash.serde.SerializingSerde;
+import com.nyeggen.lash.util.MMapper;
+
+@RunWith(JUnit4.class)
+public class TestSchemaSerde {
+	public static enum Kind { SMALL, LARGE }
+	
+	public static class Inner implements Serializable {
+		private static final long serialVersionUID = 1L;
+		double weight;
+		String label;
+		Inner next;
+	}
+	
+	public static class Record implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final int id;
+		long timestamp;
+		boolean flag;
+		char c;
+		Integer boxed;
+		String name;
+		UUID uuid;
+		Kind kind;
+		long[] counts;
+		byte[] payload;
+		Inner inner;
+		transient int ignored;
+		
+		public Record(int id){ this.id = id; }
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		final SchemaSerde<Record> serde = new SchemaSerde<Record>(Record.class);
+		final Record r = new Record(7);
+		r.timestamp = 1234567890123L;
+		r.flag = true;
+		r.c = '\u00e9';
+		r.boxed = 42;
+		r.name = "caf\u00e9";
+		r.uuid = UUID.randomUUID();
+		r.kind = Kind.LARGE;
+		r.counts = new long[]{1, -2, Long.MAX_VALUE};
+		r.payload = new byte[]{};
+		r.inner = new Inner();
+		r.inner.weight = 0.5;
+		r.inner.next = new Inner();
+		r.inner.next.label = "tail";
+		r.ignored = 99;
+		
+		final Record out = serde.fromBytes(serde.toBytes(r));
+		assertEquals(7, out.id);
+		assertEquals(r.timestamp, out.timestamp);
+		assertEquals(true, out.flag);
+		assertEquals(r.c, out.c);
+		assertEquals(Integer.valueOf(42), out.boxed);
+		assertEquals(r.name, out.name);
+		assertEquals(r.uuid, out.uuid);
+		assertEquals(Kind.LARGE, out.kind);
+		assertArrayEquals(r.counts, out.counts);
+		assertArrayEquals(r.payload, out.payload);
+		assertEquals(0.5, out.inner.weight, 0.0);
+		assertNull(out.inner.label);
+		assertEquals("tail", out.inner.next.label);
+		assertNull(out.inner.next.next);
+		assertEquals(0, out.ignored);
+		
+		assertNull(serde.fromBytes(serde.toBytes(null)));
+		assertTrue(serde.toBytes(r).length < SerializingSerde.getInstance().toBytes(r).length);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedField() {
+		new SchemaSerde<Thread>(Thread.class);
+	}
+	
+	@Test
+	public void testInDiskMap() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final ADiskMap backing = new BucketDiskMap(tmpDir.getCanonicalPath());
+		final DiskMap<Integer, Record> dmap = new DiskMap<Integer, Record>(
+				IntSerde.getInstance(), new SchemaSerde<Record>(Record.class), backing);
+		try {
+			for(int i=0; i<10000; i++){
+				final Record r = new Record(i);
+				r.name = Integer.toString(i);
+				dmap.put(i, r);
+			}
+			for(int i=0; i<10000; i++){
+				final Record r = dmap.get(i);
+				assertEquals(i, r.id);
+				assertEquals(Integer.toString(i), r.name);
+			}
+		} finally {
+			backing.close();
+			backing.delete();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.nyeggen.lash.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.nyeggen.lash.ShardedDiskMap;
+import com.nyeggen.lash.util.InsertHelper;
+import com.nyeggen.lash.util.MMapper;
+
+@RunWith(JUnit4.class)
+public class TestShardedDiskMap {
+	@Test
+	public void testShards() throws Exception {
+		final String[] dirs = new String[4];
+		for(int i=0; i<dirs.length; i++) dirs[i] = MMapper.createTempDir().getCanonicalPath();
+		final int recs = 100000;
+		ShardedDiskMap dmap = new ShardedDiskMap(1 << 20, dirs);
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			assertEquals(recs, dmap.size());
+			for(int i=0; i<dirs.length; i++){
+				//Roughly even partitioning
+				assertTrue(Math.abs(dmap.getShard(i).size() - recs / dirs.length) < recs / 50);
+			}
+
+			//Parallel iteration sees every entry once
+			assertEquals(recs, dmap.parallelStream().count());
+			final long sum = dmap.parallelStream().mapToLong(new ToLongFunction<Map.Entry<byte[], byte[]>>() {
+				@Override
+				public long applyAsLong(Map.Entry<byte[], byte[]> e) {
+					return InsertHelper.bytesToLong(e.getKey());
+				}
+			}).sum();
+			assertEquals((long)recs * (recs - 1) / 2, sum);
+
+			//Sequential iteration supports removal
+			for(Iterator<Map.Entry<byte[], byte[]>> it = dmap.iterator(); it.hasNext(); ){
+				if(InsertHelper.bytesToLong(it.next().getKey()) % 2 == 0) it.remove();
+			}
+			assertEquals(recs / 2, dmap.size());
+			dmap.close();
+
+			dmap = new ShardedDiskMap(dirs);
+			assertEquals(recs / 2, dmap.size());
+			for(long i=0; i<recs; i++){
+				final byte[] v = dmap.get(InsertHelper.longToBytes(i));
+				if(i % 2 == 0) assertEquals(null, v);
+				else assertArrayEquals(InsertHelper.longToBytes(-i), v);
+			}
+			assertEquals(recs / 2, dmap.stream().filter(new Predicate<Map.Entry<byte[], byte[]>>() {
+				@Override
+				public boolean test(Map.Entry<byte[], byte[]> e) {
+					return InsertHelper.bytesToLong(e.getKey()) % 2 == 1;
+				}
+			}).count());
+			dmap.close();
+
+			//Reordered shards are rejected
+			try {
+				new ShardedDiskMap(dirs[1], dirs[0], dirs[2], dirs[3]);
+				fail();
+			} catch(IllegalArgumentException expected){}
+			dmap = new ShardedDiskMap(dirs);
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+}
@@ -1,8 +1,26 @@
 package com.nyeggen.lash.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -10,7 +28,11 @@ import org.junit.runners.JUnit4;
 
 import com.nyeggen.lash.ADiskMap;
 import com.nyeggen.lash.VarSizeDiskMap;
+import com.nyeggen.lash.VerifyReport;
+import com.nyeggen.lash.stats.MapMetrics;
+import com.nyeggen.lash.stats.MapStats;
 import com.nyeggen.lash.util.MMapper;
+import com.nyeggen.lash.util.MapperFactory;
 import com.nyeggen.lash.util.InsertHelper;
 
 @RunWith(JUnit4.class)
@@ -74,4 +96,456 @@ public class TestVarSizeDiskMap {
 			dmap.delete();
 		}
 	}
+	
+	@Test
+	public void testCompression() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final ADiskMap dmap = new VarSizeDiskMap(dir, 0);
+		final int recs = 20000;
+		try {
+			dmap.enableValueCompression(null);
+			for(long i=0; i<recs; i++){
+				dmap.put(InsertHelper.longToBytes(i), TestBucketDiskMap.jsonValue(i));
+			}
+			for(long i=0; i<recs; i+=2){
+				final byte[] k = InsertHelper.longToBytes(i);
+				assertArrayEquals(TestBucketDiskMap.jsonValue(i), dmap.replace(k, TestBucketDiskMap.jsonValue(i+1)));
+				assertEquals(true, dmap.remove(k, TestBucketDiskMap.jsonValue(i+1)));
+			}
+			for(long i=1; i<recs; i+=2){
+				assertArrayEquals(TestBucketDiskMap.jsonValue(i), dmap.get(InsertHelper.longToBytes(i)));
+			}
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testParallelStream() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final ADiskMap dmap = new VarSizeDiskMap(dir);
+		final long recs = 200000;
+		try {
+			for(long i=0; i<recs; i++){
+				dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i+1));
+			}
+			assertNotNull(dmap.spliterator().trySplit());
+			final long[] sums = dmap.parallelStream().mapToLong(new ToLongFunction<Map.Entry<byte[], byte[]>>() {
+				@Override
+				public long applyAsLong(Map.Entry<byte[], byte[]> e) {
+					final long k = InsertHelper.bytesToLong(e.getKey());
+					assertEquals(k + 1, InsertHelper.bytesToLong(e.getValue()));
+					return k;
+				}
+			}).collect(new Supplier<long[]>() {
+				@Override
+				public long[] get() { return new long[2]; }
+			}, new ObjLongConsumer<long[]>() {
+				@Override
+				public void accept(long[] acc, long k) { acc[0]++; acc[1] += k; }
+			}, new BiConsumer<long[], long[]>() {
+				@Override
+				public void accept(long[] a, long[] b) { a[0] += b[0]; a[1] += b[1]; }
+			});
+			assertEquals(recs, sums[0]);
+			assertEquals(recs * (recs - 1) / 2, sums[1]);
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testIterationUnderMutation() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final ADiskMap dmap = new VarSizeDiskMap(dir, 0);
+		final long recs = 100000;
+		try {
+			for(long i=0; i<recs; i++){
+				dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i+1));
+			}
+			//Overwrites of odd keys and inserts of new keys race with the iteration,
+			//which removes the even keys
+			final Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(long i=0; i<recs; i++){
+						if(i % 2 == 1) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i+1));
+						dmap.put(InsertHelper.longToBytes(recs + i), InsertHelper.longToBytes(i));
+					}
+				}
+			});
+			writer.start();
+			final Set<Long> seen = new HashSet<Long>();
+			final Iterator<Map.Entry<byte[], byte[]>> it = dmap.iterator();
+			while(it.hasNext()){
+				final long k = InsertHelper.bytesToLong(it.next().getKey());
+				assertTrue("Key returned twice: " + k, seen.add(k));
+				if(k < recs && k % 2 == 0) it.remove();
+			}
+			writer.join();
+			for(long i=0; i<recs; i++) assertTrue("Key not returned: " + i, seen.contains(i));
+			assertEquals(recs + recs/2, dmap.size());
+			assertEquals(null, dmap.get(InsertHelper.longToBytes(0)));
+			assertArrayEquals(InsertHelper.longToBytes(2), dmap.get(InsertHelper.longToBytes(1)));
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testAtomicUpdates() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final ADiskMap dmap = new VarSizeDiskMap(dir);
+		final int nThreads = 4, nKeys = 1000, rounds = 100;
+		try {
+			final Thread[] threads = new Thread[nThreads];
+			for(int t=0; t<nThreads; t++){
+				threads[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for(int r=0; r<rounds; r++){
+							for(long i=0; i<nKeys; i++){
+								final byte[] k = InsertHelper.longToBytes(i);
+								dmap.addAndGet(k, i);
+								dmap.merge(InsertHelper.longToBytes(-i-1), InsertHelper.longToBytes(1), new BiFunction<byte[], byte[], byte[]>() {
+									@Override
+									public byte[] apply(byte[] prev, byte[] v) {
+										return InsertHelper.longToBytes(InsertHelper.bytesToLong(prev) + InsertHelper.bytesToLong(v));
+									}
+								});
+							}
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for(final Thread t : threads) t.join();
+			assertEquals(2 * nKeys, dmap.size());
+			for(long i=0; i<nKeys; i++){
+				assertEquals(i * nThreads * rounds, InsertHelper.bytesToLong(dmap.get(InsertHelper.longToBytes(i))));
+				assertEquals(nThreads * rounds, InsertHelper.bytesToLong(dmap.get(InsertHelper.longToBytes(-i-1))));
+			}
+			
+			final byte[] k = InsertHelper.longToBytes(0);
+			final byte[] absent = InsertHelper.longToBytes(nKeys);
+			//Present keys are left alone, absent ones inserted
+			assertArrayEquals(InsertHelper.longToBytes(0), dmap.computeIfAbsent(k, new Function<byte[], byte[]>() {
+				@Override
+				public byte[] apply(byte[] key) { throw new AssertionError(); }
+			}));
+			assertArrayEquals(k, dmap.computeIfAbsent(absent, new Function<byte[], byte[]>() {
+				@Override
+				public byte[] apply(byte[] key) { return InsertHelper.longToBytes(0); }
+			}));
+			//Returning null removes
+			assertEquals(null, dmap.compute(absent, new BiFunction<byte[], byte[], byte[]>() {
+				@Override
+				public byte[] apply(byte[] key, byte[] prev) { return null; }
+			}));
+			assertEquals(false, dmap.containsKey(absent));
+			//The old value changed in place and returned is still written
+			dmap.compute(k, new BiFunction<byte[], byte[], byte[]>() {
+				@Override
+				public byte[] apply(byte[] key, byte[] prev) { prev[0]++; return prev; }
+			});
+			assertEquals(1, dmap.get(k)[0]);
+			assertEquals(2 * nKeys, dmap.size());
+			try {
+				dmap.put(absent, new byte[3]);
+				dmap.addAndGet(absent, 1);
+				fail("Expected IllegalArgumentException");
+			} catch(IllegalArgumentException e){}
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testInPlaceUpdate() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final ADiskMap dmap = new VarSizeDiskMap(dir);
+		final int recs = 10000, rounds = 100;
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), new byte[1000]);
+			final long secondaryLen = new File(tmpDir, "secondary.hash").length();
+			//About 1GB of same-size or shrinking overwrites, none of which need new space
+			for(int r=0; r<rounds; r++){
+				final byte[] v = new byte[1000 - r];
+				v[0] = (byte)r;
+				for(long i=0; i<recs; i++){
+					final byte[] k = InsertHelper.longToBytes(i);
+					if(r % 3 == 0) dmap.replace(k, v);
+					else dmap.put(k, v);
+				}
+			}
+			assertEquals(secondaryLen, new File(tmpDir, "secondary.hash").length());
+			for(long i=0; i<recs; i++){
+				final byte[] v = dmap.get(InsertHelper.longToBytes(i));
+				assertEquals(1000 - rounds + 1, v.length);
+				assertEquals(rounds - 1, v[0]);
+			}
+			assertEquals(recs, dmap.size());
+			
+			//Shrunk values keep their extents' capacity, so they grow back in place
+			final long used = dmap.getStats(false).secondaryUsedBytes;
+			for(final int len : new int[]{ 1000, 10, 999, 700, 1000, 1 }){
+				final byte[] v = new byte[len];
+				v[0] = (byte)len;
+				for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), v);
+				for(long i=0; i<recs; i++) assertArrayEquals(v, dmap.get(InsertHelper.longToBytes(i)));
+			}
+			assertEquals(used, dmap.getStats(false).secondaryUsedBytes);
+			
+			//The extents of removed records, and of those moved to fit a
+			//bigger value, are reused
+			for(long i=0; i<recs; i++) dmap.remove(InsertHelper.longToBytes(i));
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), new byte[1000]);
+			assertEquals(used, dmap.getStats(false).secondaryUsedBytes);
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), new byte[1500]);
+			final long grown = dmap.getStats(false).secondaryUsedBytes;
+			for(long i=recs; i<2 * recs; i++) dmap.put(InsertHelper.longToBytes(i), new byte[1000]);
+			assertEquals(grown, dmap.getStats(false).secondaryUsedBytes);
+			assertTrue(dmap.verify(2).isClean());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testPresizeAndShrink() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final File primary = new File(tmpDir, "primary.hash"), secondary = new File(tmpDir, "secondary.hash");
+		final int recs = 20000;
+		ADiskMap dmap = new VarSizeDiskMap(dir, recs, 8, 8);
+		try {
+			//Presized load needs no rehashing or remapping
+			final long presizedLen = primary.length(), secondaryLen = secondary.length();
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			assertEquals(presizedLen, primary.length());
+			assertEquals(secondaryLen, secondary.length());
+			
+			//Grow well past the reservation, then delete most of it
+			dmap.setShrinkThreshold(0.1);
+			for(long i=recs; i<recs*8; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			final long grownLen = primary.length();
+			assertTrue(grownLen > presizedLen);
+			for(long i=0; i<recs*8; i++){
+				if(i % 20 != 0) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.remove(InsertHelper.longToBytes(i)));
+			}
+			assertTrue(primary.length() < grownLen);
+			assertTrue(primary.length() >= presizedLen);
+			
+			//Reserving on a populated table rehashes up front
+			dmap.reserve(recs*8, 8, 8);
+			final long reservedLen = primary.length();
+			assertTrue(reservedLen >= grownLen);
+			for(long i=0; i<recs*8; i++){
+				if(i % 20 != 0) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			}
+			assertEquals(reservedLen, primary.length());
+			for(long i=0; i<recs*8; i++){
+				if(i % 2 != 0) dmap.remove(InsertHelper.longToBytes(i));
+			}
+			assertEquals(reservedLen, primary.length());
+			dmap.close();
+			
+			dmap = new VarSizeDiskMap(dir);
+			assertEquals(recs*4, dmap.size());
+			for(long i=0; i<recs*8; i++){
+				final byte[] v = dmap.get(InsertHelper.longToBytes(i));
+				if(i % 2 == 0) assertArrayEquals(InsertHelper.longToBytes(-i), v);
+				else assertEquals(null, v);
+			}
+			long count = 0;
+			for(Iterator<Map.Entry<byte[], byte[]>> it = dmap.iterator(); it.hasNext(); it.next()) count++;
+			assertEquals(recs*4, count);
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testStats() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final ADiskMap dmap = new VarSizeDiskMap(dir, 10000, 8, 8);
+		final int recs = 10000;
+		try {
+			dmap.enableMetrics();
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(i));
+			for(long i=0; i<recs; i++) dmap.addAndGet(InsertHelper.longToBytes(i), 1);
+			
+			final MapStats stats = dmap.getStats(true);
+			assertEquals(recs, stats.operationCount(MapMetrics.Op.PUT));
+			assertEquals(recs, stats.operationCount(MapMetrics.Op.ADD_AND_GET));
+			assertEquals(0, stats.operationCount(MapMetrics.Op.GET));
+			long chains = 0, records = 0;
+			for(int len=0; len<stats.chainLengths.length; len++){
+				chains += stats.chainLengths[len];
+				records += len * stats.chainLengths[len];
+			}
+			assertEquals(stats.tableLength, chains);
+			assertEquals(recs, records);
+			assertEquals(recs * (24 + 16), stats.liveBytes);
+			
+			dmap.disableMetrics();
+			assertEquals(null, dmap.getStats(false).latencies);
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testVerifyAndSalvage() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final File salvageDir = MMapper.createTempDir();
+		final int recs = 10000;
+		ADiskMap dmap = new VarSizeDiskMap(dir, recs, 8, 8);
+		final ADiskMap salvaged = new VarSizeDiskMap(salvageDir.getCanonicalPath());
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			VerifyReport report = dmap.verify(4);
+			assertTrue(report.toString(), report.isClean());
+			assertEquals(recs, report.getRecords());
+			dmap.close();
+			
+			//Point the first record, at the head of its chain, back at itself
+			try(RandomAccessFile f = new RandomAccessFile(new File(tmpDir, "secondary.hash"), "rw")){
+				final byte[] pos = new byte[8];
+				ByteBuffer.wrap(pos).order(ByteOrder.nativeOrder()).putLong(32);
+				f.seek(32 + 8);
+				f.write(pos);
+			}
+			dmap = new VarSizeDiskMap(dir);
+			report = dmap.verify(4);
+			assertEquals(1, report.getErrorCount());
+			assertTrue(report.getErrors().get(0).contains("cycle"));
+			
+			report = dmap.salvageInto(salvaged, 4);
+			assertEquals(recs, report.getSalvaged());
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(-i), salvaged.get(InsertHelper.longToBytes(i)));
+		} finally {
+			dmap.close();
+			dmap.delete();
+			salvaged.close();
+			salvaged.delete();
+		}
+	}
+	
+	@Test
+	public void testTaggedPointers() throws Exception {
+		final File tmpDir = MMapper.createTempDir();
+		final String dir = tmpDir.getCanonicalPath();
+		final int recs = 20000;
+		ADiskMap dmap = new VarSizeDiskMap(dir, recs, 8, 8);
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			//Removing chain tails re-flags the records before them
+			for(long i=0; i<recs; i+=3) dmap.remove(InsertHelper.longToBytes(i));
+			for(long i=0; i<recs; i++) assertEquals(i % 3 != 0, dmap.containsKey(InsertHelper.longToBytes(i)));
+			for(long i=recs; i<recs*2; i++) assertEquals(null, dmap.get(InsertHelper.longToBytes(i)));
+			assertTrue(dmap.verify(2).isClean());
+			dmap.close();
+			
+			//Strip the tags from the primary, as written before pointers had them
+			try(RandomAccessFile f = new RandomAccessFile(new File(tmpDir, "primary.hash"), "rw")){
+				final ByteBuffer buf = ByteBuffer.allocate((int)f.length()).order(ByteOrder.nativeOrder());
+				f.getChannel().read(buf, 0);
+				for(int pos=0; pos<buf.capacity(); pos+=8) buf.putLong(pos, buf.getLong(pos) & ((1L << 48) - 1));
+				buf.clear();
+				f.getChannel().write(buf, 0);
+			}
+			dmap = new VarSizeDiskMap(dir);
+			assertTrue(dmap.verify(2).isClean());
+			for(long i=0; i<recs; i++){
+				final byte[] v = dmap.get(InsertHelper.longToBytes(i));
+				if(i % 3 == 0) assertEquals(null, v);
+				else assertArrayEquals(InsertHelper.longToBytes(-i), v);
+			}
+			for(long i=0; i<recs; i+=3) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			for(long i=1; i<recs; i+=3) dmap.remove(InsertHelper.longToBytes(i));
+			assertEquals(recs - (recs + 1) / 3, dmap.size());
+			assertTrue(dmap.verify(2).isClean());
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testDefragment() throws Exception {
+		final String dir = MMapper.createTempDir().getCanonicalPath();
+		//8192 chains, filled short of rehashing, so that colliding records
+		//are written far apart
+		final int recs = 6000;
+		VarSizeDiskMap dmap = new VarSizeDiskMap(dir, 1 << 16);
+		try {
+			for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			final long moved = dmap.defragment();
+			assertTrue(moved > 0);
+			assertEquals(moved, dmap.getRelocatedChains());
+			assertEquals(0, dmap.defragment());
+			assertTrue(dmap.verify(2).isClean());
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+			
+			//Chains are gathered up again as they split, reusing freed space
+			dmap.startDefragmenter(10, TimeUnit.MILLISECONDS);
+			for(long i=recs; i<recs*4; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+			assertTrue(dmap.getRelocatedChains() > moved);
+			dmap.close();
+			
+			dmap = new VarSizeDiskMap(dir);
+			assertTrue(dmap.verify(2).isClean());
+			assertEquals(recs*4, dmap.size());
+			for(long i=0; i<recs*4; i++) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+		} finally {
+			dmap.close();
+			dmap.delete();
+		}
+	}
+	
+	@Test
+	public void testReadOnly() throws Exception {
+		final String dir = MMapper.createTempDir().getCanonicalPath();
+		final int recs = 50000;
+		VarSizeDiskMap dmap = new VarSizeDiskMap(dir);
+		for(long i=0; i<recs; i++) dmap.put(InsertHelper.longToBytes(i), InsertHelper.longToBytes(-i));
+		dmap.close();
+		
+		dmap = new VarSizeDiskMap(dir, 0, MapperFactory.READ_ONLY);
+		try {
+			assertTrue(dmap.isReadOnly());
+			for(long i=0; i<recs; i++) assertArrayEquals(InsertHelper.longToBytes(-i), dmap.get(InsertHelper.longToBytes(i)));
+			assertEquals(null, dmap.get(InsertHelper.longToBytes(recs)));
+			assertTrue(dmap.verify(2).isClean());
+			try {
+				dmap.addAndGet(InsertHelper.longToBytes(recs), 1);
+				fail();
+			} catch(UnsupportedOperationException e){}
+			try {
+				dmap.defragment();
+				fail();
+			} catch(UnsupportedOperationException e){}
+		} finally {
+			dmap.close();
+		}
+		dmap = new VarSizeDiskMap(dir);
+		assertEquals(recs, dmap.size());
+		dmap.close();
+		dmap.delete();
+	}
 }